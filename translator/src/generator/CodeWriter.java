@@ -0,0 +1,116 @@
+package generator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+// Потоковый вывод кода с отступами.
+// Строки отступов кэшируются по уровню. Отступ начатой строки выводится лениво,
+// при первой записи, поэтому пустой оператор не оставляет в выводе ничего.
+// Писатель запоминает последний выведенный символ и количество символов:
+// по ним генератор решает, нужна ли ';', не просматривая уже выведенный текст.
+class CodeWriter {
+    private static final String INDENT_UNIT = "    ";
+    private static volatile String[] indents = { "", INDENT_UNIT, INDENT_UNIT + INDENT_UNIT };
+
+    private final Appendable out;
+    private int indentLevel = 0;
+    private boolean indentPending = false;
+    private char lastChar = 0;
+    private long length = 0;
+
+    CodeWriter(Appendable out) {
+        this.out = out;
+    }
+
+    CodeWriter write(CharSequence text) {
+        if (text.length() == 0) return this;
+        flushIndent();
+        append(text);
+        return this;
+    }
+
+    CodeWriter write(char c) {
+        flushIndent();
+        try {
+            out.append(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastChar = c;
+        length++;
+        return this;
+    }
+
+    // Начало строки: отступ будет выведен перед первым символом
+    void beginLine() {
+        indentPending = true;
+    }
+
+    // Отмена начатой строки, в которую ничего не было записано
+    void cancelLine() {
+        indentPending = false;
+    }
+
+    // Отступ текущего уровня сразу
+    CodeWriter writeIndent() {
+        indentPending = false;
+        append(indent(indentLevel));
+        return this;
+    }
+
+    void indent() {
+        indentLevel++;
+    }
+
+    void dedent() {
+        indentLevel--;
+    }
+
+    int getIndentLevel() {
+        return indentLevel;
+    }
+
+    void setIndentLevel(int indentLevel) {
+        this.indentLevel = indentLevel;
+    }
+
+    char lastChar() {
+        return lastChar;
+    }
+
+    long length() {
+        return length;
+    }
+
+    private void flushIndent() {
+        if (indentPending) {
+            indentPending = false;
+            append(indent(indentLevel));
+        }
+    }
+
+    private void append(CharSequence text) {
+        if (text.length() == 0) return;
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastChar = text.charAt(text.length() - 1);
+        length += text.length();
+    }
+
+    private static String indent(int level) {
+        String[] cached = indents;
+        if (level < cached.length) {
+            return cached[level];
+        }
+        String[] grown = Arrays.copyOf(cached, level + 1);
+        for (int i = cached.length; i <= level; i++) {
+            grown[i] = grown[i - 1] + INDENT_UNIT;
+        }
+        indents = grown;
+        return grown[level];
+    }
+}
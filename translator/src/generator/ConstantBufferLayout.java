@@ -0,0 +1,182 @@
+package generator;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Размещение uniform-переменных в cbuffer по правилам упаковки HLSL.
+// Буфер состоит из 16-байтных регистров c0, c1, ...; скаляр занимает 4 байта, вектор -
+// 4 байта на компоненту, и переменная не может пересекать границу регистра.
+// Матрица (column_major: регистр на столбец) и структура начинаются с нового регистра,
+// и следующая за ними переменная тоже начинается с нового регистра.
+// Без сохранения порядка сначала идут матрицы и структуры, а векторы и скаляры
+// раскладываются по регистрам первым подходящим, от больших к меньшим
+// (float3 + float, float2 + float2, ...), что убирает внутренние дыры.
+// Поля структур не переставляются: порядок полей - часть типа.
+public class ConstantBufferLayout {
+    public static final int REGISTER_SIZE = 16;
+
+    private static final String COMPONENTS = "xyzw";
+
+    public static final class Entry {
+        public final String name;
+        public final String type;
+        public final int offset;
+        public final int size;
+
+        Entry(String name, String type, int offset, int size) {
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        // packoffset(c4) или packoffset(c4.z)
+        public String packOffset() {
+            int component = offset % REGISTER_SIZE / 4;
+            return "c" + offset / REGISTER_SIZE + (component > 0 ? "." + COMPONENTS.charAt(component) : "");
+        }
+    }
+
+    private final List<Entry> entries;
+    private final int size;
+
+    private ConstantBufferLayout(List<Entry> entries, int size) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.size = size;
+    }
+
+    // Раскладка переменных names (типы GLSL в types); structs - объявленные структуры
+    public static ConstantBufferLayout build(List<String> names, Map<String, String> types,
+                                             Map<String, GLSLParser.StructDeclaration> structs,
+                                             boolean preserveOrder) {
+        Sizes sizes = new Sizes(structs);
+        List<Entry> entries = new ArrayList<>();
+        if (preserveOrder) {
+            int offset = 0;
+            for (String name : names) {
+                String type = types.get(name);
+                offset = sizes.place(offset, type);
+                entries.add(new Entry(name, type, offset, sizes.sizeOf(type)));
+                offset = sizes.end(offset, type);
+            }
+            return new ConstantBufferLayout(entries, roundUp(offset));
+        }
+
+        int offset = 0;
+        List<String> small = new ArrayList<>();
+        for (String name : names) {
+            String type = types.get(name);
+            if (sizes.isAligned(type)) {
+                entries.add(new Entry(name, type, offset, sizes.sizeOf(type)));
+                offset = sizes.end(offset, type);
+            } else {
+                small.add(name);
+            }
+        }
+
+        // Первый подходящий регистр, от больших переменных к меньшим (сортировка устойчива)
+        small.sort(Comparator.comparingInt((String name) -> sizes.sizeOf(types.get(name))).reversed());
+        List<Integer> used = new ArrayList<>();
+        int base = offset;
+        for (String name : small) {
+            String type = types.get(name);
+            int itemSize = sizes.sizeOf(type);
+            int register = 0;
+            while (register < used.size() && used.get(register) + itemSize > REGISTER_SIZE) {
+                register++;
+            }
+            if (register == used.size()) {
+                used.add(0);
+            }
+            entries.add(new Entry(name, type, base + register * REGISTER_SIZE + used.get(register), itemSize));
+            used.set(register, used.get(register) + itemSize);
+            offset = Math.max(offset, base + register * REGISTER_SIZE + used.get(register));
+        }
+        entries.sort(Comparator.comparingInt(entry -> entry.offset));
+        return new ConstantBufferLayout(entries, roundUp(offset));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    // Размер буфера в байтах (кратен размеру регистра)
+    public int getSize() {
+        return size;
+    }
+
+    public int getRegisterCount() {
+        return size / REGISTER_SIZE;
+    }
+
+    // Байты, не занятые переменными
+    public int getPadding() {
+        int used = 0;
+        for (Entry entry : entries) {
+            used += entry.size;
+        }
+        return size - used;
+    }
+
+    private static int roundUp(int offset) {
+        return (offset + REGISTER_SIZE - 1) / REGISTER_SIZE * REGISTER_SIZE;
+    }
+
+    // Размеры типов GLSL в cbuffer; размеры структур вычисляются один раз
+    private static final class Sizes {
+        private final Map<String, GLSLParser.StructDeclaration> structs;
+        private final Map<String, Integer> structSizes = new HashMap<>();
+
+        Sizes(Map<String, GLSLParser.StructDeclaration> structs) {
+            this.structs = structs;
+        }
+
+        boolean isAligned(String type) {
+            return type.startsWith("mat") || structs.containsKey(type);
+        }
+
+        int sizeOf(String type) {
+            if (type.startsWith("mat")) {
+                int n = type.charAt(3) - '0';
+                return (n - 1) * REGISTER_SIZE + n * 4;
+            }
+            if (structs.containsKey(type)) {
+                return structSize(type);
+            }
+            char last = type.charAt(type.length() - 1);
+            return Character.isDigit(last) ? (last - '0') * 4 : 4;
+        }
+
+        // Смещение переменной, если предыдущая закончилась на offset
+        int place(int offset, String type) {
+            if (isAligned(type) || offset % REGISTER_SIZE + sizeOf(type) > REGISTER_SIZE) {
+                return roundUp(offset);
+            }
+            return offset;
+        }
+
+        // Смещение, с которого можно размещать следующую переменную
+        int end(int offset, String type) {
+            return isAligned(type) ? roundUp(offset + sizeOf(type)) : offset + sizeOf(type);
+        }
+
+        private int structSize(String name) {
+            Integer known = structSizes.get(name);
+            if (known != null) {
+                return known;
+            }
+            // Рекурсивные структуры в GLSL запрещены; заглушка защищает от зацикливания
+            structSizes.put(name, REGISTER_SIZE);
+            int offset = 0;
+            int last = 0;
+            for (GLSLParser.VariableDeclaration field : structs.get(name).fields) {
+                offset = place(offset, field.type);
+                last = offset + sizeOf(field.type);
+                offset = end(offset, field.type);
+            }
+            structSizes.put(name, last);
+            return last;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package generator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Кэш сгенерированного HLSL-кода отдельных деклараций (функций и блока cbuffer).
+// Ключ - канонический текст AST декларации вместе с вычисленными типами её узлов
+// (от типов зависит выбор HLSL-имён встроенных функций и суффиксы литералов)
+// или полный текст раскладки cbuffer. Ключи сравниваются целиком, поэтому
+// совпадение хэшей разных деклараций не подставит чужой текст.
+// При повторной трансляции заново выводятся только изменённые декларации,
+// остальной текст берётся из кэша и склеивается в прежнем порядке.
+// Кэш потокобезопасен и может разделяться несколькими генераторами.
+public class GenerationCache {
+    private final int maxEntries;
+    private final Map<Key, String> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public GenerationCache() {
+        this(4096);
+    }
+
+    public GenerationCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    String get(Key key) {
+        String text = entries.get(key);
+        if (text != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return text;
+    }
+
+    void put(Key key, String text) {
+        if (entries.size() >= maxEntries) {
+            entries.clear(); // Простое ограничение размера
+        }
+        entries.put(key, text);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    static final class Key {
+        final String content;
+        private final int hash;
+
+        Key(String content) {
+            this.content = content;
+            this.hash = content.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && content.equals(other.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
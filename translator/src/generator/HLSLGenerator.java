@@ -1,27 +1,58 @@
 package generator;
 
+import parser.ASTFingerprint;
 import parser.GLSLParser;
 import parser.GLSLParser.ASTVisitor;
+import semantics.BuiltInPrelude;
+import semantics.CallGraph;
+
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Генератор пишет код напрямую в Appendable через CodeWriter: visit-методы ничего
+// не возвращают и не создают промежуточных строк для узлов
+public class HLSLGenerator implements GLSLParser.ASTVisitor<Void> {
+
+    // Таблицы соответствия GLSL -> HLSL строятся один раз и разделяются всеми генераторами
+    private static final Map<String, String> TYPE_MAPPING;
+
+    // Встроенные функции и их HLSL-имена берутся из той же таблицы, что и в семантическом анализе
+    private static final BuiltInPrelude PRELUDE = BuiltInPrelude.get();
 
-public class HLSLGenerator implements GLSLParser.ASTVisitor<String> {
+    // Кэш кода деклараций между трансляциями (может быть null)
+    private final GenerationCache cache;
 
-    private final Map<String, String> typeMapping = new HashMap<>();
-    private final Map<String, String> functionMapping = new HashMap<>();
     private final List<String> uniforms = new ArrayList<>();
     private final Map<String, String> uniformTypes = new HashMap<>();
-    private final Map<String, String> variableDeclarations = new HashMap<>();
+    private final Map<String, GLSLParser.VariableDeclaration> uniformDeclarations = new HashMap<>();
     private boolean inMainFunction = false;
     private boolean inFunction = false;
-    private int indentLevel = 0;
-    private StringBuilder outputBuilder = new StringBuilder();
+    // В теле main уже выведен return output (добавлять его в конце не нужно)
+    private boolean mainReturnEmitted = false;
+    private CodeWriter out = new CodeWriter(new StringBuilder());
+    // Переиспользуемые буферы, чтобы не выделять списки на каждый узел
+    private final List<GLSLParser.BinaryExpression> binaryChain = new ArrayList<>();
+    private final List<String> argTypes = new ArrayList<>();
     private Set<String> definedFunctions = new HashSet<>();
+    // Объявления с точностью lowp/mediump выводятся как min16float
+    private boolean minPrecision = false;
+    // Uniform-переменные в cbuffer идут в порядке объявления (совместимость с готовым ABI)
+    private boolean preserveUniformOrder = false;
+    // Разделение констант на cbuffer по частоте обновления (null - один cbuffer Constants)
+    private UniformClassifier uniformClassifier;
+    // cbuffer последней генерации: имя -> раскладка, имя -> номер регистра b#
+    private final Map<String, ConstantBufferLayout> constantBuffers = new LinkedHashMap<>();
+    private final Map<String, Integer> bufferRegisters = new HashMap<>();
+    // Неиспользуемые глобальные объявления последней генерации ("uniform float bias")
+    private final List<String> removedGlobals = new ArrayList<>();
+    // Общие SamplerState для текстур; регистры s# последней генерации по именам сэмплеров
+    private SamplerStates samplerStates = new SamplerStates();
+    private final Map<String, Integer> samplerRegisters = new LinkedHashMap<>();
+
+    static {
+        Map<String, String> typeMapping = new HashMap<>();
 
-    public HLSLGenerator() {
-        initializeMappings();
-    }
-
-    private void initializeMappings() {
         // Типы данных
         typeMapping.put("vec2", "float2");
         typeMapping.put("vec3", "float3");
@@ -35,150 +66,548 @@ public class HLSLGenerator implements GLSLParser.ASTVisitor<String> {
         typeMapping.put("int", "int");
         typeMapping.put("bool", "bool");
 
-        // Встроенные функции
-        functionMapping.put("texture", "tex2D");
-        functionMapping.put("texture2D", "tex2D");
-        functionMapping.put("textureCube", "texCUBE");
-        functionMapping.put("mix", "lerp");
-        functionMapping.put("smoothstep", "smoothstep");
-        functionMapping.put("length", "length");
-        functionMapping.put("sin", "sin");
-        functionMapping.put("cos", "cos");
-        functionMapping.put("tan", "tan");
-        functionMapping.put("fract", "frac");
-        functionMapping.put("floor", "floor");
-        functionMapping.put("ceil", "ceil");
-        functionMapping.put("mod", "fmod");
-        functionMapping.put("pow", "pow");
-        functionMapping.put("exp", "exp");
-        functionMapping.put("log", "log");
-        functionMapping.put("sqrt", "sqrt");
-        functionMapping.put("abs", "abs");
-        functionMapping.put("min", "min");
-        functionMapping.put("max", "max");
-        functionMapping.put("clamp", "clamp");
-        functionMapping.put("step", "step");
-        functionMapping.put("dot", "dot");
+        TYPE_MAPPING = Collections.unmodifiableMap(typeMapping);
+    }
+
+    public HLSLGenerator() {
+        this(null);
+    }
+
+    // Генератор, переиспользующий код неизменённых функций и блока cbuffer
+    public HLSLGenerator(GenerationCache cache) {
+        this.cache = cache;
+    }
+
+    // Включает вывод min16float/min16floatN для локальных переменных, параметров и
+    // результатов функций с квалификатором lowp или mediump (в том числе выставленным
+    // оптимизатором); uniform-переменные в cbuffer остаются полной точности
+    public void setMinPrecision(boolean minPrecision) {
+        this.minPrecision = minPrecision;
+    }
+
+    public boolean isMinPrecision() {
+        return minPrecision;
+    }
+
+    // Отключает перестановку uniform-переменных для уменьшения выравнивания в cbuffer
+    public void setPreserveUniformOrder(boolean preserveUniformOrder) {
+        this.preserveUniformOrder = preserveUniformOrder;
+    }
+
+    public boolean isPreserveUniformOrder() {
+        return preserveUniformOrder;
+    }
+
+    // Группы PerFrame (b0), PerMaterial (b1) и PerObject (b2) вместо одного cbuffer
+    public void setUniformClassifier(UniformClassifier uniformClassifier) {
+        this.uniformClassifier = uniformClassifier;
+    }
+
+    public UniformClassifier getUniformClassifier() {
+        return uniformClassifier;
+    }
+
+    // Ключи состояний сэмплеров: текстуры с одинаковым ключом делят один SamplerState
+    public void setSamplerStates(SamplerStates samplerStates) {
+        this.samplerStates = samplerStates;
+    }
+
+    public SamplerStates getSamplerStates() {
+        return samplerStates;
+    }
+
+    // Объявленные SamplerState последней генерации и их регистры s#
+    public Map<String, Integer> getSamplerRegisters() {
+        return Collections.unmodifiableMap(samplerRegisters);
+    }
+
+    // Uniform-константы, текстуры и входы, которые не читает код, достижимый из main.
+    // Uniform-переменные и текстуры не выводятся; входы пока не попадают в PSInput,
+    // и список сообщает, какие из них можно убрать из выхода вершинного шейдера
+    public List<String> getRemovedGlobals() {
+        return Collections.unmodifiableList(removedGlobals);
+    }
+
+    // Раскладки cbuffer последней генерации по именам (пусто, если uniform-констант нет)
+    public Map<String, ConstantBufferLayout> getConstantBufferLayouts() {
+        return Collections.unmodifiableMap(constantBuffers);
     }
 
     public String generate(GLSLParser.Program program) {
-        outputBuilder = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        generate(program, sb);
+        return sb.toString();
+    }
+
+    // Потоковая генерация: код пишется в переданный приёмник по мере обхода
+    // (ошибки ввода-вывода приёмника пробрасываются как UncheckedIOException)
+    public void generate(GLSLParser.Program program, Appendable output) {
+        out = new CodeWriter(output);
+        generateProgram(program);
+    }
 
+    private void generateProgram(GLSLParser.Program program) {
         // Сначала собираем информацию о программе
         collectInfo(program);
+        CallGraph callGraph = CallGraph.build(program);
+
+        // Отбрасываем uniform-переменные, которые не читает ни одна достижимая функция
+        removeUnusedGlobals(program, callGraph);
+
+        // Генерируем используемые пользовательские структуры
+        generateStructs(program, callGraph);
 
         // Генерируем uniform переменные
-        generateUniforms();
+        generateUniforms(program, callGraph);
 
-        // Генерируем пользовательские функции (кроме main)
-        generateUserFunctions(program);
+        // Вспомогательные функции для встроенных функций GLSL без аналога в HLSL
+        generateHelpers(callGraph);
 
-        // Генерируем структуры для ввода/вывода
-        outputBuilder.append("struct PSInput\n{\n");
-        outputBuilder.append("    float4 position : SV_POSITION;\n");
-        outputBuilder.append("};\n\n");
+        // Генерируем достижимые из main пользовательские функции
+        generateUserFunctions(callGraph);
 
-        outputBuilder.append("struct PSOutput\n{\n");
-        outputBuilder.append("    float4 color : SV_TARGET;\n");
-        outputBuilder.append("};\n\n");
+        // Генерируем структуры для ввода/вывода
+        generateIOStructs();
 
         // Генерируем main функцию
         generateMainFunction(program);
+    }
 
-        return outputBuilder.toString();
+    // Параллельный режим: каждая функция и main выводятся отдельной задачей на fork-join пуле
+    // в собственный буфер, затем буферы склеиваются в том же порядке, что и в generate(),
+    // поэтому результат побайтно совпадает с последовательным
+    public String generateParallel(GLSLParser.Program program) {
+        return generateParallel(program, ForkJoinPool.commonPool());
+    }
+
+    public String generateParallel(GLSLParser.Program program, ForkJoinPool pool) {
+        collectInfo(program);
+        CallGraph callGraph = CallGraph.build(program);
+
+        List<GLSLParser.FunctionDeclaration> functions = new ArrayList<>();
+        List<ForkJoinTask<CharSequence>> tasks = new ArrayList<>();
+        for (GLSLParser.FunctionDeclaration func : callGraph.emissionOrder(CallGraph.ENTRY_POINT)) {
+            if (!func.name.equals("main")) {
+                functions.add(func);
+                tasks.add(pool.submit(() -> fork().emitFunction(func)));
+            }
+        }
+        GLSLParser.FunctionDeclaration main = findMainFunction(program);
+        ForkJoinTask<CharSequence> mainTask = main != null
+                ? pool.submit(() -> fork().emitFunction(main))
+                : null;
+
+        // Структуры и cbuffer выводятся в текущем потоке, пока задачи работают
+        StringBuilder sb = new StringBuilder();
+        out = new CodeWriter(sb);
+        removeUnusedGlobals(program, callGraph);
+        generateStructs(program, callGraph);
+        generateUniforms(program, callGraph);
+        generateHelpers(callGraph);
+        for (int i = 0; i < tasks.size(); i++) {
+            definedFunctions.add(functions.get(i).name);
+            sb.append(tasks.get(i).join()).append('\n');
+        }
+        generateIOStructs();
+        if (mainTask != null) {
+            sb.append(mainTask.join());
+        }
+        return sb.toString();
+    }
+
+    // Код одной функции в отдельном буфере (или из кэша). Всё изменяемое состояние
+    // вывода (писатель, отступы, флаги main) принадлежит этому генератору
+    private CharSequence emitFunction(GLSLParser.FunctionDeclaration func) {
+        GenerationCache.Key key = null;
+        if (cache != null) {
+            key = functionKey(func);
+            String text = cache.get(key);
+            if (text != null) {
+                return text;
+            }
+        }
+
+        StringBuilder code = new StringBuilder();
+        CodeWriter saved = out;
+        out = new CodeWriter(code);
+        if (func.name.equals("main")) {
+            generateMainFunction(func);
+        } else {
+            generateFunctionDeclaration(func);
+        }
+        out = saved;
+
+        if (key != null) {
+            cache.put(key, code.toString());
+        }
+        return code;
+    }
+
+    // Генератор с теми же настройками для параллельного вывода функции
+    private HLSLGenerator fork() {
+        HLSLGenerator generator = new HLSLGenerator(cache);
+        generator.minPrecision = minPrecision;
+        generator.preserveUniformOrder = preserveUniformOrder;
+        generator.uniformClassifier = uniformClassifier;
+        generator.samplerStates = samplerStates;
+        return generator;
+    }
+
+    // Ключ кэша функции: канонический текст AST и типы её узлов в порядке обхода;
+    // от режима min16float и имён сэмплеров текст тоже зависит
+    private GenerationCache.Key functionKey(GLSLParser.FunctionDeclaration func) {
+        ASTFingerprint fingerprint = ASTFingerprint.of(func);
+        return new GenerationCache.Key(fingerprint.getText() + '\n' + fingerprint.getTypes()
+                + '\n' + samplerStates.describe() + (minPrecision ? "\nmin16" : ""));
+    }
+
+    private GLSLParser.FunctionDeclaration findMainFunction(GLSLParser.Program program) {
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration
+                    && ((GLSLParser.FunctionDeclaration) decl).name.equals("main")) {
+                return (GLSLParser.FunctionDeclaration) decl;
+            }
+        }
+        return null;
     }
 
     private void collectInfo(GLSLParser.Program program) {
+        uniforms.clear();
+        uniformTypes.clear();
+        uniformDeclarations.clear();
+
         for (GLSLParser.ASTNode decl : program.declarations) {
             if (decl instanceof GLSLParser.VariableDeclaration) {
-                GLSLParser.VariableDeclaration varDecl = (GLSLParser.VariableDeclaration) decl;
-                if (varDecl.isUniform) {
-                    uniforms.add(varDecl.name);
-                    uniformTypes.put(varDecl.name, varDecl.type);
-                }
+                collectUniform((GLSLParser.VariableDeclaration) decl);
             }
         }
     }
 
-    private void generateUniforms() {
+    private void collectUniform(GLSLParser.VariableDeclaration varDecl) {
+        if (varDecl.isUniform) {
+            uniforms.add(varDecl.name);
+            uniformTypes.put(varDecl.name, varDecl.type);
+            uniformDeclarations.put(varDecl.name, varDecl);
+        }
+    }
+
+    private void removeUnusedGlobals(GLSLParser.Program program, CallGraph callGraph) {
+        removedGlobals.clear();
+        Set<String> used = callGraph.namesUsedFrom(CallGraph.ENTRY_POINT);
+        for (GLSLParser.ASTNode node : program.declarations) {
+            if (!(node instanceof GLSLParser.VariableDeclaration)) {
+                continue;
+            }
+            GLSLParser.VariableDeclaration decl = (GLSLParser.VariableDeclaration) node;
+            String kind = decl.isUniform ? "uniform" : decl.isAttribute ? "attribute"
+                    : decl.isVarying ? "varying" : decl.isInput ? "in" : null;
+            if (kind == null || used.contains(decl.name)) {
+                continue;
+            }
+            removedGlobals.add(kind + " " + decl.type + " " + decl.name);
+            if (decl.isUniform && uniformTypes.remove(decl.name) != null) {
+                uniforms.remove(decl.name);
+                uniformDeclarations.remove(decl.name);
+            }
+        }
+    }
+
+    private void generateUniforms(GLSLParser.Program program, CallGraph callGraph) {
+        constantBuffers.clear();
+        bufferRegisters.clear();
+        samplerRegisters.clear();
         if (uniforms.isEmpty()) return;
 
-        outputBuilder.append("cbuffer Constants : register(b0)\n{\n");
+        // Текстуры - ресурсы, а не константы: они объявляются вне cbuffer
+        List<String> resources = new ArrayList<>();
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        if (uniformClassifier != null) {
+            for (UniformClassifier.Frequency frequency : UniformClassifier.Frequency.values()) {
+                groups.put(frequency.bufferName, new ArrayList<>());
+                bufferRegisters.put(frequency.bufferName, frequency.ordinal());
+            }
+        } else {
+            groups.put("Constants", new ArrayList<>());
+            bufferRegisters.put("Constants", 0);
+        }
         for (String uniform : uniforms) {
-            String type = uniformTypes.get(uniform);
-            String hlslType = mapType(type);
-            outputBuilder.append("    ").append(hlslType).append(" ").append(uniform).append(";\n");
+            if (uniformTypes.get(uniform).startsWith("sampler")) {
+                resources.add(uniform);
+            } else if (uniformClassifier != null) {
+                groups.get(uniformClassifier.classify(uniformDeclarations.get(uniform)).bufferName).add(uniform);
+            } else {
+                groups.get("Constants").add(uniform);
+            }
         }
-        outputBuilder.append("};\n\n");
-    }
 
-    private void generateUserFunctions(GLSLParser.Program program) {
+        // Сэмплер на каждый ключ используемых текстур; текстура-параметр функции
+        // читается через сэмплер ключа по умолчанию
+        for (String resource : resources) {
+            samplerRegisters.putIfAbsent(SamplerStates.samplerName(samplerStates.keyOf(resource)),
+                    samplerRegisters.size());
+        }
+        if (hasSamplerParameters(callGraph)) {
+            samplerRegisters.putIfAbsent(SamplerStates.samplerName(samplerStates.getDefaultKey()),
+                    samplerRegisters.size());
+        }
+
+        Map<String, GLSLParser.StructDeclaration> structs = new HashMap<>();
         for (GLSLParser.ASTNode decl : program.declarations) {
-            if (decl instanceof GLSLParser.FunctionDeclaration) {
-                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
-                if (!func.name.equals("main")) {
-                    definedFunctions.add(func.name);
-                    outputBuilder.append(generateFunctionDeclaration(func));
-                    outputBuilder.append("\n");
+            if (decl instanceof GLSLParser.StructDeclaration) {
+                structs.put(((GLSLParser.StructDeclaration) decl).name, (GLSLParser.StructDeclaration) decl);
+            }
+        }
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            if (!group.getValue().isEmpty()) {
+                constantBuffers.put(group.getKey(), ConstantBufferLayout.build(
+                        group.getValue(), uniformTypes, structs, preserveUniformOrder));
+            }
+        }
+
+        if (cache != null) {
+            // Текст зависит только от раскладок cbuffer и списка ресурсов
+            StringBuilder layout = new StringBuilder();
+            for (Map.Entry<String, ConstantBufferLayout> buffer : constantBuffers.entrySet()) {
+                layout.append("cbuffer ").append(buffer.getKey()).append(' ')
+                        .append(bufferRegisters.get(buffer.getKey())).append('\n');
+                for (ConstantBufferLayout.Entry entry : buffer.getValue().getEntries()) {
+                    layout.append(entry.type).append(' ').append(entry.name).append(' ')
+                            .append(entry.offset).append('\n');
                 }
             }
+            for (String resource : resources) {
+                layout.append("resource ").append(uniformTypes.get(resource)).append(' ')
+                        .append(resource).append('\n');
+            }
+            for (String sampler : samplerRegisters.keySet()) {
+                layout.append("sampler ").append(sampler).append('\n');
+            }
+            GenerationCache.Key key = new GenerationCache.Key(layout.toString());
+            String text = cache.get(key);
+            if (text == null) {
+                StringBuilder code = new StringBuilder();
+                CodeWriter saved = out;
+                out = new CodeWriter(code);
+                writeUniforms(resources);
+                out = saved;
+                text = code.toString();
+                cache.put(key, text);
+            }
+            out.write(text);
+            return;
         }
+        writeUniforms(resources);
     }
 
-    private void generateMainFunction(GLSLParser.Program program) {
+    private void writeUniforms(List<String> resources) {
+        for (Map.Entry<String, ConstantBufferLayout> buffer : constantBuffers.entrySet()) {
+            out.write("cbuffer ").write(buffer.getKey())
+                    .write(" : register(b").write(String.valueOf(bufferRegisters.get(buffer.getKey()))).write(")\n{\n");
+            for (ConstantBufferLayout.Entry entry : buffer.getValue().getEntries()) {
+                out.write("    ").write(mapType(entry.type)).write(' ').write(entry.name)
+                        .write(" : packoffset(").write(entry.packOffset()).write(");\n");
+            }
+            out.write("};\n\n");
+        }
+        if (!resources.isEmpty()) {
+            for (int i = 0; i < resources.size(); i++) {
+                String resource = resources.get(i);
+                out.write(mapType(uniformTypes.get(resource))).write(' ').write(resource)
+                        .write(" : register(t").write(String.valueOf(i)).write(");\n");
+            }
+            out.write('\n');
+        }
+        if (!samplerRegisters.isEmpty()) {
+            for (Map.Entry<String, Integer> sampler : samplerRegisters.entrySet()) {
+                out.write("SamplerState ").write(sampler.getKey())
+                        .write(" : register(s").write(String.valueOf(sampler.getValue())).write(");\n");
+            }
+            out.write('\n');
+        }
+    }
+
+    private static boolean hasSamplerParameters(CallGraph callGraph) {
+        for (GLSLParser.FunctionDeclaration func : callGraph.emissionOrder(CallGraph.ENTRY_POINT)) {
+            for (GLSLParser.Parameter param : func.parameters) {
+                if (param.type.startsWith("sampler")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void generateIOStructs() {
+        out.write("struct PSInput\n{\n");
+        out.write("    float4 position : SV_POSITION;\n");
+        out.write("};\n\n");
+
+        out.write("struct PSOutput\n{\n");
+        out.write("    float4 color : SV_TARGET;\n");
+        out.write("};\n\n");
+    }
+
+    // Структуры, на которые ссылаются достижимые функции, uniform-переменные
+    // или поля других используемых структур; выводятся в порядке объявления
+    private void generateStructs(GLSLParser.Program program, CallGraph callGraph) {
+        List<GLSLParser.StructDeclaration> structs = new ArrayList<>();
         for (GLSLParser.ASTNode decl : program.declarations) {
-            if (decl instanceof GLSLParser.FunctionDeclaration) {
-                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
-                if (func.name.equals("main")) {
-                    inMainFunction = true;
-                    indentLevel = 0;
-
-                    outputBuilder.append("PSOutput main(PSInput input)\n");
-                    outputBuilder.append("{\n");
-                    indentLevel++;
-
-                    // Добавляем объявление output
-                    outputBuilder.append(getIndent()).append("PSOutput output;\n");
-
-                    // Генерируем тело функции
-                    if (func.body != null) {
-                        generateFunctionBody(func.body);
-                    }
-
-                    // Добавляем return если его нет
-                    if (!outputBuilder.toString().contains("return output")) {
-                        outputBuilder.append(getIndent()).append("return output;\n");
-                    }
-
-                    indentLevel--;
-                    outputBuilder.append("}\n");
-
-                    inMainFunction = false;
-                    break;
+            if (decl instanceof GLSLParser.StructDeclaration) {
+                structs.add((GLSLParser.StructDeclaration) decl);
+            }
+        }
+        if (structs.isEmpty()) return;
+
+        Set<String> used = new HashSet<>(callGraph.namesUsedFrom(CallGraph.ENTRY_POINT));
+        used.addAll(uniformTypes.values());
+
+        // Поле может ссылаться только на структуру, объявленную выше, поэтому идём снизу вверх
+        boolean[] live = new boolean[structs.size()];
+        for (int i = structs.size() - 1; i >= 0; i--) {
+            GLSLParser.StructDeclaration struct = structs.get(i);
+            if (used.contains(struct.name)) {
+                live[i] = true;
+                for (GLSLParser.VariableDeclaration field : struct.fields) {
+                    used.add(field.type);
                 }
             }
         }
+
+        for (int i = 0; i < structs.size(); i++) {
+            if (!live[i]) continue;
+            GLSLParser.StructDeclaration struct = structs.get(i);
+            out.write("struct ").write(struct.name).write("\n{\n");
+            for (GLSLParser.VariableDeclaration field : struct.fields) {
+                out.write("    ").write(mapType(field.type)).write(' ').write(field.name).write(";\n");
+            }
+            out.write("};\n\n");
+        }
     }
 
-    private String generateFunctionDeclaration(GLSLParser.FunctionDeclaration func) {
-        StringBuilder sb = new StringBuilder();
-        String returnType = mapType(func.returnType);
+    // Вспомогательная функция на каждую использованную перегрузку mod и outerProduct;
+    // сигнатуры сортируются, чтобы текст не зависел от порядка вызовов
+    private void generateHelpers(CallGraph callGraph) {
+        Set<String> signatures = new TreeSet<>();
+        for (GLSLParser.FunctionDeclaration func : callGraph.emissionOrder(CallGraph.ENTRY_POINT)) {
+            for (GLSLParser.ASTNode node : ASTFingerprint.nodesOf(func).getNodes()) {
+                if (!(node instanceof GLSLParser.CallExpression)
+                        || !(((GLSLParser.CallExpression) node).callee instanceof GLSLParser.Identifier)) {
+                    continue;
+                }
+                GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+                String name = ((GLSLParser.Identifier) call.callee).name;
+                if (!name.equals("mod") && !name.equals("outerProduct") || call.arguments.size() != 2) {
+                    continue;
+                }
+                String left = call.arguments.get(0).resolvedType;
+                String right = call.arguments.get(1).resolvedType;
+                if (left != null && right != null) {
+                    // int-аргументы mod приводятся к float, как при разрешении перегрузки
+                    signatures.add(name + ' ' + promote(left) + ' ' + promote(right));
+                }
+            }
+        }
+        for (String signature : signatures) {
+            String[] parts = signature.split(" ");
+            String x = mapType(parts[1]);
+            String y = mapType(parts[2]);
+            if (parts[0].equals("mod")) {
+                out.write(x).write(" glsl_mod(").write(x).write(" x, ").write(y).write(" y)\n{\n")
+                        .write("    return x - y * floor(x / y);\n}\n\n");
+            } else {
+                // Столбец j результата - c * r[j]; столбцы GLSL выводятся строками HLSL,
+                // как в конструкторах матриц
+                int n = parts[1].charAt(3) - '0';
+                String mat = mapType("mat" + n);
+                out.write(mat).write(" glsl_outerProduct(").write(x).write(" c, ").write(y).write(" r)\n{\n")
+                        .write("    return ").write(mat).write('(');
+                for (int j = 0; j < n; j++) {
+                    out.write(j > 0 ? ", " : "").write("c * r.").write(String.valueOf("xyzw".charAt(j)));
+                }
+                out.write(");\n}\n\n");
+            }
+        }
+    }
+
+    private static String promote(String type) {
+        return type.equals("int") ? "float" : type;
+    }
+
+    // Функции выводятся в порядке зависимостей; не вызываемые из main не выводятся
+    private void generateUserFunctions(CallGraph callGraph) {
+        for (GLSLParser.FunctionDeclaration func : callGraph.emissionOrder(CallGraph.ENTRY_POINT)) {
+            if (!func.name.equals("main")) {
+                definedFunctions.add(func.name);
+                if (cache != null) {
+                    out.write(emitFunction(func));
+                } else {
+                    generateFunctionDeclaration(func);
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    private void generateMainFunction(GLSLParser.Program program) {
+        GLSLParser.FunctionDeclaration main = findMainFunction(program);
+        if (main != null && cache != null) {
+            out.write(emitFunction(main));
+        } else if (main != null) {
+            generateMainFunction(main);
+        }
+    }
+
+    private void generateMainFunction(GLSLParser.FunctionDeclaration func) {
+        inMainFunction = true;
+        mainReturnEmitted = false;
+        out.setIndentLevel(0);
+
+        out.write("PSOutput main(PSInput input)\n");
+        out.write("{\n");
+        out.indent();
+
+        // Добавляем объявление output
+        out.writeIndent().write("PSOutput output;\n");
+
+        // Генерируем тело функции
+        if (func.body != null) {
+            generateBlockBody(func.body);
+        }
+
+        // Добавляем return если его нет
+        if (!mainReturnEmitted) {
+            out.writeIndent().write("return output;\n");
+        }
+
+        out.dedent();
+        out.write("}\n");
+
+        inMainFunction = false;
+    }
 
-        sb.append(returnType).append(" ").append(func.name).append("(");
+    private void generateFunctionDeclaration(GLSLParser.FunctionDeclaration func) {
+        String returnType = mapType(func.returnType, func.returnPrecision);
+
+        out.write(returnType).write(' ').write(func.name).write('(');
 
         // Параметры
         for (int i = 0; i < func.parameters.size(); i++) {
             GLSLParser.Parameter param = func.parameters.get(i);
-            String paramType = mapType(param.type);
-            sb.append(paramType).append(" ").append(param.name != null ? param.name : "param" + i);
+            String paramType = mapType(param.type, param.precision);
+            out.write(paramType).write(' ');
+            if (param.name != null) {
+                out.write(param.name);
+            } else {
+                out.write("param").write(Integer.toString(i));
+            }
             if (i < func.parameters.size() - 1) {
-                sb.append(", ");
+                out.write(", ");
             }
         }
 
-        sb.append(")\n");
-        sb.append("{\n");
-        indentLevel++;
+        out.write(")\n");
+        out.write("{\n");
+        out.indent();
 
         // Сохраняем текущее состояние
         boolean wasInFunction = inFunction;
@@ -186,336 +615,404 @@ public class HLSLGenerator implements GLSLParser.ASTVisitor<String> {
 
         // Генерируем тело функции
         if (func.body != null) {
-            sb.append(generateBlockBody(func.body));
+            generateBlockBody(func.body);
         }
 
         inFunction = wasInFunction;
-        indentLevel--;
-        sb.append("}\n");
-
-        return sb.toString();
+        out.dedent();
+        out.write("}\n");
     }
 
-    private void generateFunctionBody(GLSLParser.BlockStatement body) {
+    // Операторы блока, каждый с новой строки. Пустые операторы (например, uniform)
+    // не выводятся; ';' не ставится после операторов, заканчивающихся блоком
+    private void generateBlockBody(GLSLParser.BlockStatement body) {
         for (GLSLParser.ASTNode stmt : body.statements) {
-            String stmtCode = stmt.accept(this);
-            if (!stmtCode.isEmpty()) {
-                outputBuilder.append(getIndent()).append(stmtCode);
-                if (!stmtCode.endsWith("}") && !stmtCode.endsWith("{")) {
-                    outputBuilder.append(";");
-                }
-                outputBuilder.append("\n");
+            long start = out.length();
+            out.beginLine();
+            stmt.accept(this);
+            if (out.length() == start) {
+                out.cancelLine();
+                continue;
             }
+            char last = out.lastChar();
+            if (last != '}' && last != '{') {
+                out.write(';');
+            }
+            out.write('\n');
         }
     }
 
-    private String generateBlockBody(GLSLParser.BlockStatement body) {
-        StringBuilder sb = new StringBuilder();
-        for (GLSLParser.ASTNode stmt : body.statements) {
-            String stmtCode = stmt.accept(this);
-            if (!stmtCode.isEmpty()) {
-                sb.append(getIndent()).append(stmtCode);
-                if (!stmtCode.endsWith("}") && !stmtCode.endsWith("{")) {
-                    sb.append(";");
-                }
-                sb.append("\n");
-            }
+    // Вложенный оператор if/for/while: блок на той же строке, иначе с новой строки
+    private void generateNestedStatement(GLSLParser.ASTNode stmt) {
+        if (!(stmt instanceof GLSLParser.BlockStatement)) {
+            out.write('\n').writeIndent();
         }
-        return sb.toString();
+        stmt.accept(this);
     }
 
     private String mapType(String glslType) {
-        return typeMapping.getOrDefault(glslType, glslType);
+        return TYPE_MAPPING.getOrDefault(glslType, glslType);
     }
 
-    private String getIndent() {
-        return "    ".repeat(indentLevel);
+    // float -> min16float, vec3 -> min16float3, mat4 -> min16float4x4; lowp тоже
+    // отображается в min16float: min10float поддерживается не всеми профилями
+    private String mapType(String glslType, String precision) {
+        String type = mapType(glslType);
+        if (minPrecision && ("mediump".equals(precision) || "lowp".equals(precision))
+                && type.startsWith("float")) {
+            return "min16" + type;
+        }
+        return type;
+    }
+
+    // Запись вида "123.", "1.5" или ".5" (без экспоненты и суффикса)
+    private static boolean isPlainDecimal(String value) {
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c == '.') {
+                dots++;
+            } else {
+                return false;
+            }
+        }
+        return dots == 1 && digits > 0;
+    }
+
+    private boolean isOutColorAssignment(GLSLParser.BinaryExpression expr) {
+        return inMainFunction && expr.operator.equals("=")
+                && expr.left instanceof GLSLParser.Identifier
+                && ((GLSLParser.Identifier) expr.left).name.equals("outColor");
     }
 
     // Visitor методы ========================================================
 
     @Override
-    public String visit(GLSLParser.Program program) {
-        return generate(program);
+    public Void visit(GLSLParser.Program program) {
+        generateProgram(program);
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.FunctionDeclaration func) {
+    public Void visit(GLSLParser.FunctionDeclaration func) {
         // Уже обработано в generateUserFunctions
-        return "";
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.VariableDeclaration decl) {
+    public Void visit(GLSLParser.VariableDeclaration decl) {
         if (decl.isUniform) {
-            return ""; // Uniform уже обработаны
+            return null; // Uniform уже обработаны
         }
 
-        StringBuilder sb = new StringBuilder();
-        String mappedType = mapType(decl.type);
-
-        sb.append(mappedType).append(" ").append(decl.name);
+        out.write(mapType(decl.type, decl.precision)).write(' ').write(decl.name);
 
         if (decl.initializer != null) {
-            sb.append(" = ").append(decl.initializer.accept(this));
+            out.write(" = ");
+            decl.initializer.accept(this);
         }
-
-        variableDeclarations.put(decl.name, mappedType);
-        return sb.toString();
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.BlockStatement block) {
+    public Void visit(GLSLParser.BlockStatement block) {
         // Для вложенных блоков увеличиваем отступ
-        indentLevel++;
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n");
-
-        for (GLSLParser.ASTNode stmt : block.statements) {
-            String stmtCode = stmt.accept(this);
-            if (!stmtCode.isEmpty()) {
-                sb.append(getIndent()).append(stmtCode);
-                if (!stmtCode.endsWith("}") && !stmtCode.endsWith("{")) {
-                    sb.append(";");
-                }
-                sb.append("\n");
-            }
-        }
-
-        indentLevel--;
-        sb.append(getIndent()).append("}");
-        return sb.toString();
+        out.write("{\n");
+        out.indent();
+        generateBlockBody(block);
+        out.dedent();
+        out.writeIndent().write('}');
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.ExpressionStatement stmt) {
-        String expr = stmt.expression.accept(this);
-        // Если это присваивание outColor в main функции, заменяем на output.color
-        if (inMainFunction && expr.contains("outColor = ")) {
-            expr = expr.replace("outColor = ", "output.color = ");
-        }
-        return expr;
+    public Void visit(GLSLParser.ExpressionStatement stmt) {
+        // Присваивание outColor в main выводится как output.color (см. BinaryExpression)
+        stmt.expression.accept(this);
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.ReturnStatement stmt) {
+    public Void visit(GLSLParser.ReturnStatement stmt) {
         if (inMainFunction) {
             if (stmt.argument != null) {
-                String returnExpr = stmt.argument.accept(this);
-                // Если возвращаем outColor, заменяем на output.color
-                if (returnExpr.equals("outColor")) {
-                    returnExpr = "output.color";
-                }
-                return "output.color = " + returnExpr + "; return output";
+                out.write("output.color = ");
+                stmt.argument.accept(this);
+                out.write("; ");
             }
-            return "return output";
+            out.write("return output");
+            mainReturnEmitted = true;
         } else {
-            return "return" + (stmt.argument != null ? " " + stmt.argument.accept(this) : "");
+            out.write("return");
+            if (stmt.argument != null) {
+                out.write(' ');
+                stmt.argument.accept(this);
+            }
         }
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.BinaryExpression expr) {
-        String left = expr.left.accept(this);
-        String right = expr.right.accept(this);
-
-        // Специальная обработка для присваивания outColor
-        if (inMainFunction && expr.operator.equals("=")) {
-            if (expr.left instanceof GLSLParser.Identifier) {
-                GLSLParser.Identifier id = (GLSLParser.Identifier) expr.left;
-                if (id.name.equals("outColor")) {
-                    return "output.color = " + right;
-                }
-            }
+    public Void visit(GLSLParser.BinaryExpression expr) {
+        // Цепочка вида ((a + b) + c) + d обходится итеративно: глубина рекурсии
+        // не растёт с длиной цепочки. Буфер общий, вложенные цепочки (в правых
+        // операндах) занимают его хвост начиная с base
+        List<GLSLParser.BinaryExpression> chain = binaryChain;
+        int base = chain.size();
+        GLSLParser.ASTNode node = expr;
+        while (node instanceof GLSLParser.BinaryExpression) {
+            chain.add((GLSLParser.BinaryExpression) node);
+            node = ((GLSLParser.BinaryExpression) node).left;
+        }
+        int innermostIndex = chain.size() - 1;
+
+        // Специальная обработка для присваивания outColor (левая часть - идентификатор,
+        // поэтому возможна только у самого внутреннего выражения цепочки)
+        GLSLParser.BinaryExpression innermost = chain.get(innermostIndex);
+        boolean outColor = isOutColorAssignment(innermost);
+
+        for (int i = base; i < innermostIndex + (outColor ? 0 : 1); i++) {
+            out.write('(');
         }
 
-        // Заменяем операторы
-        String op = expr.operator;
-        if (op.equals("&&")) op = "&&";
-        if (op.equals("||")) op = "||";
-        if (op.equals("==")) op = "==";
-        if (op.equals("!=")) op = "!=";
-        if (op.equals("<=")) op = "<=";
-        if (op.equals(">=")) op = ">=";
+        if (outColor) {
+            out.write("output.color = ");
+        } else {
+            innermost.left.accept(this);
+            out.write(' ').write(innermost.operator).write(' ');
+        }
+        innermost.right.accept(this);
+        if (!outColor) {
+            out.write(')');
+        }
+
+        for (int i = innermostIndex - 1; i >= base; i--) {
+            GLSLParser.BinaryExpression current = chain.get(i);
+            out.write(' ').write(current.operator).write(' ');
+            current.right.accept(this);
+            out.write(')');
+        }
 
-        return "(" + left + " " + op + " " + right + ")";
+        chain.subList(base, chain.size()).clear();
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.CallExpression expr) {
-        StringBuilder sb = new StringBuilder();
-
-        // Получаем имя функции
-        String funcName = "";
+    public Void visit(GLSLParser.CallExpression expr) {
         if (expr.callee instanceof GLSLParser.Identifier) {
-            funcName = ((GLSLParser.Identifier) expr.callee).name;
-        } else {
-            funcName = expr.callee.accept(this);
-        }
+            String funcName = ((GLSLParser.Identifier) expr.callee).name;
+
+            // Заменяем имена встроенных функций (перегрузка выбирается по типам аргументов)
+            String mappedFuncName = funcName;
+            if (PRELUDE.isBuiltInFunction(funcName)) {
+                // Буфер освобождается до обхода аргументов, поэтому вложенные вызовы его не портят
+                for (GLSLParser.ASTNode arg : expr.arguments) {
+                    argTypes.add(arg.resolvedType);
+                }
+                mappedFuncName = PRELUDE.mapFunctionName(funcName, argTypes);
+                argTypes.clear();
+            }
 
-        // Заменяем имена встроенных функций
-        String mappedFuncName = functionMapping.getOrDefault(funcName, funcName);
+            // Чтение текстуры - метод объекта: tex.Sample(sampler_default, uv)
+            if (isSampleMethod(mappedFuncName) && !expr.arguments.isEmpty()) {
+                writeSampleCall(expr, mappedFuncName);
+                return null;
+            }
 
-        // Проверяем, не является ли это конструктором типа
-        if (typeMapping.containsKey(funcName)) {
-            mappedFuncName = mapType(funcName);
+            // Проверяем, не является ли это конструктором типа
+            if (TYPE_MAPPING.containsKey(funcName)) {
+                mappedFuncName = mapType(funcName);
+            }
+            out.write(mappedFuncName);
+        } else {
+            expr.callee.accept(this);
         }
 
-        sb.append(mappedFuncName).append("(");
+        out.write('(');
 
         // Аргументы
         for (int i = 0; i < expr.arguments.size(); i++) {
-            sb.append(expr.arguments.get(i).accept(this));
+            expr.arguments.get(i).accept(this);
             if (i < expr.arguments.size() - 1) {
-                sb.append(", ");
+                out.write(", ");
             }
         }
 
-        sb.append(")");
-        return sb.toString();
+        out.write(')');
+        return null;
+    }
+
+    private static boolean isSampleMethod(String hlslName) {
+        return hlslName.startsWith("Sample");
+    }
+
+    // SampleProj/SampleProjBias - Sample/SampleBias с координатой p.xy / p.z (или p.w для vec4)
+    private void writeSampleCall(GLSLParser.CallExpression expr, String method) {
+        GLSLParser.ASTNode texture = expr.arguments.get(0);
+        String key = texture instanceof GLSLParser.Identifier
+                ? samplerStates.keyOf(((GLSLParser.Identifier) texture).name)
+                : samplerStates.getDefaultKey();
+        boolean projective = method.startsWith("SampleProj");
+        texture.accept(this);
+        out.write('.').write(projective ? "Sample" + method.substring("SampleProj".length()) : method)
+                .write('(').write(SamplerStates.samplerName(key));
+        for (int i = 1; i < expr.arguments.size(); i++) {
+            out.write(", ");
+            GLSLParser.ASTNode arg = expr.arguments.get(i);
+            if (projective && i == 1) {
+                writeProjected(arg);
+            } else {
+                arg.accept(this);
+            }
+        }
+        out.write(')');
+    }
+
+    private void writeProjected(GLSLParser.ASTNode coord) {
+        String divisor = "vec4".equals(coord.resolvedType) ? ".w" : ".z";
+        // Бинарные выражения выводятся в скобках сами
+        boolean simple = coord instanceof GLSLParser.Identifier || coord instanceof GLSLParser.BinaryExpression
+                || coord instanceof GLSLParser.CallExpression;
+        out.write('(');
+        for (String part : new String[]{".xy / ", divisor}) {
+            out.write(simple ? "" : "(");
+            coord.accept(this);
+            out.write(simple ? "" : ")").write(part);
+        }
+        out.write(')');
     }
 
     @Override
-    public String visit(GLSLParser.Identifier identifier) {
+    public Void visit(GLSLParser.Identifier identifier) {
         String name = identifier.name;
 
         // Заменяем gl_FragCoord в main функции
         if (inMainFunction && name.equals("gl_FragCoord")) {
-            return "input.position.xy";
+            out.write("input.position.xy");
+            return null;
         }
 
         // Заменяем outColor в main функции
         if (inMainFunction && name.equals("outColor")) {
-            return "output.color";
+            out.write("output.color");
+            return null;
         }
 
-        return name;
+        out.write(name);
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.Literal literal) {
+    public Void visit(GLSLParser.Literal literal) {
         String value = literal.raw;
-
-        // Преобразуем vec конструкторы
-        if (value.startsWith("vec")) {
-            for (Map.Entry<String, String> entry : typeMapping.entrySet()) {
-                if (value.contains(entry.getKey() + "(")) {
-                    value = value.replace(entry.getKey(), entry.getValue());
-                    break;
-                }
-            }
-        }
-
-        // Добавляем 'f' к float литералам
-        if (value.matches("\\d+\\.\\d*") || value.matches("\\.\\d+")) {
-            if (!value.endsWith("f")) {
-                value += "f";
-            }
+        out.write(value);
+
+        // Добавляем 'f' к float литералам (тип известен после семантического анализа,
+        // без него определяем по записи литерала)
+        boolean isFloat = literal.resolvedType != null
+                ? literal.resolvedType.equals("float") && value.indexOf('.') >= 0
+                : isPlainDecimal(value);
+        if (isFloat && !value.endsWith("f")) {
+            out.write('f');
         }
-
-        return value;
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.UnaryExpression expr) {
-        return expr.operator + expr.argument.accept(this);
+    public Void visit(GLSLParser.UnaryExpression expr) {
+        out.write(expr.operator);
+        expr.argument.accept(this);
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.TernaryExpression expr) {
-        return expr.test.accept(this) + " ? " +
-                expr.consequent.accept(this) + " : " +
-                expr.alternate.accept(this);
+    public Void visit(GLSLParser.TernaryExpression expr) {
+        expr.test.accept(this);
+        out.write(" ? ");
+        expr.consequent.accept(this);
+        out.write(" : ");
+        expr.alternate.accept(this);
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.MemberExpression expr) {
-        String object = expr.object.accept(this);
-        String property = expr.property.accept(this);
-
-        // Специальная обработка для gl_FragCoord.xy
-        if (object.equals("gl_FragCoord") && property.equals("xy") && inMainFunction) {
-            return "input.position.xy";
-        }
-
-        return object + "." + property;
+    public Void visit(GLSLParser.MemberExpression expr) {
+        // gl_FragCoord в main уже заменён на input.position.xy при выводе идентификатора
+        expr.object.accept(this);
+        out.write('.');
+        expr.property.accept(this);
+        return null;
     }
 
-    // Остальные методы visit (возвращают пустые строки)
-    @Override public String visit(GLSLParser.StructDeclaration struct) { return ""; }
-    @Override public String visit(GLSLParser.Parameter param) { return ""; }
-    @Override public String visit(GLSLParser.VariableStatement stmt) {
+    // Остальные методы visit (ничего не выводят)
+    @Override public Void visit(GLSLParser.StructDeclaration struct) { return null; }
+    @Override public Void visit(GLSLParser.Parameter param) { return null; }
+    @Override public Void visit(GLSLParser.VariableStatement stmt) {
         return stmt.declaration.accept(this);
     }
 
     @Override
-    public String visit(GLSLParser.IfStatement stmt) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("if (").append(stmt.test.accept(this)).append(") ");
-
-        if (stmt.consequent instanceof GLSLParser.BlockStatement) {
-            sb.append(stmt.consequent.accept(this));
-        } else {
-            sb.append("\n").append(getIndent()).append(stmt.consequent.accept(this));
-        }
+    public Void visit(GLSLParser.IfStatement stmt) {
+        writeAttribute(stmt.attribute);
+        out.write("if (");
+        stmt.test.accept(this);
+        out.write(") ");
+        generateNestedStatement(stmt.consequent);
 
         if (stmt.alternate != null) {
-            sb.append(" else ");
-            if (stmt.alternate instanceof GLSLParser.BlockStatement) {
-                sb.append(stmt.alternate.accept(this));
-            } else {
-                sb.append("\n").append(getIndent()).append(stmt.alternate.accept(this));
-            }
+            out.write(" else ");
+            generateNestedStatement(stmt.alternate);
         }
-
-        return sb.toString();
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.ForStatement stmt) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("for (");
+    public Void visit(GLSLParser.ForStatement stmt) {
+        writeAttribute(stmt.attribute);
+        out.write("for (");
 
         if (stmt.init != null) {
-            sb.append(stmt.init.accept(this));
+            stmt.init.accept(this);
         }
-        sb.append("; ");
+        out.write("; ");
 
         if (stmt.test != null) {
-            sb.append(stmt.test.accept(this));
+            stmt.test.accept(this);
         }
-        sb.append("; ");
+        out.write("; ");
 
         if (stmt.update != null) {
-            sb.append(stmt.update.accept(this));
+            stmt.update.accept(this);
         }
 
-        sb.append(") ");
+        out.write(") ");
 
         if (stmt.body != null) {
-            if (stmt.body instanceof GLSLParser.BlockStatement) {
-                sb.append(stmt.body.accept(this));
-            } else {
-                sb.append("\n").append(getIndent()).append(stmt.body.accept(this));
-            }
+            generateNestedStatement(stmt.body);
         }
-
-        return sb.toString();
+        return null;
     }
 
     @Override
-    public String visit(GLSLParser.WhileStatement stmt) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("while (").append(stmt.test.accept(this)).append(") ");
+    public Void visit(GLSLParser.WhileStatement stmt) {
+        writeAttribute(stmt.attribute);
+        out.write("while (");
+        stmt.test.accept(this);
+        out.write(") ");
 
         if (stmt.body != null) {
-            if (stmt.body instanceof GLSLParser.BlockStatement) {
-                sb.append(stmt.body.accept(this));
-            } else {
-                sb.append("\n").append(getIndent()).append(stmt.body.accept(this));
-            }
+            generateNestedStatement(stmt.body);
         }
+        return null;
+    }
 
-        return sb.toString();
+    // [unroll(N)], [loop], [branch] или [flatten] отдельной строкой перед оператором
+    private void writeAttribute(String attribute) {
+        if (attribute != null) {
+            out.write('[').write(attribute).write("]\n").writeIndent();
+        }
     }
 }
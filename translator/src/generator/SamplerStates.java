@@ -0,0 +1,60 @@
+package generator;
+
+import java.util.*;
+
+// Ключи состояний сэмплеров: текстуры с одинаковым ключом (фильтрация, адресация)
+// читаются через один SamplerState, поэтому число занятых слотов s# равно числу
+// разных ключей, а не числу текстур (в D3D11 слотов 16).
+// Текстура без явного ключа и текстура-параметр функции используют ключ по умолчанию.
+// Имя сэмплера строится из ключа, поэтому код функций не зависит от назначения регистров.
+public class SamplerStates {
+    public static final String DEFAULT_KEY = "default";
+    public static final int MAX_SAMPLER_SLOTS = 16;
+
+    private final String defaultKey;
+    private final Map<String, String> keys = new HashMap<>();
+
+    public SamplerStates() {
+        this(DEFAULT_KEY);
+    }
+
+    public SamplerStates(String defaultKey) {
+        this.defaultKey = defaultKey;
+    }
+
+    // Ключ состояния для текстуры, например "linear_wrap" или "point_clamp"
+    public SamplerStates assign(String texture, String key) {
+        keys.put(texture, key);
+        return this;
+    }
+
+    public String keyOf(String texture) {
+        return keys.getOrDefault(texture, defaultKey);
+    }
+
+    public String getDefaultKey() {
+        return defaultKey;
+    }
+
+    // point_clamp -> sampler_point_clamp
+    public static String samplerName(String key) {
+        StringBuilder name = new StringBuilder("sampler_");
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            name.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return name.toString();
+    }
+
+    // Текст настройки для ключей кэша генерации (пустой - настройка по умолчанию)
+    String describe() {
+        if (keys.isEmpty() && defaultKey.equals(DEFAULT_KEY)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(defaultKey);
+        for (Map.Entry<String, String> entry : new TreeMap<>(keys).entrySet()) {
+            sb.append(';').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
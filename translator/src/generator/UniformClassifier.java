@@ -0,0 +1,96 @@
+package generator;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Разделение uniform-констант по частоте обновления: движок перезагружает только
+// изменившийся cbuffer. Группа переменной определяется (в порядке приоритета):
+//  1. явной настройкой assign(name, frequency);
+//  2. аннотацией в комментарии: // @per_frame, // @per_material, // @per_object;
+//  3. соглашением об именах: слова имени (camelCase или через '_') сравниваются со
+//     словами объекта (model, world, mvp, ...) и кадра (time, view, camera, ...);
+//     слово объекта важнее: modelView зависит от объекта.
+// Остальные переменные - параметры материала.
+public class UniformClassifier {
+    public enum Frequency {
+        PER_FRAME("PerFrame", "per_frame"),
+        PER_MATERIAL("PerMaterial", "per_material"),
+        PER_OBJECT("PerObject", "per_object");
+
+        // Имя cbuffer; регистр b<N> - порядковый номер группы, поэтому он не зависит
+        // от того, какие группы есть в шейдере
+        public final String bufferName;
+        public final String annotation;
+
+        Frequency(String bufferName, String annotation) {
+            this.bufferName = bufferName;
+            this.annotation = annotation;
+        }
+    }
+
+    private static final Set<String> OBJECT_WORDS = new HashSet<>(Arrays.asList(
+            "model", "world", "object", "obj", "mvp", "instance", "normalmatrix", "bone", "bones", "skin"));
+    private static final Set<String> FRAME_WORDS = new HashSet<>(Arrays.asList(
+            "frame", "time", "view", "projection", "proj", "camera", "cam", "eye", "resolution",
+            "viewport", "screen"));
+
+    private final Map<String, Frequency> assigned = new HashMap<>();
+
+    // Явная группа переменной (важнее аннотации и имени)
+    public UniformClassifier assign(String name, Frequency frequency) {
+        assigned.put(name, frequency);
+        return this;
+    }
+
+    public Frequency classify(GLSLParser.VariableDeclaration decl) {
+        Frequency frequency = assigned.get(decl.name);
+        if (frequency != null) {
+            return frequency;
+        }
+        if (decl.annotation != null) {
+            for (Frequency candidate : Frequency.values()) {
+                if (candidate.annotation.equalsIgnoreCase(decl.annotation)) {
+                    return candidate;
+                }
+            }
+        }
+        return byName(decl.name);
+    }
+
+    private static Frequency byName(String name) {
+        List<String> words = words(name);
+        // normalMatrix - одно понятие, а не нормаль и матрица
+        words.add(name.toLowerCase());
+        boolean frame = false;
+        for (String word : words) {
+            if (OBJECT_WORDS.contains(word)) {
+                return Frequency.PER_OBJECT;
+            }
+            frame |= FRAME_WORDS.contains(word);
+        }
+        return frame ? Frequency.PER_FRAME : Frequency.PER_MATERIAL;
+    }
+
+    // u_worldMatrix -> [u, world, matrix]
+    private static List<String> words(String name) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean boundary = c == '_' || Character.isDigit(c)
+                    || Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1));
+            if (boundary && word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+            if (c != '_' && !Character.isDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+}
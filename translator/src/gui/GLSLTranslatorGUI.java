@@ -4,6 +4,8 @@ import lexer.*;
 import parser.*;
 import semantics.*;
 import generator.*;
+import optimizer.Optimizer;
+import optimizer.PrecisionLowering;
 
 import javax.swing.*;
 import java.awt.*;
@@ -13,6 +15,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.List;
+import java.util.Map;
 
 public class GLSLTranslatorGUI extends JFrame {
     private JTextArea glslInputArea;
@@ -20,6 +23,15 @@ public class GLSLTranslatorGUI extends JFrame {
     private JTextArea logArea;
     private JButton loadButton;
     private JButton translateButton;
+    // Пониженная точность (min16float) включается явно: не все цели её поддерживают
+    private JCheckBox minPrecisionBox;
+    // Порядок uniform-переменных в cbuffer сохраняется для совместимости с готовым ABI
+    private JCheckBox preserveUniformOrderBox;
+    // Отдельные cbuffer для констант кадра, материала и объекта
+    private JCheckBox splitConstantBuffersBox;
+    // Результаты проверки неизменённых функций переиспользуются между трансляциями
+    private final AnalysisCache analysisCache = new AnalysisCache();
+    private final GenerationCache generationCache = new GenerationCache();
 
     public GLSLTranslatorGUI() {
         setTitle("GLSL to HLSL Translator");
@@ -53,8 +65,14 @@ public class GLSLTranslatorGUI extends JFrame {
         JPanel buttonPanel = new JPanel(new FlowLayout());
         loadButton = new JButton("Load text from file");
         translateButton = new JButton("Translate");
+        minPrecisionBox = new JCheckBox("min16float precision");
         buttonPanel.add(loadButton);
         buttonPanel.add(translateButton);
+        preserveUniformOrderBox = new JCheckBox("Keep uniform order");
+        buttonPanel.add(minPrecisionBox);
+        splitConstantBuffersBox = new JCheckBox("Split cbuffers by update frequency");
+        buttonPanel.add(preserveUniformOrderBox);
+        buttonPanel.add(splitConstantBuffersBox);
 
         // Панель для логов
         JPanel logPanel = new JPanel(new BorderLayout());
@@ -128,7 +146,7 @@ public class GLSLTranslatorGUI extends JFrame {
                 logArea.append("Parsing completed successfully.\n");
 
                 // Семантический анализ
-                SemanticAnalyzer analyzer = new SemanticAnalyzer();
+                SemanticAnalyzer analyzer = new SemanticAnalyzer(analysisCache);
                 List<String> semanticErrors = analyzer.analyze(ast);
                 if (!semanticErrors.isEmpty()) {
                     logArea.append("Semantic errors:\n");
@@ -139,10 +157,43 @@ public class GLSLTranslatorGUI extends JFrame {
                 }
                 logArea.append("Semantic analysis completed successfully.\n");
 
+                // Оптимизация AST
+                boolean minPrecision = minPrecisionBox.isSelected();
+                Optimizer optimizer = new Optimizer();
+                if (minPrecision) {
+                    optimizer.getPasses().add(new PrecisionLowering());
+                }
+                for (String line : optimizer.optimize(ast)) {
+                    logArea.append(line + "\n");
+                }
+
                 // Генератор HLSL
-                HLSLGenerator generator = new HLSLGenerator();
+                HLSLGenerator generator = new HLSLGenerator(generationCache);
+                generator.setMinPrecision(minPrecision);
+                generator.setPreserveUniformOrder(preserveUniformOrderBox.isSelected());
+                if (splitConstantBuffersBox.isSelected()) {
+                    generator.setUniformClassifier(new UniformClassifier());
+                }
                 String hlslCode = generator.generate(ast);
                 hlslOutputArea.setText(hlslCode);
+                if (!generator.getRemovedGlobals().isEmpty()) {
+                    logArea.append("Unused declarations removed: "
+                            + String.join(", ", generator.getRemovedGlobals()) + "\n");
+                }
+                for (Map.Entry<String, ConstantBufferLayout> buffer
+                        : generator.getConstantBufferLayouts().entrySet()) {
+                    ConstantBufferLayout layout = buffer.getValue();
+                    logArea.append("cbuffer " + buffer.getKey() + ": " + layout.getSize() + " bytes ("
+                            + layout.getRegisterCount() + " registers, " + layout.getPadding() + " bytes padding)\n");
+                }
+                Map<String, Integer> samplers = generator.getSamplerRegisters();
+                if (!samplers.isEmpty()) {
+                    logArea.append("Sampler states: " + String.join(", ", samplers.keySet()) + "\n");
+                    if (samplers.size() > SamplerStates.MAX_SAMPLER_SLOTS) {
+                        logArea.append("Warning: " + samplers.size() + " sampler states exceed "
+                                + SamplerStates.MAX_SAMPLER_SLOTS + " slots\n");
+                    }
+                }
                 logArea.append("HLSL generation completed.\n");
 
             } catch (Exception ex) {
@@ -7,6 +7,11 @@ public class GLSLLexer {
     private final String input;
     private int pos;
     private final List<Token> tokens = new ArrayList<>();
+    private final NamePool names = NamePool.get();
+    private int line;
+    private int lineStart;
+    // Аннотация из комментария, ожидающая следующего токена
+    private String pendingAnnotation;
     private static final Pattern TOKEN_PATTERNS;
 
     // Статическая инициализация регулярных выражений
@@ -17,7 +22,8 @@ public class GLSLLexer {
                 "(?<COMMENT>//.*|/\\*[\\s\\S]*?\\*/)" + "|" +  // Комментарии ДОЛЖНЫ быть первыми
                         "(?<PREPROCESSOR>#.*)" + "|" +
                         "(?<KEYWORD>\\b(void|float|int|bool|sampler2D|samplerCube|vec2|vec3|vec4|mat2|mat3|mat4|" +
-                        "if|else|for|while|do|return|break|continue|uniform|attribute|varying|in|out|inout|struct)\\b)" + "|" +
+                        "if|else|for|while|do|return|break|continue|uniform|attribute|varying|in|out|inout|struct|" +
+                        "precision|lowp|mediump|highp)\\b)" + "|" +
                         "(?<BOOL>\\b(true|false)\\b)" + "|" +
                         "(?<FLOAT>\\d+\\.\\d*([eE][-+]?\\d+)?|\\d*\\.\\d+([eE][-+]?\\d+)?|\\d+[eE][-+]?\\d+)" + "|" +
                         "(?<INT>\\b\\d+\\b)" + "|" +
@@ -37,8 +43,9 @@ public class GLSLLexer {
     }
 
     public List<Token> tokenize() {
-        int line = 1;
-        int lineStart = 0;
+        line = 1;
+        lineStart = 0;
+        pendingAnnotation = null;
 
         // Пропускаем BOM (Byte Order Mark) если есть
         if (!input.isEmpty() && input.charAt(0) == '\uFEFF') {
@@ -62,8 +69,9 @@ public class GLSLLexer {
 
             // Обработка найденных групп
             if (matcher.group("COMMENT") != null) {
+                collectAnnotation(tokenValue);
                 // Обновляем информацию о строках для комментариев
-                updateLineInfo(tokenValue, line, lineStart);
+                updateLineInfo(tokenValue, start);
                 continue; // Пропускаем комментарии
             }
             else if (matcher.group("PREPROCESSOR") != null) {
@@ -96,11 +104,12 @@ public class GLSLLexer {
                 tokens.add(createSeparatorToken(tokenValue, line, column));
             }
             else if (matcher.group("IDENTIFIER") != null) {
+                String name = names.intern(tokenValue);
                 tokens.add(new Token(TokenType1.IDENTIFIER,
-                        tokenValue, line, column));
+                        name, line, column, names.find(name)));
             }
             else if (matcher.group("WHITESPACE") != null) {
-                updateLineInfo(tokenValue, line, lineStart);
+                updateLineInfo(tokenValue, start);
                 continue;
             }
             else if (matcher.group("UNKNOWN") != null) {
@@ -108,23 +117,45 @@ public class GLSLLexer {
                         line + ", column " + column + ": '" + matcher.group() + "'");
             }
 
+            if (pendingAnnotation != null) {
+                tokens.get(tokens.size() - 1).annotation = pendingAnnotation;
+                pendingAnnotation = null;
+            }
             // Обновляем информацию о строках после добавления токена
-            updateLineInfo(tokenValue, line, lineStart);
+            updateLineInfo(tokenValue, start);
         }
 
         tokens.add(new Token(TokenType1.EOF, "", line, pos - lineStart + 1));
         return tokens;
     }
 
-    private void updateLineInfo(String text, int line, int lineStart) {
-        for (char c : text.toCharArray()) {
-            if (c == '\n') {
+    private void updateLineInfo(String text, int start) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
                 line++;
-                lineStart = pos; // Исправлено: теперь pos указывает на позицию после токена
+                lineStart = start + i + 1;
             }
         }
     }
 
+    // Комментарий "// @per_object" или "/* @per_object */" - аннотация
+    private void collectAnnotation(String comment) {
+        String text = comment.startsWith("//")
+                ? comment.substring(2)
+                : comment.substring(2, comment.length() - 2);
+        text = text.trim();
+        if (!text.startsWith("@") || text.length() == 1) {
+            return;
+        }
+        String annotation = text.substring(1).split("\\s+")[0];
+        Token previous = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+        if (previous != null && previous.line == line) {
+            previous.annotation = annotation;
+        } else {
+            pendingAnnotation = annotation;
+        }
+    }
+
     private Token createKeywordToken(String value, int line, int column) {
         return new Token(
                 TokenType1.valueOf("KEYWORD_" + value.toUpperCase()),
@@ -0,0 +1,83 @@
+package lexer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+// Пул имён: каждому различному идентификатору назначается плотный номер.
+// Лексер пропускает через пул все идентификаторы, поэтому одинаковые имена во всём
+// конвейере - один и тот же экземпляр String, а таблица символов индексирует
+// области видимости номером имени вместо повторного хэширования строк.
+// Пул общий для всех трансляций и потокобезопасен, но держит имена только через
+// слабые ссылки: имя, которое больше нигде не используется, уходит из пула, а его
+// номер достаётся следующему новому имени. Поэтому размер пула ограничен живыми
+// именами, а не всеми, что когда-либо встречались (GUI, пакетная трансляция).
+// Номер действителен, пока жив канонический экземпляр имени: кто хранит номер
+// (токен, Identifier, SymbolTable), хранит и этот экземпляр.
+public final class NamePool {
+    private static final NamePool INSTANCE = new NamePool();
+
+    // Имя -> слабая ссылка на канонический экземпляр с его номером;
+    // значение не держит ключ, поэтому запись исчезает вместе с именем
+    private final Map<String, Name> ids = new WeakHashMap<>();
+    private int size = 0;
+    // Освободившиеся номера для повторного использования
+    private int[] free = new int[16];
+    private int freeCount = 0;
+    private final ReferenceQueue<String> released = new ReferenceQueue<>();
+
+    private static final class Name extends WeakReference<String> {
+        final int id;
+
+        Name(String name, int id, ReferenceQueue<String> queue) {
+            super(name, queue);
+            this.id = id;
+        }
+    }
+
+    private NamePool() {
+    }
+
+    public static NamePool get() {
+        return INSTANCE;
+    }
+
+    // Канонический экземпляр строки; новое имя регистрируется
+    public synchronized String intern(String name) {
+        Name known = ids.get(name);
+        String canonical = known != null ? known.get() : null;
+        if (canonical != null) {
+            return canonical;
+        }
+        register(name);
+        return name;
+    }
+
+    // Номер зарегистрированного имени или -1; неизвестное имя не регистрируется,
+    // поэтому поиск произвольных строк не раздувает пул
+    public synchronized int find(String name) {
+        Name known = ids.get(name);
+        return known != null && known.get() != null ? known.id : -1;
+    }
+
+    // Граница номеров: все живые номера меньше этого значения
+    public synchronized int size() {
+        return size;
+    }
+
+    private void register(String name) {
+        reclaim();
+        int id = freeCount > 0 ? free[--freeCount] : size++;
+        ids.put(name, new Name(name, id, released));
+    }
+
+    // Номера имён, собранных сборщиком мусора, возвращаются в список свободных
+    private void reclaim() {
+        for (Object ref; (ref = released.poll()) != null; ) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = ((Name) ref).id;
+        }
+    }
+}
@@ -6,12 +6,22 @@ public class Token {
     public final String value;
     public final int line;
     public final int column;
+    // Номер имени в NamePool для идентификаторов, -1 для остальных токенов
+    public final int nameId;
+    // Аннотация из комментария вида "// @per_object" (без '@'), относящегося к токену:
+    // комментарий в конце строки относится к предыдущему токену, иначе - к следующему
+    public String annotation;
     
     public Token(TokenType1 type, String value, int line, int column) {
+        this(type, value, line, column, -1);
+    }
+
+    public Token(TokenType1 type, String value, int line, int column, int nameId) {
         this.type = type;
         this.value = value;
         this.line = line;
         this.column = column;
+        this.nameId = nameId;
     }
     
     @Override
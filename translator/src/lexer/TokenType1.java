@@ -12,6 +12,7 @@ public enum TokenType1 {
     KEYWORD_UNIFORM, KEYWORD_ATTRIBUTE, KEYWORD_VARYING,
     KEYWORD_IN, KEYWORD_OUT, KEYWORD_INOUT,
     KEYWORD_STRUCT,
+    KEYWORD_PRECISION, KEYWORD_LOWP, KEYWORD_MEDIUMP, KEYWORD_HIGHP,
     
     // Операторы
     OP_PLUS, OP_MINUS, OP_MULT, OP_DIV, OP_ASSIGN, OP_EQ, OP_NE, 
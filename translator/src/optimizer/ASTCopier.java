@@ -0,0 +1,222 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+// Глубокая копия операторов и выражений (с resolvedType) с переименованием локальных имён.
+// Начальные замены имён задаются заранее: идентификатор (переименование) или любое
+// выражение, копия которого подставляется вместо каждого использования (аргумент
+// встраиваемой функции). Каждое объявление внутри копии получает новое имя от freshName
+// с учётом областей видимости.
+// Остальные имена - глобальные переменные, функции, встроенные - не меняются;
+// имена-переменные из них собираются в getFreeNames().
+class ASTCopier implements GLSLParser.ASTVisitor<GLSLParser.ASTNode> {
+    private final Deque<Map<String, GLSLParser.ASTNode>> scopes = new ArrayDeque<>();
+    private final UnaryOperator<String> freshName;
+    private final Set<String> freeNames = new LinkedHashSet<>();
+
+    ASTCopier(Map<String, GLSLParser.ASTNode> replacements, UnaryOperator<String> freshName) {
+        this.freshName = freshName;
+        scopes.push(new HashMap<>(replacements));
+    }
+
+    // Копия без замен и переименований
+    static <T extends GLSLParser.ASTNode> T plainCopy(T node) {
+        return new ASTCopier(Collections.emptyMap(), UnaryOperator.identity()).copy(node);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends GLSLParser.ASTNode> T copy(T node) {
+        return node != null ? (T) node.accept(this) : null;
+    }
+
+    Set<String> getFreeNames() {
+        return freeNames;
+    }
+
+    private GLSLParser.ASTNode replacement(String name) {
+        for (Map<String, GLSLParser.ASTNode> scope : scopes) {
+            GLSLParser.ASTNode replacement = scope.get(name);
+            if (replacement != null) {
+                return replacement;
+            }
+        }
+        return null;
+    }
+
+    private static <T extends GLSLParser.ASTNode> T typed(T copy, GLSLParser.ASTNode original) {
+        copy.resolvedType = original.resolvedType;
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Program program) {
+        throw new IllegalArgumentException("ASTCopier copies statements and expressions only");
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        throw new IllegalArgumentException("ASTCopier copies statements and expressions only");
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.StructDeclaration struct) {
+        throw new IllegalArgumentException("ASTCopier copies statements and expressions only");
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Parameter param) {
+        throw new IllegalArgumentException("ASTCopier copies statements and expressions only");
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        GLSLParser.VariableDeclaration copy = typed(new GLSLParser.VariableDeclaration(), decl);
+        copy.type = decl.type;
+        copy.precision = decl.precision;
+        copy.initializer = copy(decl.initializer);
+        copy.semantic = decl.semantic;
+        copy.isUniform = decl.isUniform;
+        copy.isAttribute = decl.isAttribute;
+        copy.isVarying = decl.isVarying;
+        copy.isInput = decl.isInput;
+        // Имя появляется в области видимости после инициализатора
+        copy.name = freshName.apply(decl.name);
+        scopes.peek().put(decl.name, new GLSLParser.Identifier(copy.name));
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.BlockStatement block) {
+        GLSLParser.BlockStatement copy = typed(new GLSLParser.BlockStatement(), block);
+        scopes.push(new HashMap<>());
+        for (GLSLParser.ASTNode stmt : block.statements) {
+            copy.statements.add(copy(stmt));
+        }
+        scopes.pop();
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableStatement stmt) {
+        return typed(new GLSLParser.VariableStatement(copy(stmt.declaration)), stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+        return typed(new GLSLParser.ExpressionStatement(copy(stmt.expression)), stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ReturnStatement stmt) {
+        GLSLParser.ReturnStatement copy = typed(new GLSLParser.ReturnStatement(), stmt);
+        copy.argument = copy(stmt.argument);
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        GLSLParser.IfStatement copy = typed(new GLSLParser.IfStatement(), stmt);
+        copy.test = copy(stmt.test);
+        copy.consequent = copy(stmt.consequent);
+        copy.alternate = copy(stmt.alternate);
+        copy.attribute = stmt.attribute;
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        GLSLParser.ForStatement copy = typed(new GLSLParser.ForStatement(), stmt);
+        scopes.push(new HashMap<>());
+        copy.init = copy(stmt.init);
+        copy.test = copy(stmt.test);
+        copy.update = copy(stmt.update);
+        copy.body = copy(stmt.body);
+        copy.attribute = stmt.attribute;
+        scopes.pop();
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        GLSLParser.WhileStatement copy = typed(new GLSLParser.WhileStatement(), stmt);
+        copy.test = copy(stmt.test);
+        copy.body = copy(stmt.body);
+        copy.attribute = stmt.attribute;
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.BinaryExpression expr) {
+        List<GLSLParser.BinaryExpression> chain = new ArrayList<>();
+        GLSLParser.ASTNode node = expr;
+        while (node instanceof GLSLParser.BinaryExpression) {
+            chain.add((GLSLParser.BinaryExpression) node);
+            node = ((GLSLParser.BinaryExpression) node).left;
+        }
+
+        GLSLParser.ASTNode result = copy(node);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            GLSLParser.BinaryExpression current = chain.get(i);
+            result = typed(new GLSLParser.BinaryExpression(current.operator, result, copy(current.right)), current);
+        }
+        return result;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        return typed(new GLSLParser.UnaryExpression(expr.operator, copy(expr.argument)), expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        GLSLParser.CallExpression copy = typed(new GLSLParser.CallExpression(), expr);
+        // Имя функции или конструктора не переименовывается
+        GLSLParser.ASTNode callee = expr.callee;
+        copy.callee = callee instanceof GLSLParser.Identifier
+                ? typed(new GLSLParser.Identifier(((GLSLParser.Identifier) callee).name), callee)
+                : copy(callee);
+        for (GLSLParser.ASTNode arg : expr.arguments) {
+            copy.arguments.add(copy(arg));
+        }
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+        GLSLParser.MemberExpression copy = typed(new GLSLParser.MemberExpression(), expr);
+        copy.object = copy(expr.object);
+        // property - имя поля или swizzle, не переменная
+        GLSLParser.ASTNode property = expr.property;
+        copy.property = property instanceof GLSLParser.Identifier
+                ? typed(new GLSLParser.Identifier(((GLSLParser.Identifier) property).name), property)
+                : copy(property);
+        return copy;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+        return typed(new GLSLParser.TernaryExpression(copy(expr.test), copy(expr.consequent),
+                copy(expr.alternate)), expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+        GLSLParser.ASTNode replacement = replacement(identifier.name);
+        if (replacement == null) {
+            freeNames.add(identifier.name);
+            return typed(new GLSLParser.Identifier(identifier.name), identifier);
+        }
+        if (replacement instanceof GLSLParser.Identifier) {
+            return typed(new GLSLParser.Identifier(((GLSLParser.Identifier) replacement).name), identifier);
+        }
+        return plainCopy(replacement);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Literal literal) {
+        return typed(new GLSLParser.Literal(literal.value, literal.raw), literal);
+    }
+}
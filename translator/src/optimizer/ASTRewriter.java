@@ -0,0 +1,181 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Базовый класс преобразований AST.
+// Каждый visit переписывает дочерние узлы на месте и возвращает узел, который должен
+// занять место посещённого: тот же, новый или null - оператор удаляется из блока.
+// Подклассы переопределяют нужные visit и вызывают super.visit, чтобы обработать детей.
+// Левые цепочки бинарных выражений обходятся итеративно, поэтому для них вместо
+// visit переопределяется rewriteBinary - он вызывается для каждого уровня цепочки
+// после того, как оба операнда уже переписаны.
+public abstract class ASTRewriter implements GLSLParser.ASTVisitor<GLSLParser.ASTNode> {
+
+    protected GLSLParser.ASTNode rewrite(GLSLParser.ASTNode node) {
+        return node != null ? node.accept(this) : null;
+    }
+
+    // Переписывает список операторов, удаляя те, вместо которых вернулся null
+    protected void rewriteStatements(List<GLSLParser.ASTNode> statements) {
+        int kept = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            GLSLParser.ASTNode result = rewrite(statements.get(i));
+            if (result != null) {
+                statements.set(kept++, result);
+            }
+        }
+        statements.subList(kept, statements.size()).clear();
+    }
+
+    // Вложенный оператор if/for/while не может исчезнуть - вместо него пустой блок
+    protected GLSLParser.ASTNode rewriteNested(GLSLParser.ASTNode stmt) {
+        GLSLParser.ASTNode result = rewrite(stmt);
+        return result != null || stmt == null ? result : new GLSLParser.BlockStatement();
+    }
+
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Program program) {
+        rewriteStatements(program.declarations);
+        return program;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        decl.initializer = rewrite(decl.initializer);
+        return decl;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        if (func.body != null) {
+            rewriteStatements(func.body.statements);
+        }
+        return func;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.StructDeclaration struct) {
+        return struct;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Parameter param) {
+        return param;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.BlockStatement block) {
+        rewriteStatements(block.statements);
+        return block;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableStatement stmt) {
+        GLSLParser.ASTNode declaration = rewrite(stmt.declaration);
+        if (declaration == null) {
+            return null;
+        }
+        stmt.declaration = (GLSLParser.VariableDeclaration) declaration;
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+        stmt.expression = rewrite(stmt.expression);
+        return stmt.expression != null ? stmt : null;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ReturnStatement stmt) {
+        stmt.argument = rewrite(stmt.argument);
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        stmt.test = rewrite(stmt.test);
+        stmt.consequent = rewriteNested(stmt.consequent);
+        stmt.alternate = rewrite(stmt.alternate);
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        stmt.init = rewrite(stmt.init);
+        stmt.test = rewrite(stmt.test);
+        stmt.update = rewrite(stmt.update);
+        stmt.body = rewriteNested(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        stmt.test = rewrite(stmt.test);
+        stmt.body = rewriteNested(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.BinaryExpression expr) {
+        List<GLSLParser.BinaryExpression> chain = new ArrayList<>();
+        GLSLParser.ASTNode node = expr;
+        while (node instanceof GLSLParser.BinaryExpression) {
+            chain.add((GLSLParser.BinaryExpression) node);
+            node = ((GLSLParser.BinaryExpression) node).left;
+        }
+
+        GLSLParser.ASTNode result = rewrite(node);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            GLSLParser.BinaryExpression current = chain.get(i);
+            current.left = result;
+            current.right = rewrite(current.right);
+            result = rewriteBinary(current);
+        }
+        return result;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        expr.argument = rewrite(expr.argument);
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            expr.arguments.set(i, rewrite(expr.arguments.get(i)));
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+        // property - имя поля или swizzle, не выражение
+        expr.object = rewrite(expr.object);
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+        expr.test = rewrite(expr.test);
+        expr.consequent = rewrite(expr.consequent);
+        expr.alternate = rewrite(expr.alternate);
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+        return identifier;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Literal literal) {
+        return literal;
+    }
+}
@@ -0,0 +1,253 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Выбор атрибута HLSL [branch] или [flatten] для операторов if.
+// Стоимость ветвей - грубая оценка числа инструкций: арифметика и простые встроенные
+// функции по 1, трансцендентные функции и normalize/length по 4, чтение текстуры 16,
+// цикл - тело, умноженное на число итераций ([unroll(N)] или LOOP_TRIPS), вызов
+// пользовательской функции - стоимость её тела.
+//  - Однородное условие (см. Uniformity) -> [branch]: все пиксели волны идут одной
+//    ветвью, и пропуск невыполняемой ветви ничего не стоит.
+//  - Расходящееся условие и чтение текстуры с неявными производными (texture,
+//    texture2D, textureCube, textureProj) -> [flatten]: производные в расходящейся ветви не определены.
+//  - Расходящееся условие и ветви дешевле flattenLimit -> [flatten], иначе [branch].
+// Сглаженный if/else, обе ветви которого - одно присваивание одному адресату
+// (t = a; / t = b;), заменяется присваиванием t = c ? a : b, если c, a и b чисты.
+public class BranchAttributes extends ASTRewriter implements OptimizationPass {
+    public static final int DEFAULT_FLATTEN_LIMIT = 12;
+
+    private static final int TEXTURE_COST = 16;
+    private static final int TRANSCENDENTAL_COST = 4;
+    private static final int LOOP_TRIPS = 16;
+    private static final Set<String> IMPLICIT_GRADIENT_FETCHES =
+            new HashSet<>(Arrays.asList("texture", "texture2D", "textureCube", "textureProj", "texture2DProj"));
+    private static final Set<String> TEXTURE_FETCHES =
+            new HashSet<>(Arrays.asList("texture", "texture2D", "textureCube", "textureProj", "texture2DProj",
+                    "textureLod", "texture2DLod", "textureCubeLod", "textureGrad"));
+    private static final Set<String> TRANSCENDENTAL = new HashSet<>(Arrays.asList(
+            "sin", "cos", "tan", "asin", "acos", "atan", "exp", "log", "exp2", "log2", "pow", "sqrt",
+            "inversesqrt", "normalize", "length", "distance", "reflect", "refract"));
+
+    private final int flattenLimit;
+    private final boolean convertSelects;
+    private Map<String, List<GLSLParser.FunctionDeclaration>> functions = Collections.emptyMap();
+    private Set<String> uniformGlobals = Collections.emptySet();
+    private final Map<String, Integer> functionCosts = new HashMap<>();
+    private Uniformity uniformity;
+    private ValueNumbering numbering;
+    private int flattenCount;
+    private int branchCount;
+    private int selectCount;
+
+    public BranchAttributes() {
+        this(DEFAULT_FLATTEN_LIMIT, true);
+    }
+
+    public BranchAttributes(int flattenLimit, boolean convertSelects) {
+        this.flattenLimit = flattenLimit;
+        this.convertSelects = convertSelects;
+    }
+
+    @Override
+    public String getName() {
+        return "Branch attributes";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions = WriteAnalysis.functionsOf(program);
+        uniformGlobals = Uniformity.uniformGlobals(program);
+        functionCosts.clear();
+        numbering = new ValueNumbering(functions.keySet());
+        flattenCount = 0;
+        branchCount = 0;
+        selectCount = 0;
+        program.accept(this);
+        uniformity = null;
+        return flattenCount + " marked [flatten], " + branchCount + " marked [branch], "
+                + selectCount + " converted to selects";
+    }
+
+    public int getSelectCount() {
+        return selectCount;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        if (func.body != null) {
+            uniformity = Uniformity.analyze(func, uniformGlobals, functions.keySet());
+        }
+        return super.visit(func);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        super.visit(stmt);
+        if (uniformity.isUniform(stmt.test)) {
+            stmt.attribute = "branch";
+            branchCount++;
+            return stmt;
+        }
+
+        Cost cost = new Cost();
+        cost.add(stmt.consequent);
+        cost.add(stmt.alternate);
+        if (!cost.implicitGradients && cost.total > flattenLimit) {
+            stmt.attribute = "branch";
+            branchCount++;
+            return stmt;
+        }
+
+        GLSLParser.ASTNode select = convertSelects ? select(stmt) : null;
+        if (select != null) {
+            selectCount++;
+            return select;
+        }
+        stmt.attribute = "flatten";
+        flattenCount++;
+        return stmt;
+    }
+
+    // if (c) t = a; else t = b;  ->  t = c ? a : b;
+    private GLSLParser.ASTNode select(GLSLParser.IfStatement stmt) {
+        GLSLParser.BinaryExpression first = singleAssignment(stmt.consequent);
+        GLSLParser.BinaryExpression second = singleAssignment(stmt.alternate);
+        if (first == null || second == null || !sameTarget(first.left, second.left)
+                || !isPure(stmt.test) || !isPure(first.right) || !isPure(second.right)) {
+            return null;
+        }
+        GLSLParser.TernaryExpression ternary = new GLSLParser.TernaryExpression(stmt.test, first.right, second.right);
+        ternary.resolvedType = first.left.resolvedType;
+        GLSLParser.BinaryExpression assign = new GLSLParser.BinaryExpression("=", first.left, ternary);
+        assign.resolvedType = first.resolvedType;
+        return new GLSLParser.ExpressionStatement(assign);
+    }
+
+    private boolean isPure(GLSLParser.ASTNode node) {
+        return numbering.info(numbering.number(node)).pure;
+    }
+
+    private static GLSLParser.BinaryExpression singleAssignment(GLSLParser.ASTNode stmt) {
+        if (stmt instanceof GLSLParser.BlockStatement && ((GLSLParser.BlockStatement) stmt).statements.size() == 1) {
+            stmt = ((GLSLParser.BlockStatement) stmt).statements.get(0);
+        }
+        if (!(stmt instanceof GLSLParser.ExpressionStatement)) {
+            return null;
+        }
+        // Парсер оборачивает оператор-выражение дважды
+        GLSLParser.ASTNode expr = stmt;
+        while (expr instanceof GLSLParser.ExpressionStatement) {
+            expr = ((GLSLParser.ExpressionStatement) expr).expression;
+        }
+        if (!(expr instanceof GLSLParser.BinaryExpression) || !((GLSLParser.BinaryExpression) expr).operator.equals("=")) {
+            return null;
+        }
+        return (GLSLParser.BinaryExpression) expr;
+    }
+
+    // Переменная или swizzle/поле переменной с одинаковым путём
+    private static boolean sameTarget(GLSLParser.ASTNode a, GLSLParser.ASTNode b) {
+        while (a instanceof GLSLParser.MemberExpression && b instanceof GLSLParser.MemberExpression) {
+            GLSLParser.ASTNode first = ((GLSLParser.MemberExpression) a).property;
+            GLSLParser.ASTNode second = ((GLSLParser.MemberExpression) b).property;
+            if (!(first instanceof GLSLParser.Identifier) || !(second instanceof GLSLParser.Identifier)
+                    || !((GLSLParser.Identifier) first).name.equals(((GLSLParser.Identifier) second).name)) {
+                return false;
+            }
+            a = ((GLSLParser.MemberExpression) a).object;
+            b = ((GLSLParser.MemberExpression) b).object;
+        }
+        return a instanceof GLSLParser.Identifier && b instanceof GLSLParser.Identifier
+                && ((GLSLParser.Identifier) a).name.equals(((GLSLParser.Identifier) b).name);
+    }
+
+    private int functionCost(String name) {
+        Integer known = functionCosts.get(name);
+        if (known != null) {
+            return known;
+        }
+        // Рекурсия в GLSL запрещена; заглушка защищает от зацикливания на ошибочном коде
+        functionCosts.put(name, flattenLimit + 1);
+        Cost cost = new Cost();
+        for (GLSLParser.FunctionDeclaration func : functions.get(name)) {
+            cost.add(func.body);
+        }
+        functionCosts.put(name, cost.total);
+        return cost.total;
+    }
+
+    // Оценка стоимости поддерева и наличие чтений текстур с неявными производными
+    private final class Cost extends ASTRewriter {
+        int total;
+        boolean implicitGradients;
+
+        void add(GLSLParser.ASTNode node) {
+            rewrite(node);
+        }
+
+        @Override
+        protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+            if (!expr.operator.equals("=")) {
+                total++;
+            }
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+            total++;
+            return super.visit(expr);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+            total++;
+            return super.visit(expr);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+            super.visit(expr);
+            if (!(expr.callee instanceof GLSLParser.Identifier)) {
+                return expr;
+            }
+            String name = ((GLSLParser.Identifier) expr.callee).name;
+            if (functions.containsKey(name)) {
+                total += functionCost(name);
+            } else if (TEXTURE_FETCHES.contains(name)) {
+                total += TEXTURE_COST;
+                implicitGradients |= IMPLICIT_GRADIENT_FETCHES.contains(name);
+            } else if (TRANSCENDENTAL.contains(name)) {
+                total += TRANSCENDENTAL_COST;
+            } else if (!name.equals(expr.resolvedType)) {
+                // Конструкторы ничего не стоят
+                total++;
+            }
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+            return loop(stmt, stmt.attribute, () -> super.visit(stmt));
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+            return loop(stmt, stmt.attribute, () -> super.visit(stmt));
+        }
+
+        private GLSLParser.ASTNode loop(GLSLParser.ASTNode stmt, String attribute, Runnable body) {
+            int before = total;
+            body.run();
+            int trips = LOOP_TRIPS;
+            if (attribute != null && attribute.startsWith("unroll(")) {
+                trips = Integer.parseInt(attribute.substring("unroll(".length(), attribute.length() - 1));
+            }
+            total = before + (total - before) * trips;
+            return stmt;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Удаление общих подвыражений внутри тел функций.
+// Структурно одинаковые чистые выражения (встроенные функции, включая texture,
+// конструкторы, арифметика и swizzle) вычисляются один раз во временную переменную
+// _cseN, объявленную перед первым использованием, и дальше переиспользуются.
+// Список операторов блока просматривается по порядку: запись в переменную (присваивание,
+// ++/--, out-аргумент, новое объявление с тем же именем) завершает группу одинаковых
+// выражений, которые её читают. Внутри if/for/while выражение учитывается, только если
+// оператор целиком не пишет ни в одну из его переменных. Вызов пользовательской функции
+// может изменить глобальные переменные, в которые где-либо пишут, поэтому завершает
+// группы, которые их читают.
+// Первое вхождение должно вычисляться безусловно (не в ветке и не в теле цикла),
+// чтобы временная переменная не добавляла вычислений на пути, где их не было.
+// Если первое вхождение - весь инициализатор объявления, а переменная не меняется до
+// последнего вхождения, вместо временной переиспользуется сама переменная.
+// За шаг выносится самое крупное повторяющееся выражение, затем блок анализируется заново.
+public class CommonSubexpressionEliminator implements OptimizationPass {
+    private static final String TEMP_PREFIX = "_cse";
+
+    private final Map<String, List<GLSLParser.FunctionDeclaration>> functions = new HashMap<>();
+    private final Set<String> structNames = new HashSet<>();
+    private final Set<String> mutableGlobals = new HashSet<>();
+    private int tempCounter;
+    private int eliminatedCount;
+    private int temporaryCount;
+
+    @Override
+    public String getName() {
+        return "Common subexpression elimination";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions.clear();
+        structNames.clear();
+        Set<String> globals = new HashSet<>();
+        mutableGlobals.clear();
+        tempCounter = 0;
+        eliminatedCount = 0;
+        temporaryCount = 0;
+
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
+                functions.computeIfAbsent(func.name, k -> new ArrayList<>()).add(func);
+            } else if (decl instanceof GLSLParser.StructDeclaration) {
+                structNames.add(((GLSLParser.StructDeclaration) decl).name);
+            } else if (decl instanceof GLSLParser.VariableDeclaration) {
+                GLSLParser.VariableDeclaration var = (GLSLParser.VariableDeclaration) decl;
+                if (!var.isUniform) {
+                    globals.add(var.name);
+                }
+            }
+        }
+
+        // Глобальные переменные, в которые пишет хотя бы одна функция
+        StatementScan writes = new StatementScan(new ValueNumbering(functions.keySet()));
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                decl.accept(writes);
+            }
+        }
+        for (String name : globals) {
+            if (writes.written.contains(name)) {
+                mutableGlobals.add(name);
+            }
+        }
+
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
+                if (func.body != null) {
+                    processBlock(func.body.statements);
+                }
+            }
+        }
+
+        return eliminatedCount + " redundant evaluations removed, " + temporaryCount + " temporaries introduced";
+    }
+
+    public int getEliminatedCount() {
+        return eliminatedCount;
+    }
+
+    private void processBlock(List<GLSLParser.ASTNode> statements) {
+        while (eliminateOne(statements)) {
+            // Повторяем, пока в блоке есть повторяющиеся выражения
+        }
+        for (GLSLParser.ASTNode stmt : statements) {
+            processNested(stmt);
+        }
+    }
+
+    private void processNested(GLSLParser.ASTNode stmt) {
+        if (stmt instanceof GLSLParser.BlockStatement) {
+            processBlock(((GLSLParser.BlockStatement) stmt).statements);
+        } else if (stmt instanceof GLSLParser.IfStatement) {
+            processNested(((GLSLParser.IfStatement) stmt).consequent);
+            processNested(((GLSLParser.IfStatement) stmt).alternate);
+        } else if (stmt instanceof GLSLParser.ForStatement) {
+            processNested(((GLSLParser.ForStatement) stmt).body);
+        } else if (stmt instanceof GLSLParser.WhileStatement) {
+            processNested(((GLSLParser.WhileStatement) stmt).body);
+        }
+    }
+
+    // Группа одинаковых выражений между двумя записями в их переменные
+    private static final class Group {
+        final int number;
+        final int firstStatement;
+        final boolean firstUnconditional;
+        final List<GLSLParser.ASTNode> nodes = new ArrayList<>();
+        int lastStatement;
+
+        Group(int number, int firstStatement, boolean firstUnconditional) {
+            this.number = number;
+            this.firstStatement = firstStatement;
+            this.firstUnconditional = firstUnconditional;
+        }
+    }
+
+    private boolean eliminateOne(List<GLSLParser.ASTNode> statements) {
+        ValueNumbering numbering = new ValueNumbering(functions.keySet());
+        Map<Integer, Group> active = new LinkedHashMap<>();
+        // Активные группы по именам переменных, которые они читают
+        Map<String, List<Group>> readers = new HashMap<>();
+        List<Group> finished = new ArrayList<>();
+        List<Set<String>> writtenBy = new ArrayList<>();
+
+        for (int i = 0; i < statements.size(); i++) {
+            GLSLParser.ASTNode stmt = statements.get(i);
+            StatementScan scan = new StatementScan(numbering);
+            stmt.accept(scan);
+
+            boolean simple = stmt instanceof GLSLParser.VariableStatement
+                    || stmt instanceof GLSLParser.ExpressionStatement
+                    || stmt instanceof GLSLParser.ReturnStatement;
+            // В простом операторе запись верхнего уровня происходит после вычисления правой части
+            boolean writesInside = !simple || scan.nestedWrites;
+
+            for (int k = 0; k < scan.occurrences.size(); k++) {
+                GLSLParser.ASTNode node = scan.occurrences.get(k);
+                Set<String> vars = numbering.info(numbering.number(node)).vars;
+                if (writesInside && intersects(vars, scan.written)) {
+                    continue;
+                }
+                if (scan.userCalls && intersects(vars, mutableGlobals)) {
+                    continue;
+                }
+                int number = numbering.number(node);
+                Group group = active.get(number);
+                if (group == null) {
+                    group = new Group(number, i, !scan.conditional.get(k));
+                    active.put(number, group);
+                    for (String var : vars) {
+                        readers.computeIfAbsent(var, key -> new ArrayList<>()).add(group);
+                    }
+                }
+                group.nodes.add(node);
+                group.lastStatement = i;
+            }
+            writtenBy.add(new HashSet<>(scan.written));
+
+            Set<String> killed = scan.written;
+            if (scan.userCalls) {
+                killed.addAll(mutableGlobals);
+            }
+            for (String name : killed) {
+                List<Group> killedGroups = readers.remove(name);
+                if (killedGroups == null) {
+                    continue;
+                }
+                for (Group group : killedGroups) {
+                    if (active.remove(group.number, group)) {
+                        finished.add(group);
+                    }
+                }
+            }
+        }
+        finished.addAll(active.values());
+
+        Group best = null;
+        for (Group group : finished) {
+            if (group.nodes.size() < 2 || !group.firstUnconditional) {
+                continue;
+            }
+            if (best == null || numbering.info(group.number).size > numbering.info(best.number).size) {
+                best = group;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+
+        GLSLParser.VariableDeclaration holder = reusableDeclaration(statements, best, writtenBy);
+        if (holder != null) {
+            replace(statements, best, holder.name, best.firstStatement + 1);
+        } else {
+            hoist(statements, best);
+        }
+        eliminatedCount += best.nodes.size() - 1;
+        return true;
+    }
+
+    // Объявление вида T x = <первое вхождение>, если x не меняется до последнего вхождения
+    private static GLSLParser.VariableDeclaration reusableDeclaration(List<GLSLParser.ASTNode> statements,
+                                                                      Group group, List<Set<String>> writtenBy) {
+        GLSLParser.ASTNode stmt = statements.get(group.firstStatement);
+        if (!(stmt instanceof GLSLParser.VariableStatement)) {
+            return null;
+        }
+        GLSLParser.VariableDeclaration decl = ((GLSLParser.VariableStatement) stmt).declaration;
+        GLSLParser.ASTNode first = group.nodes.get(0);
+        if (decl.initializer != first || !decl.type.equals(first.resolvedType)) {
+            return null;
+        }
+        for (int i = group.firstStatement + 1; i <= group.lastStatement; i++) {
+            if (writtenBy.get(i).contains(decl.name)) {
+                return null;
+            }
+        }
+        return decl;
+    }
+
+    private void hoist(List<GLSLParser.ASTNode> statements, Group group) {
+        GLSLParser.ASTNode first = group.nodes.get(0);
+        String name = TEMP_PREFIX + tempCounter++;
+        replace(statements, group, name, group.firstStatement);
+
+        GLSLParser.VariableDeclaration decl = new GLSLParser.VariableDeclaration();
+        decl.type = first.resolvedType;
+        decl.name = name;
+        decl.initializer = first;
+        statements.add(group.firstStatement, new GLSLParser.VariableStatement(decl));
+        temporaryCount++;
+    }
+
+    // Заменяет вхождения группы начиная с оператора from; первое вхождение, если оно
+    // раньше from, остаётся на месте
+    private static void replace(List<GLSLParser.ASTNode> statements, Group group, String name, int from) {
+        Set<GLSLParser.ASTNode> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        targets.addAll(group.nodes.subList(from > group.firstStatement ? 1 : 0, group.nodes.size()));
+        NodeReplacer replacer = new NodeReplacer(targets, name, group.nodes.get(0).resolvedType);
+        for (int i = from; i <= group.lastStatement; i++) {
+            statements.set(i, replacer.rewrite(statements.get(i)));
+        }
+    }
+
+    private static boolean intersects(Set<String> vars, Set<String> names) {
+        if (vars.isEmpty() || names.isEmpty()) {
+            return false;
+        }
+        for (String var : vars) {
+            if (names.contains(var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Сбор кандидатов одного оператора (в порядке вычисления) и имён, в которые он пишет.
+    // Узлы не меняются: каждый visit возвращает тот же узел.
+    private final class StatementScan extends ASTRewriter {
+        private final ValueNumbering numbering;
+        final List<GLSLParser.ASTNode> occurrences = new ArrayList<>();
+        final List<Boolean> conditional = new ArrayList<>();
+        final Set<String> written = new HashSet<>();
+        boolean nestedWrites;
+        boolean userCalls;
+        private int conditionalDepth;
+        private int targetDepth;
+        private int blockDepth;
+        private GLSLParser.ASTNode topLevelAssignment;
+
+        StatementScan(ValueNumbering numbering) {
+            this.numbering = numbering;
+        }
+
+        private void record(GLSLParser.ASTNode node) {
+            if (targetDepth == 0 && numbering.isCandidate(node, structNames)) {
+                occurrences.add(node);
+                conditional.add(conditionalDepth > 0);
+            }
+        }
+
+        private void markWritten(GLSLParser.ASTNode target, boolean topLevel) {
+            GLSLParser.Identifier base = ScopedRewriter.baseIdentifier(target);
+            if (base != null) {
+                written.add(base.name);
+            }
+            if (!topLevel) {
+                nestedWrites = true;
+            }
+        }
+
+        private GLSLParser.ASTNode rewriteTarget(GLSLParser.ASTNode target) {
+            targetDepth++;
+            rewrite(target);
+            targetDepth--;
+            return target;
+        }
+
+        private GLSLParser.ASTNode rewriteConditional(GLSLParser.ASTNode node) {
+            conditionalDepth++;
+            rewrite(node);
+            conditionalDepth--;
+            return node;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+            super.visit(decl);
+            written.add(decl.name);
+            if (blockDepth > 0) {
+                nestedWrites = true;
+            }
+            return decl;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+            if (blockDepth == 0 && topLevelAssignment == null) {
+                GLSLParser.ASTNode expr = stmt.expression;
+                while (expr instanceof GLSLParser.ExpressionStatement) {
+                    expr = ((GLSLParser.ExpressionStatement) expr).expression;
+                }
+                topLevelAssignment = expr;
+            }
+            return super.visit(stmt);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.BlockStatement block) {
+            blockDepth++;
+            super.visit(block);
+            blockDepth--;
+            return block;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+            blockDepth++;
+            rewrite(stmt.test);
+            rewriteConditional(stmt.consequent);
+            rewriteConditional(stmt.alternate);
+            blockDepth--;
+            return stmt;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+            blockDepth++;
+            rewrite(stmt.init);
+            rewrite(stmt.test);
+            rewriteConditional(stmt.update);
+            rewriteConditional(stmt.body);
+            blockDepth--;
+            return stmt;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+            blockDepth++;
+            rewrite(stmt.test);
+            rewriteConditional(stmt.body);
+            blockDepth--;
+            return stmt;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.BinaryExpression expr) {
+            if (!ScopedRewriter.isAssignment(expr.operator)) {
+                return super.visit(expr);
+            }
+            rewriteTarget(expr.left);
+            rewrite(expr.right);
+            markWritten(expr.left, expr == topLevelAssignment);
+            return expr;
+        }
+
+        @Override
+        protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+            record(expr);
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+            if (expr.operator.equals("++") || expr.operator.equals("--")) {
+                rewriteTarget(expr.argument);
+                markWritten(expr.argument, false);
+                return expr;
+            }
+            super.visit(expr);
+            record(expr);
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+            List<GLSLParser.FunctionDeclaration> overloads = expr.callee instanceof GLSLParser.Identifier
+                    ? functions.get(((GLSLParser.Identifier) expr.callee).name)
+                    : null;
+            if (overloads == null) {
+                super.visit(expr);
+                record(expr);
+                return expr;
+            }
+
+            userCalls = true;
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                GLSLParser.ASTNode arg = expr.arguments.get(i);
+                if (isOutArgument(overloads, i)) {
+                    rewriteTarget(arg);
+                    markWritten(arg, false);
+                } else {
+                    rewrite(arg);
+                }
+            }
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+            super.visit(expr);
+            record(expr);
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+            rewrite(expr.test);
+            rewriteConditional(expr.consequent);
+            rewriteConditional(expr.alternate);
+            record(expr);
+            return expr;
+        }
+    }
+
+    private static boolean isOutArgument(List<GLSLParser.FunctionDeclaration> overloads, int index) {
+        // Перегрузка не выбирается: достаточно, чтобы позиция была out хотя бы в одной
+        for (GLSLParser.FunctionDeclaration func : overloads) {
+            if (index < func.parameters.size()) {
+                String qualifier = func.parameters.get(index).qualifier;
+                if ("out".equals(qualifier) || "inout".equals(qualifier)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,544 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Сужение векторных вычислений до используемых компонент.
+// 1. Живые компоненты локальных переменных vec2..vec4: переменная читается только через
+//    swizzle (v.xy, v.z), записывается целиком операторами v = e / v op= e или через
+//    swizzle. Если живых компонент меньше ширины типа, переменная получает тип
+//    floatK/vecK, значения при записи вычисляются только для живых компонент,
+//    а swizzle-обращения перенумеровываются.
+// 2. Swizzle над операцией, которая выбирает меньше компонент, чем вычисляется,
+//    проталкивается в операнды: (a * b + c).xy -> a.xy * b.xy + c.xy,
+//    vec4(p, 1.0).xyz -> p.
+// Сужаются покомпонентные операции: + - * / со скалярами и векторами той же ширины,
+// унарный минус, тернарный оператор, покомпонентные встроенные функции и конструкторы
+// векторов. Остальные выражения (texture, normalize, умножение на матрицу) вычисляются
+// целиком, и от результата берётся swizzle.
+public class ComponentNarrowing implements OptimizationPass {
+    private static final String COMPONENTS = "xyzw";
+    private static final String SWIZZLE_SETS = "xyzwrgba";
+
+    // Встроенные функции, у которых i-я компонента результата зависит только от
+    // i-х компонент аргументов
+    private static final Set<String> COMPONENTWISE = new HashSet<>(Arrays.asList(
+            "abs", "sign", "floor", "ceil", "fract", "mod", "min", "max", "clamp", "mix",
+            "step", "smoothstep", "sin", "cos", "tan", "asin", "acos", "atan", "pow", "exp",
+            "log", "exp2", "log2", "sqrt", "inversesqrt", "radians", "degrees", "fma"));
+
+    private Set<String> userFunctions = Collections.emptySet();
+    private ValueNumbering numbering;
+    private int narrowedCount;
+    private int pushedCount;
+
+    @Override
+    public String getName() {
+        return "Component narrowing";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        userFunctions = WriteAnalysis.functionsOf(program).keySet();
+        numbering = new ValueNumbering(userFunctions);
+        narrowedCount = 0;
+        pushedCount = 0;
+
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration && ((GLSLParser.FunctionDeclaration) decl).body != null) {
+                Liveness liveness = new Liveness();
+                decl.accept(liveness);
+                decl.accept(new Narrower(plan(liveness)));
+            }
+        }
+        numbering = null;
+        return narrowedCount + " vector locals narrowed, " + pushedCount + " swizzles pushed into operations";
+    }
+
+    public int getNarrowedCount() {
+        return narrowedCount;
+    }
+
+    // Переменная с числом живых компонент меньше ширины и суженные значения её записей
+    private static final class Narrowed {
+        final int[] live;
+        final Map<GLSLParser.ASTNode, GLSLParser.ASTNode> values = new IdentityHashMap<>();
+
+        Narrowed(int[] live) {
+            this.live = live;
+        }
+    }
+
+    private Map<GLSLParser.ASTNode, Narrowed> plan(Liveness liveness) {
+        Map<GLSLParser.ASTNode, Narrowed> plan = new IdentityHashMap<>();
+        for (Map.Entry<GLSLParser.VariableDeclaration, Integer> entry : liveness.live.entrySet()) {
+            GLSLParser.VariableDeclaration decl = entry.getKey();
+            int mask = entry.getValue();
+            if (liveness.escaped.contains(decl) || mask == 0 || Integer.bitCount(mask) >= width(decl.type)) {
+                continue;
+            }
+            int[] live = new int[Integer.bitCount(mask)];
+            for (int i = 0, k = 0; i < 4; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    live[k++] = i;
+                }
+            }
+
+            Narrowed narrowed = new Narrowed(live);
+            boolean complete = true;
+            for (GLSLParser.ASTNode value : liveness.values.getOrDefault(decl, Collections.emptyList())) {
+                if ("float".equals(value.resolvedType)) {
+                    // v *= s: скаляр применяется к каждой компоненте
+                    continue;
+                }
+                GLSLParser.ASTNode result = narrow(value, live);
+                if (result == null) {
+                    complete = false;
+                    break;
+                }
+                narrowed.values.put(value, result);
+            }
+            if (complete) {
+                plan.put(decl, narrowed);
+                narrowedCount++;
+            }
+        }
+        return plan;
+    }
+
+    static int width(String type) {
+        if (type == null) return -1;
+        switch (type) {
+            case "float":
+                return 1;
+            case "vec2":
+                return 2;
+            case "vec3":
+                return 3;
+            case "vec4":
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    private static String typeOfWidth(int width) {
+        return width == 1 ? "float" : "vec" + width;
+    }
+
+    // Номера компонент swizzle или null, если это не swizzle вектора ширины width
+    private static int[] swizzle(GLSLParser.MemberExpression expr, int width) {
+        if (width < 2 || !(expr.property instanceof GLSLParser.Identifier)) {
+            return null;
+        }
+        String name = ((GLSLParser.Identifier) expr.property).name;
+        if (name.isEmpty() || name.length() > 4) {
+            return null;
+        }
+        int[] indices = new int[name.length()];
+        for (int i = 0; i < name.length(); i++) {
+            int index = SWIZZLE_SETS.indexOf(name.charAt(i));
+            if (index < 0 || index % 4 >= width) {
+                return null;
+            }
+            indices[i] = index % 4;
+        }
+        return indices;
+    }
+
+    private static GLSLParser.ASTNode member(GLSLParser.ASTNode object, int[] selection) {
+        StringBuilder name = new StringBuilder();
+        for (int index : selection) {
+            name.append(COMPONENTS.charAt(index));
+        }
+        GLSLParser.MemberExpression member = new GLSLParser.MemberExpression();
+        member.object = object;
+        member.property = new GLSLParser.Identifier(name.toString());
+        member.resolvedType = typeOfWidth(selection.length);
+        return member;
+    }
+
+    private static GLSLParser.ASTNode construct(String type, List<GLSLParser.ASTNode> args) {
+        GLSLParser.CallExpression call = new GLSLParser.CallExpression();
+        call.callee = new GLSLParser.Identifier(type);
+        call.callee.resolvedType = type;
+        call.arguments.addAll(args);
+        call.resolvedType = type;
+        return call;
+    }
+
+    private static boolean isIdentity(int[] selection, int width) {
+        if (selection.length != width) {
+            return false;
+        }
+        for (int i = 0; i < selection.length; i++) {
+            if (selection[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isPure(GLSLParser.ASTNode node) {
+        return numbering.info(numbering.number(node)).pure;
+    }
+
+    private static boolean isCheap(GLSLParser.ASTNode node) {
+        return node instanceof GLSLParser.Identifier || node instanceof GLSLParser.Literal
+                || node instanceof GLSLParser.MemberExpression
+                && ((GLSLParser.MemberExpression) node).object instanceof GLSLParser.Identifier;
+    }
+
+    // Выражение из компонент selection векторного выражения expr (ширина результата -
+    // длина selection). Исходное дерево не меняется, поддеревья переиспользуются.
+    // null - выражение нельзя сузить, не вычислив лишнего или не потеряв побочных эффектов.
+    private GLSLParser.ASTNode narrow(GLSLParser.ASTNode expr, int[] selection) {
+        int width = width(expr.resolvedType);
+        if (width < 2) {
+            return null;
+        }
+        if (isIdentity(selection, width)) {
+            return expr;
+        }
+        String type = typeOfWidth(selection.length);
+
+        if (expr instanceof GLSLParser.BinaryExpression) {
+            GLSLParser.BinaryExpression binary = (GLSLParser.BinaryExpression) expr;
+            if (!"+-*/".contains(binary.operator) || binary.operator.length() != 1) {
+                return null;
+            }
+            GLSLParser.ASTNode left = narrowOperand(binary.left, width, selection);
+            GLSLParser.ASTNode right = narrowOperand(binary.right, width, selection);
+            if (left == null || right == null) {
+                return null;
+            }
+            GLSLParser.BinaryExpression result = new GLSLParser.BinaryExpression(binary.operator, left, right);
+            result.resolvedType = type;
+            return result;
+        }
+        if (expr instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) expr;
+            if (!unary.operator.equals("-") && !unary.operator.equals("+")) {
+                return null;
+            }
+            GLSLParser.ASTNode argument = narrow(unary.argument, selection);
+            if (argument == null) {
+                return null;
+            }
+            GLSLParser.UnaryExpression result = new GLSLParser.UnaryExpression(unary.operator, argument);
+            result.resolvedType = type;
+            return result;
+        }
+        if (expr instanceof GLSLParser.TernaryExpression) {
+            GLSLParser.TernaryExpression ternary = (GLSLParser.TernaryExpression) expr;
+            GLSLParser.ASTNode consequent = narrow(ternary.consequent, selection);
+            GLSLParser.ASTNode alternate = narrow(ternary.alternate, selection);
+            if (!"bool".equals(ternary.test.resolvedType) || consequent == null || alternate == null) {
+                return null;
+            }
+            GLSLParser.TernaryExpression result = new GLSLParser.TernaryExpression(ternary.test, consequent, alternate);
+            result.resolvedType = type;
+            return result;
+        }
+        if (expr instanceof GLSLParser.MemberExpression) {
+            GLSLParser.MemberExpression member = (GLSLParser.MemberExpression) expr;
+            int[] inner = swizzle(member, width(member.object.resolvedType));
+            if (inner != null) {
+                int[] composed = new int[selection.length];
+                for (int i = 0; i < selection.length; i++) {
+                    composed[i] = inner[selection[i]];
+                }
+                GLSLParser.ASTNode result = narrow(member.object, composed);
+                return result != null ? result : member(member.object, composed);
+            }
+            return member(expr, selection);
+        }
+        if (expr instanceof GLSLParser.CallExpression && ((GLSLParser.CallExpression) expr).callee instanceof GLSLParser.Identifier) {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) expr;
+            String callee = ((GLSLParser.Identifier) call.callee).name;
+            if (callee.equals(expr.resolvedType)) {
+                return narrowConstructor(call, width, selection);
+            }
+            if (COMPONENTWISE.contains(callee) && !userFunctions.contains(callee)) {
+                List<GLSLParser.ASTNode> args = new ArrayList<>();
+                for (GLSLParser.ASTNode arg : call.arguments) {
+                    GLSLParser.ASTNode narrowed = narrowOperand(arg, width, selection);
+                    if (narrowed == null) {
+                        return null;
+                    }
+                    args.add(narrowed);
+                }
+                GLSLParser.CallExpression result = new GLSLParser.CallExpression();
+                result.callee = call.callee;
+                result.arguments.addAll(args);
+                result.resolvedType = type;
+                return result;
+            }
+            return member(expr, selection);
+        }
+        if (expr instanceof GLSLParser.Identifier) {
+            return member(expr, selection);
+        }
+        return null;
+    }
+
+    // Операнд покомпонентной операции: скаляр остаётся, вектор той же ширины сужается
+    private GLSLParser.ASTNode narrowOperand(GLSLParser.ASTNode operand, int width, int[] selection) {
+        if ("float".equals(operand.resolvedType)) {
+            return operand;
+        }
+        if (width(operand.resolvedType) != width) {
+            return null;
+        }
+        GLSLParser.ASTNode narrowed = narrow(operand, selection);
+        if (narrowed != null) {
+            return narrowed;
+        }
+        // Вычисляется целиком; generator не ставит скобки вокруг унарного и тернарного объекта
+        return operand instanceof GLSLParser.UnaryExpression || operand instanceof GLSLParser.TernaryExpression
+                ? null
+                : member(operand, selection);
+    }
+
+    // vecN(a, b, ...) - компоненты результата берутся из аргументов по порядку
+    private GLSLParser.ASTNode narrowConstructor(GLSLParser.CallExpression call, int width, int[] selection) {
+        List<GLSLParser.ASTNode> args = call.arguments;
+        if (args.size() == 1 && "float".equals(args.get(0).resolvedType)) {
+            // Размножение скаляра
+            GLSLParser.ASTNode arg = args.get(0);
+            return selection.length == 1 ? arg : construct(typeOfWidth(selection.length), Collections.singletonList(arg));
+        }
+
+        // Компонента результата -> (аргумент, компонента аргумента)
+        int[] argOf = new int[width];
+        int[] componentOf = new int[width];
+        int slot = 0;
+        for (int a = 0; a < args.size() && slot < width; a++) {
+            int argWidth = width(args.get(a).resolvedType);
+            if (argWidth < 1) {
+                return null;
+            }
+            for (int c = 0; c < argWidth && slot < width; c++, slot++) {
+                argOf[slot] = a;
+                componentOf[slot] = c;
+            }
+        }
+        if (slot < width) {
+            return null;
+        }
+
+        // Подряд идущие компоненты одного векторного аргумента образуют один кусок
+        List<GLSLParser.ASTNode> pieces = new ArrayList<>();
+        int[] uses = new int[args.size()];
+        int i = 0;
+        while (i < selection.length) {
+            int a = argOf[selection[i]];
+            int j = i + 1;
+            while (j < selection.length && argOf[selection[j]] == a && width(args.get(a).resolvedType) > 1) {
+                j++;
+            }
+            GLSLParser.ASTNode arg = args.get(a);
+            int[] components = new int[j - i];
+            for (int k = i; k < j; k++) {
+                components[k - i] = componentOf[selection[k]];
+            }
+            GLSLParser.ASTNode piece = width(arg.resolvedType) == 1 ? arg : narrowOperand(arg, width(arg.resolvedType), components);
+            if (piece == null) {
+                return null;
+            }
+            pieces.add(piece);
+            uses[a]++;
+            i = j;
+        }
+        for (int a = 0; a < args.size(); a++) {
+            if (uses[a] == 0 && !isPure(args.get(a)) || uses[a] > 1 && !isCheap(args.get(a))) {
+                return null;
+            }
+        }
+        return pieces.size() == 1 ? pieces.get(0) : construct(typeOfWidth(selection.length), pieces);
+    }
+
+    // Живые компоненты векторных локальных переменных функции
+    private final class Liveness extends ScopedRewriter {
+        final Map<GLSLParser.VariableDeclaration, Integer> live = new LinkedHashMap<>();
+        // Значения, которые присваиваются переменной целиком
+        final Map<GLSLParser.VariableDeclaration, List<GLSLParser.ASTNode>> values = new HashMap<>();
+        // Переменные, прочитанные не через swizzle
+        final Set<GLSLParser.VariableDeclaration> escaped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private GLSLParser.VariableDeclaration tracked(GLSLParser.ASTNode node) {
+            if (node instanceof GLSLParser.Identifier) {
+                GLSLParser.ASTNode declaration = resolve(((GLSLParser.Identifier) node).name);
+                if (declaration != null && live.containsKey(declaration)) {
+                    return (GLSLParser.VariableDeclaration) declaration;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+            super.visit(decl);
+            if (inFunction() && width(decl.type) > 1) {
+                live.put(decl, 0);
+                if (decl.initializer != null) {
+                    values.computeIfAbsent(decl, k -> new ArrayList<>()).add(decl.initializer);
+                }
+            }
+            return decl;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+            if (stmt.expression instanceof GLSLParser.BinaryExpression) {
+                GLSLParser.BinaryExpression assign = (GLSLParser.BinaryExpression) stmt.expression;
+                GLSLParser.VariableDeclaration target = isAssignment(assign.operator) ? tracked(assign.left) : null;
+                if (target != null) {
+                    rewrite(assign.right);
+                    values.computeIfAbsent(target, k -> new ArrayList<>()).add(assign.right);
+                    return stmt;
+                }
+            }
+            return super.visit(stmt);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+            GLSLParser.VariableDeclaration target = tracked(expr.object);
+            int[] selection = target != null ? swizzle(expr, width(target.type)) : null;
+            if (selection == null) {
+                return super.visit(expr);
+            }
+            int mask = live.get(target);
+            for (int index : selection) {
+                mask |= 1 << index;
+            }
+            live.put(target, mask);
+            return expr;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+            GLSLParser.VariableDeclaration target = tracked(identifier);
+            if (target != null) {
+                escaped.add(target);
+            }
+            return identifier;
+        }
+    }
+
+    // Применяет план: новые типы и значения переменных, перенумерация swizzle,
+    // проталкивание swizzle в операции
+    private final class Narrower extends ScopedRewriter {
+        private final Map<GLSLParser.ASTNode, Narrowed> plan;
+
+        Narrower(Map<GLSLParser.ASTNode, Narrowed> plan) {
+            this.plan = plan;
+        }
+
+        private Narrowed narrowed(GLSLParser.ASTNode node) {
+            return node instanceof GLSLParser.Identifier
+                    ? plan.get(resolve(((GLSLParser.Identifier) node).name))
+                    : null;
+        }
+
+        private String type(Narrowed narrowed) {
+            return typeOfWidth(narrowed.live.length);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+            Narrowed narrowed = plan.get(decl);
+            if (narrowed != null) {
+                decl.type = type(narrowed);
+                decl.resolvedType = decl.type;
+                if (decl.initializer != null) {
+                    decl.initializer = narrowed.values.getOrDefault(decl.initializer, decl.initializer);
+                }
+            }
+            return super.visit(decl);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+            if (stmt.expression instanceof GLSLParser.BinaryExpression) {
+                GLSLParser.BinaryExpression assign = (GLSLParser.BinaryExpression) stmt.expression;
+                Narrowed narrowed = isAssignment(assign.operator) ? narrowed(assign.left) : null;
+                if (narrowed != null) {
+                    assign.right = narrowed.values.getOrDefault(assign.right, assign.right);
+                    assign.resolvedType = type(narrowed);
+                }
+            }
+            return super.visit(stmt);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+            Narrowed narrowed = narrowed(identifier);
+            if (narrowed != null) {
+                identifier.resolvedType = type(narrowed);
+            }
+            return identifier;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+            Narrowed narrowed = narrowed(expr.object);
+            if (narrowed != null) {
+                int[] selection = swizzle(expr, 4);
+                expr.object.resolvedType = type(narrowed);
+                int[] positions = new int[selection.length];
+                for (int i = 0; i < selection.length; i++) {
+                    positions[i] = Arrays.binarySearch(narrowed.live, selection[i]);
+                }
+                return select(expr.object, narrowed.live.length, positions);
+            }
+
+            super.visit(expr);
+            int width = width(expr.object.resolvedType);
+            int[] selection = swizzle(expr, width);
+            if (selection == null || expr.object instanceof GLSLParser.Identifier) {
+                return expr;
+            }
+            // Используемые компоненты по возрастанию
+            int[] used = Arrays.stream(selection).distinct().sorted().toArray();
+            if (used.length >= width) {
+                return expr;
+            }
+            GLSLParser.ASTNode result = narrow(expr.object, used);
+            if (result == null || result instanceof GLSLParser.MemberExpression
+                    && ((GLSLParser.MemberExpression) result).object == expr.object) {
+                return expr;
+            }
+            int[] positions = new int[selection.length];
+            for (int i = 0; i < selection.length; i++) {
+                positions[i] = Arrays.binarySearch(used, selection[i]);
+            }
+            GLSLParser.ASTNode selected = select(result, used.length, positions);
+            if (selected == null) {
+                return expr;
+            }
+            pushedCount++;
+            return selected;
+        }
+
+        // Компоненты positions значения ширины width; null - swizzle над унарным или
+        // тернарным выражением генератор вывел бы без скобок
+        private GLSLParser.ASTNode select(GLSLParser.ASTNode value, int width, int[] positions) {
+            if (isIdentity(positions, width)) {
+                return value;
+            }
+            if (width == 1) {
+                // Swizzle скаляра не поддерживается семантическим анализом - размножение
+                return positions.length == 1
+                        ? value
+                        : construct(typeOfWidth(positions.length), Collections.singletonList(value));
+            }
+            if (value instanceof GLSLParser.UnaryExpression || value instanceof GLSLParser.TernaryExpression) {
+                return null;
+            }
+            return member(value, positions);
+        }
+    }
+}
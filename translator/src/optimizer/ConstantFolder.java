@@ -0,0 +1,213 @@
+package optimizer;
+
+import parser.GLSLParser;
+import semantics.BuiltInPrelude;
+
+import java.util.*;
+
+// Свёртка констант и распространение локальных констант.
+// Сворачиваются арифметика, сравнения и логика над константами (скаляры и векторы),
+// конструкторы типов, swizzle константного вектора, встроенные функции от констант,
+// а также if и ?: с константным условием.
+// Локальная переменная с константным инициализатором, которая нигде не изменяется,
+// подставляется во все использования, а её объявление удаляется.
+// Работает по типам, вычисленным семантическим анализом: узлы без resolvedType не трогаются.
+public class ConstantFolder extends ScopedRewriter implements OptimizationPass {
+    private static final BuiltInPrelude PRELUDE = BuiltInPrelude.get();
+
+    private Set<GLSLParser.ASTNode> written = Collections.emptySet();
+    private final Map<GLSLParser.ASTNode, ConstantValue> constants = new IdentityHashMap<>();
+    private int foldedCount;
+    private int propagatedCount;
+    private int removedDeclarations;
+
+    @Override
+    public String getName() {
+        return "Constant folding";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        written = WriteAnalysis.writtenDeclarations(program);
+        constants.clear();
+        foldedCount = 0;
+        propagatedCount = 0;
+        removedDeclarations = 0;
+
+        program.accept(this);
+
+        return foldedCount + " expressions folded, " + propagatedCount + " constant uses propagated, "
+                + removedDeclarations + " declarations removed";
+    }
+
+    public int getFoldedCount() {
+        return foldedCount;
+    }
+
+    public int getPropagatedCount() {
+        return propagatedCount;
+    }
+
+    private GLSLParser.ASTNode folded(ConstantValue value, GLSLParser.ASTNode original) {
+        if (value == null) {
+            return original;
+        }
+        foldedCount++;
+        return value.toNode();
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        GLSLParser.ASTNode result = super.visit(decl);
+        if (!inFunction() || written.contains(decl) || decl.initializer == null) {
+            return result;
+        }
+
+        ConstantValue value = ConstantValue.of(decl.initializer);
+        if (value != null && !value.type.equals(decl.type)) {
+            // Неявное преобразование при инициализации, например float x = 1
+            value = value.isScalar() ? ConstantValue.construct(decl.type, List.of(value)) : null;
+        }
+        if (value == null) {
+            return result;
+        }
+
+        constants.put(decl, value);
+        removedDeclarations++;
+        return null; // Все использования будут заменены значением
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+        if (!inFunction()) {
+            return identifier;
+        }
+        ConstantValue value = constants.get(resolve(identifier.name));
+        if (value == null) {
+            return identifier;
+        }
+        propagatedCount++;
+        return value.toNode();
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        if (isAssignment(expr.operator) || expr.resolvedType == null) {
+            return expr;
+        }
+        ConstantValue left = ConstantValue.of(expr.left);
+        ConstantValue right = left != null ? ConstantValue.of(expr.right) : null;
+        if (right == null) {
+            return expr;
+        }
+        return folded(ConstantValue.binary(expr.operator, left, right, expr.resolvedType), expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        super.visit(expr);
+        // Отрицание литерала уже является константой в каноническом виде
+        if (expr.argument instanceof GLSLParser.Literal) {
+            if (!expr.operator.equals("!")) {
+                return expr;
+            }
+        }
+        ConstantValue value = ConstantValue.of(expr.argument);
+        if (value == null) {
+            return expr;
+        }
+        switch (expr.operator) {
+            case "-":
+                return folded(value.negate(), expr);
+            case "!":
+                return folded(value.not(), expr);
+            default:
+                return expr;
+        }
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        super.visit(expr);
+        if (!(expr.callee instanceof GLSLParser.Identifier) || expr.resolvedType == null) {
+            return expr;
+        }
+        String name = ((GLSLParser.Identifier) expr.callee).name;
+
+        List<ConstantValue> args = new ArrayList<>();
+        for (GLSLParser.ASTNode arg : expr.arguments) {
+            ConstantValue value = ConstantValue.of(arg);
+            if (value == null) {
+                return expr;
+            }
+            args.add(value);
+        }
+
+        if (ConstantValue.componentCount(name) > 0) {
+            // Конструктор из скалярных литералов уже каноничен (и vec3(1.0) короче развёрнутого)
+            if (scalarArguments(expr)) {
+                ConstantValue value = ConstantValue.construct(name, args);
+                boolean converts = value != null && value.isScalar() && !args.get(0).type.equals(name);
+                return converts ? folded(value, expr) : expr;
+            }
+            return folded(ConstantValue.construct(name, args), expr);
+        }
+
+        if (PRELUDE.isBuiltInFunction(name)) {
+            return folded(ConstantValue.builtin(name, args, expr.resolvedType), expr);
+        }
+        return expr;
+    }
+
+    private static boolean scalarArguments(GLSLParser.CallExpression expr) {
+        for (GLSLParser.ASTNode arg : expr.arguments) {
+            if (!(arg instanceof GLSLParser.Literal || arg instanceof GLSLParser.UnaryExpression)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+        super.visit(expr);
+        if (!(expr.property instanceof GLSLParser.Identifier)) {
+            return expr;
+        }
+        ConstantValue value = ConstantValue.of(expr.object);
+        if (value == null) {
+            return expr;
+        }
+        return folded(value.swizzle(((GLSLParser.Identifier) expr.property).name), expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+        super.visit(expr);
+        Boolean test = booleanConstant(expr.test);
+        if (test == null) {
+            return expr;
+        }
+        foldedCount++;
+        return test ? expr.consequent : expr.alternate;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        super.visit(stmt);
+        Boolean test = booleanConstant(stmt.test);
+        if (test == null) {
+            return stmt;
+        }
+        foldedCount++;
+        return test ? stmt.consequent : stmt.alternate;
+    }
+
+    private static Boolean booleanConstant(GLSLParser.ASTNode node) {
+        ConstantValue value = ConstantValue.of(node);
+        if (value == null || !value.type.equals("bool")) {
+            return null;
+        }
+        return value.components[0] != 0;
+    }
+}
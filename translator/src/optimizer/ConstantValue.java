@@ -0,0 +1,447 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Значение константного выражения: тип (float, int, bool, vec2..vec4) и компоненты.
+// Компоненты float-типов округляются до float после каждой операции, как на GPU;
+// int-операции выполняются в 32-битной арифметике.
+// Результат, не являющийся конечным числом (деление на ноль, sqrt(-1)), не сворачивается.
+final class ConstantValue {
+    final String type;
+    final double[] components;
+
+    private ConstantValue(String type, double[] components) {
+        this.type = type;
+        this.components = components;
+        if (isFloatBased(type)) {
+            for (int i = 0; i < components.length; i++) {
+                components[i] = (float) components[i];
+            }
+        }
+    }
+
+    private static ConstantValue create(String type, double[] components) {
+        for (double c : components) {
+            if (Double.isNaN(c) || Double.isInfinite(c)) {
+                return null;
+            }
+        }
+        return new ConstantValue(type, components);
+    }
+
+    // Скаляр float или int
+    static ConstantValue scalar(String type, double value) {
+        return create(type, new double[] { value });
+    }
+
+    static int componentCount(String type) {
+        if (type == null) return -1;
+        switch (type) {
+            case "float":
+            case "int":
+            case "bool":
+                return 1;
+            case "vec2":
+                return 2;
+            case "vec3":
+                return 3;
+            case "vec4":
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    static boolean isFloatBased(String type) {
+        return type.equals("float") || type.startsWith("vec");
+    }
+
+    static String vectorType(int size) {
+        return size == 1 ? "float" : "vec" + size;
+    }
+
+    int size() {
+        return components.length;
+    }
+
+    boolean isScalar() {
+        return components.length == 1;
+    }
+
+    double get(int i) {
+        return components.length == 1 ? components[0] : components[i];
+    }
+
+    // Значение узла, если он - литерал, отрицание литерала или конструктор из констант
+    static ConstantValue of(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.Literal) {
+            GLSLParser.Literal literal = (GLSLParser.Literal) node;
+            String type = literal.resolvedType;
+            if (componentCount(type) != 1) return null;
+            if (literal.value instanceof Number) {
+                return create(type, new double[] { ((Number) literal.value).doubleValue() });
+            }
+            if (literal.value instanceof Boolean) {
+                return create(type, new double[] { (Boolean) literal.value ? 1 : 0 });
+            }
+            return null;
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) node;
+            if (unary.operator.equals("-") && unary.argument instanceof GLSLParser.Literal) {
+                ConstantValue value = of(unary.argument);
+                return value != null ? value.negate() : null;
+            }
+            return null;
+        }
+        if (node instanceof GLSLParser.CallExpression) {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+            if (!(call.callee instanceof GLSLParser.Identifier)) return null;
+            String type = ((GLSLParser.Identifier) call.callee).name;
+            if (componentCount(type) < 0) return null;
+            List<ConstantValue> args = new ArrayList<>();
+            for (GLSLParser.ASTNode arg : call.arguments) {
+                ConstantValue value = of(arg);
+                if (value == null) return null;
+                args.add(value);
+            }
+            return construct(type, args);
+        }
+        return null;
+    }
+
+    // Конструктор типа: скаляр размножается, иначе компоненты аргументов берутся по порядку
+    static ConstantValue construct(String type, List<ConstantValue> args) {
+        int n = componentCount(type);
+        if (n < 0 || args.isEmpty()) return null;
+
+        double[] result = new double[n];
+        if (args.size() == 1 && args.get(0).isScalar()) {
+            Arrays.fill(result, args.get(0).components[0]);
+        } else {
+            int count = 0;
+            for (ConstantValue arg : args) {
+                for (double c : arg.components) {
+                    if (count < n) {
+                        result[count] = c;
+                    }
+                    count++;
+                }
+            }
+            if (count < n) return null;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (type.equals("int")) {
+                result[i] = (int) result[i];
+            } else if (type.equals("bool")) {
+                result[i] = result[i] != 0 ? 1 : 0;
+            }
+        }
+        return create(type, result);
+    }
+
+    ConstantValue negate() {
+        if (type.equals("bool")) return null;
+        double[] result = new double[size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = type.equals("int") ? -(int) components[i] : -components[i];
+        }
+        return create(type, result);
+    }
+
+    // 1/x покомпонентно; только для float-типов, при нулевой компоненте - null
+    ConstantValue reciprocal() {
+        if (!isFloatBased(type)) return null;
+        double[] result = new double[size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = 1 / components[i];
+        }
+        return create(type, result);
+    }
+
+    ConstantValue not() {
+        if (!type.equals("bool")) return null;
+        return create(type, new double[] { components[0] != 0 ? 0 : 1 });
+    }
+
+    ConstantValue swizzle(String selector) {
+        if (isScalar() || selector.isEmpty() || selector.length() > 4) return null;
+        double[] result = new double[selector.length()];
+        for (int i = 0; i < selector.length(); i++) {
+            int index = "xyzw".indexOf(selector.charAt(i));
+            if (index < 0) index = "rgba".indexOf(selector.charAt(i));
+            if (index < 0 || index >= size()) return null;
+            result[i] = components[index];
+        }
+        return create(vectorType(result.length), result);
+    }
+
+    // Бинарная операция; resultType - тип выражения, вычисленный семантическим анализом
+    static ConstantValue binary(String op, ConstantValue a, ConstantValue b, String resultType) {
+        switch (op) {
+            case "+":
+            case "-":
+            case "*":
+            case "/":
+                return arithmetic(op, a, b, resultType);
+            case "<":
+            case ">":
+            case "<=":
+            case ">=":
+                if (!a.isScalar() || !b.isScalar() || a.type.equals("bool") || b.type.equals("bool")) return null;
+                return bool(compare(op, a.components[0], b.components[0]));
+            case "==":
+            case "!=":
+                if (a.size() != b.size()) return null;
+                boolean equal = Arrays.equals(a.components, b.components);
+                return bool(op.equals("==") == equal);
+            case "&&":
+            case "||":
+                if (!a.type.equals("bool") || !b.type.equals("bool")) return null;
+                boolean x = a.components[0] != 0;
+                boolean y = b.components[0] != 0;
+                return bool(op.equals("&&") ? x && y : x || y);
+            default:
+                return null;
+        }
+    }
+
+    private static ConstantValue arithmetic(String op, ConstantValue a, ConstantValue b, String resultType) {
+        int n = componentCount(resultType);
+        if (n < 0 || resultType.equals("bool") || !fits(a, n) || !fits(b, n)) return null;
+
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (resultType.equals("int")) {
+                int x = (int) a.get(i);
+                int y = (int) b.get(i);
+                switch (op) {
+                    case "+": result[i] = x + y; break;
+                    case "-": result[i] = x - y; break;
+                    case "*": result[i] = x * y; break;
+                    default:
+                        if (y == 0) return null;
+                        result[i] = x / y;
+                }
+            } else {
+                float x = (float) a.get(i);
+                float y = (float) b.get(i);
+                switch (op) {
+                    case "+": result[i] = x + y; break;
+                    case "-": result[i] = x - y; break;
+                    case "*": result[i] = x * y; break;
+                    default: result[i] = x / y;
+                }
+            }
+        }
+        return create(resultType, result);
+    }
+
+    private static boolean fits(ConstantValue value, int n) {
+        return value.isScalar() || value.size() == n;
+    }
+
+    private static boolean compare(String op, double x, double y) {
+        switch (op) {
+            case "<": return x < y;
+            case ">": return x > y;
+            case "<=": return x <= y;
+            default: return x >= y;
+        }
+    }
+
+    private static ConstantValue bool(boolean value) {
+        return create("bool", new double[] { value ? 1 : 0 });
+    }
+
+    // Встроенная функция от констант; null - функция не вычисляется на этапе трансляции
+    static ConstantValue builtin(String name, List<ConstantValue> args, String resultType) {
+        int n = componentCount(resultType);
+        if (n < 0 || resultType.equals("bool")) return null;
+        for (ConstantValue arg : args) {
+            if (arg.type.equals("bool")) return null;
+        }
+
+        switch (args.size()) {
+            case 1: {
+                ConstantValue x = args.get(0);
+                switch (name) {
+                    case "length":
+                        return create("float", new double[] { Math.sqrt(dot(x, x)) });
+                    case "normalize": {
+                        double length = Math.sqrt(dot(x, x));
+                        if (length == 0) return null;
+                        return map(resultType, n, i -> x.get(i) / length);
+                    }
+                    default:
+                        if (!fits(x, n)) return null;
+                        Function1 f = unaryFunction(name, resultType.equals("int"));
+                        return f != null ? map(resultType, n, i -> f.apply(x.get(i))) : null;
+                }
+            }
+            case 2: {
+                ConstantValue x = args.get(0);
+                ConstantValue y = args.get(1);
+                switch (name) {
+                    case "dot":
+                        if (x.size() != y.size()) return null;
+                        return create("float", new double[] { dot(x, y) });
+                    case "distance": {
+                        if (x.size() != y.size()) return null;
+                        double sum = 0;
+                        for (int i = 0; i < x.size(); i++) {
+                            double d = x.components[i] - y.components[i];
+                            sum += d * d;
+                        }
+                        return create("float", new double[] { Math.sqrt(sum) });
+                    }
+                    case "cross":
+                        if (x.size() != 3 || y.size() != 3) return null;
+                        return create("vec3", new double[] {
+                                x.get(1) * y.get(2) - x.get(2) * y.get(1),
+                                x.get(2) * y.get(0) - x.get(0) * y.get(2),
+                                x.get(0) * y.get(1) - x.get(1) * y.get(0) });
+                    default:
+                        if (!fits(x, n) || !fits(y, n)) return null;
+                        Function2 f = binaryFunction(name);
+                        return f != null ? map(resultType, n, i -> f.apply(x.get(i), y.get(i))) : null;
+                }
+            }
+            case 3: {
+                ConstantValue a = args.get(0);
+                ConstantValue b = args.get(1);
+                ConstantValue c = args.get(2);
+                if (!fits(a, n) || !fits(b, n) || !fits(c, n)) return null;
+                switch (name) {
+                    case "clamp":
+                        return map(resultType, n, i -> Math.min(Math.max(a.get(i), b.get(i)), c.get(i)));
+                    case "mix":
+                        return map(resultType, n, i -> a.get(i) + (b.get(i) - a.get(i)) * c.get(i));
+                    case "smoothstep":
+                        return map(resultType, n, i -> {
+                            double range = b.get(i) - a.get(i);
+                            if (range == 0) return Double.NaN;
+                            double t = Math.min(Math.max((c.get(i) - a.get(i)) / range, 0), 1);
+                            return t * t * (3 - 2 * t);
+                        });
+                    default:
+                        return null;
+                }
+            }
+            default:
+                return null;
+        }
+    }
+
+    private interface Function1 {
+        double apply(double x);
+    }
+
+    private interface Function2 {
+        double apply(double x, double y);
+    }
+
+    private interface Component {
+        double apply(int i);
+    }
+
+    private static ConstantValue map(String type, int n, Component component) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = component.apply(i);
+        }
+        return create(type, result);
+    }
+
+    private static double dot(ConstantValue x, ConstantValue y) {
+        double sum = 0;
+        for (int i = 0; i < x.size(); i++) {
+            sum += x.components[i] * y.components[i];
+        }
+        return sum;
+    }
+
+    private static Function1 unaryFunction(String name, boolean integer) {
+        switch (name) {
+            case "abs": return Math::abs;
+            case "sign": return Math::signum;
+            default:
+                if (integer) return null;
+        }
+        switch (name) {
+            case "sin": return Math::sin;
+            case "cos": return Math::cos;
+            case "tan": return Math::tan;
+            case "asin": return Math::asin;
+            case "acos": return Math::acos;
+            case "atan": return Math::atan;
+            case "exp": return Math::exp;
+            case "log": return Math::log;
+            case "exp2": return x -> Math.pow(2, x);
+            case "log2": return x -> Math.log(x) / Math.log(2);
+            case "sqrt": return Math::sqrt;
+            case "inversesqrt": return x -> 1 / Math.sqrt(x);
+            case "floor": return Math::floor;
+            case "ceil": return Math::ceil;
+            case "fract": return x -> x - Math.floor(x);
+            case "radians": return Math::toRadians;
+            case "degrees": return Math::toDegrees;
+            default: return null;
+        }
+    }
+
+    private static Function2 binaryFunction(String name) {
+        switch (name) {
+            case "pow": return (x, y) -> x < 0 ? Double.NaN : Math.pow(x, y);
+            case "min": return Math::min;
+            case "max": return Math::max;
+            case "mod": return (x, y) -> y == 0 ? Double.NaN : x - y * Math.floor(x / y);
+            case "step": return (edge, x) -> x < edge ? 0 : 1;
+            case "atan": return Math::atan2;
+            default: return null;
+        }
+    }
+
+    // Узел AST для значения: литерал, отрицание литерала или конструктор вектора
+    GLSLParser.ASTNode toNode() {
+        if (isScalar()) {
+            return scalarNode(type, components[0]);
+        }
+        GLSLParser.CallExpression call = new GLSLParser.CallExpression();
+        call.callee = new GLSLParser.Identifier(type);
+        for (double c : components) {
+            call.arguments.add(scalarNode("float", c));
+        }
+        call.resolvedType = type;
+        return call;
+    }
+
+    private static GLSLParser.ASTNode scalarNode(String type, double value) {
+        GLSLParser.Literal literal;
+        boolean negative;
+        if (type.equals("bool")) {
+            literal = new GLSLParser.Literal(value != 0, value != 0 ? "true" : "false");
+            negative = false;
+        } else if (type.equals("int")) {
+            long v = (long) value;
+            negative = v < 0;
+            literal = new GLSLParser.Literal((int) Math.abs(v), Long.toString(Math.abs(v)));
+        } else {
+            float v = (float) value;
+            negative = v < 0 || (v == 0 && 1 / v < 0);
+            float abs = Math.abs(v);
+            literal = new GLSLParser.Literal(abs, Float.toString(abs));
+        }
+        literal.resolvedType = type;
+        if (!negative) {
+            return literal;
+        }
+        // Отрицательные значения - унарный минус: лексер не знает отрицательных литералов
+        GLSLParser.UnaryExpression minus = new GLSLParser.UnaryExpression("-", literal);
+        minus.resolvedType = type;
+        return minus;
+    }
+}
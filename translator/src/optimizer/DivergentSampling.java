@@ -0,0 +1,400 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Чтение текстур с неявными производными (texture, texture2D, textureCube) и сами
+// производные (dFdx, dFdy, fwidth) в расходящемся потоке управления: производная
+// считается по квадрату 2x2 пикселей, и если соседи квадрата пошли другой ветвью,
+// результат не определён, а компилятор вынужден сглаживать ветвь или держать
+// вспомогательные потоки. Расходящаяся область (условия - по Uniformity):
+//  - if с неоднородным условием (само условие вычисляется до ветвления);
+//  - for/while с неоднородным условием или с return под неоднородным условием
+//    (следующие итерации выполняет только часть пикселей);
+//  - операторы после такого раннего return до конца списка, вместе с ним самим.
+// Если координата чтения чиста и её переменные не меняются и не объявляются в области,
+// она вычисляется один раз перед областью вместе с производными (_dd0 = uv * s,
+// _dd1 = dFdx(_dd0), _dd2 = dFdy(_dd0)), а чтение заменяется на
+// textureGrad(tex, _dd0, _dd1, _dd2); координата-переменная не копируется, одинаковые
+// координаты делят временные переменные. Производная выносится целиком или остаётся.
+// Иначе (координата зависит от значений, вычисленных в области) чтение заменяется на
+// textureLod(tex, uv, 0.0), если это не отключено: читается нулевой уровень mip без
+// трилинейной и анизотропной фильтрации, поэтому на уменьшенной текстуре появляется
+// алиасинг. Такие замены считаются отдельно и попадают в отчёт прохода.
+// Однородные ветви не трогаются: в них весь квадрат идёт одной ветвью.
+// Анализ внутрифункциональный: вызов из расходящейся ветви вызывающей функции не
+// учитывается (обычно такие функции уже встроены).
+public class DivergentSampling extends ASTRewriter implements OptimizationPass {
+    private static final String TEMP_PREFIX = "_dd";
+
+    private static final Map<String, String> LOD_FETCHES = new HashMap<>();
+    private static final Set<String> DERIVATIVES = new HashSet<>(Arrays.asList("dFdx", "dFdy", "fwidth"));
+
+    static {
+        LOD_FETCHES.put("texture", "textureLod");
+        LOD_FETCHES.put("texture2D", "texture2DLod");
+        LOD_FETCHES.put("textureCube", "textureCubeLod");
+    }
+
+    private final boolean lodFallback;
+    private Map<String, List<GLSLParser.FunctionDeclaration>> functions = Collections.emptyMap();
+    private Set<String> uniformGlobals = Collections.emptySet();
+    private final Set<String> mutableGlobals = new HashSet<>();
+    // Блоки "объявления + оператор", которые встраиваются в объемлющий список операторов
+    private final Set<GLSLParser.ASTNode> hoistBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Uniformity uniformity;
+    private ValueNumbering numbering;
+    // Текущая расходящаяся область (null - однородный поток)
+    private Region region;
+    private int tempCounter;
+    private int gradCount;
+    private int lodCount;
+    private int derivativeCount;
+
+    // Расходящаяся область: имена, которые в ней меняются или объявляются, и временные
+    // переменные с производными, объявляемые перед ней
+    private static final class Region {
+        final Set<String> variant;
+        final List<GLSLParser.ASTNode> hoisted = new ArrayList<>();
+        final Map<String, GLSLParser.Identifier> temps = new HashMap<>();
+
+        Region(Set<String> variant) {
+            this.variant = variant;
+        }
+    }
+
+    public DivergentSampling() {
+        this(true);
+    }
+
+    // lodFallback: читать нулевой уровень mip, если производные нельзя вынести
+    // (меняет фильтрацию; false - такие чтения остаются как есть)
+    public DivergentSampling(boolean lodFallback) {
+        this.lodFallback = lodFallback;
+    }
+
+    @Override
+    public String getName() {
+        return "Divergent sampling";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions = WriteAnalysis.functionsOf(program);
+        uniformGlobals = Uniformity.uniformGlobals(program);
+        mutableGlobals.clear();
+        tempCounter = 0;
+        gradCount = 0;
+        lodCount = 0;
+        derivativeCount = 0;
+
+        Set<String> globals = new HashSet<>();
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.VariableDeclaration
+                    && !((GLSLParser.VariableDeclaration) decl).isUniform) {
+                globals.add(((GLSLParser.VariableDeclaration) decl).name);
+            }
+        }
+        for (List<GLSLParser.FunctionDeclaration> overloads : functions.values()) {
+            for (GLSLParser.FunctionDeclaration func : overloads) {
+                if (func.body != null) {
+                    for (String name : WriteAnalysis.writtenNames(func.body, functions)) {
+                        if (globals.contains(name)) {
+                            mutableGlobals.add(name);
+                        }
+                    }
+                }
+            }
+        }
+
+        program.accept(this);
+        hoistBlocks.clear();
+        uniformity = null;
+        numbering = null;
+        return gradCount + " samples lowered to textureGrad, " + lodCount
+                + " fell back to textureLod at mip 0 (filtering changes), "
+                + derivativeCount + " derivatives hoisted";
+    }
+
+    public int getGradCount() {
+        return gradCount;
+    }
+
+    public int getLodCount() {
+        return lodCount;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        if (func.body == null) {
+            return func;
+        }
+        uniformity = Uniformity.analyze(func, uniformGlobals, functions.keySet());
+        numbering = new ValueNumbering(functions.keySet());
+        region = null;
+        super.visit(func);
+        uniformity = null;
+        return func;
+    }
+
+    // Ранний return под неоднородным условием делает расходящимися его самого и все
+    // следующие операторы списка; объявления встают перед ним
+    @Override
+    protected void rewriteStatements(List<GLSLParser.ASTNode> statements) {
+        int anchor = -1;
+        for (int i = 0; i < statements.size(); i++) {
+            GLSLParser.ASTNode stmt = statements.get(i);
+            if (region == null && uniformity != null && divergentReturn(stmt)) {
+                region = open(statements.subList(i, statements.size()));
+                anchor = i;
+            }
+            statements.set(i, rewrite(stmt));
+        }
+        if (anchor >= 0) {
+            statements.addAll(anchor, region.hoisted);
+            region = null;
+        }
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            GLSLParser.ASTNode stmt = statements.get(i);
+            if (hoistBlocks.contains(stmt)) {
+                statements.remove(i);
+                statements.addAll(i, ((GLSLParser.BlockStatement) stmt).statements);
+            }
+        }
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        stmt.test = rewrite(stmt.test);
+        if (region != null || uniformity.isUniform(stmt.test)) {
+            stmt.consequent = rewriteNested(stmt.consequent);
+            stmt.alternate = rewrite(stmt.alternate);
+            return stmt;
+        }
+        region = open(Arrays.asList(stmt.consequent, stmt.alternate));
+        stmt.consequent = rewriteNested(stmt.consequent);
+        stmt.alternate = rewrite(stmt.alternate);
+        return close(stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        if (region != null || uniformity.isUniform(stmt.test) && !divergentReturn(stmt.body)) {
+            return super.visit(stmt);
+        }
+        // init выполняется один раз до ветвления
+        stmt.init = rewrite(stmt.init);
+        region = open(Collections.singletonList(stmt));
+        stmt.test = rewrite(stmt.test);
+        stmt.update = rewrite(stmt.update);
+        stmt.body = rewriteNested(stmt.body);
+        return close(stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        if (region != null || uniformity.isUniform(stmt.test) && !divergentReturn(stmt.body)) {
+            return super.visit(stmt);
+        }
+        region = open(Collections.singletonList(stmt));
+        super.visit(stmt);
+        return close(stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        super.visit(expr);
+        if (region == null || !(expr.callee instanceof GLSLParser.Identifier)) {
+            return expr;
+        }
+        String name = ((GLSLParser.Identifier) expr.callee).name;
+        if (functions.containsKey(name)) {
+            return expr;
+        }
+        if (DERIVATIVES.contains(name) && expr.arguments.size() == 1 && isAvailable(expr.arguments.get(0))) {
+            GLSLParser.ASTNode arg = expr.arguments.get(0);
+            derivativeCount++;
+            return temp(name, ASTCopier.plainCopy(arg), numbering.number(arg));
+        }
+        if (!LOD_FETCHES.containsKey(name) || expr.arguments.size() != 2) {
+            return expr;
+        }
+        GLSLParser.ASTNode coord = expr.arguments.get(1);
+        if (isAvailable(coord)) {
+            // Координата вычисляется один раз: и для чтения, и для обеих производных
+            int number = numbering.number(coord);
+            GLSLParser.Identifier value = coord instanceof GLSLParser.Identifier
+                    ? (GLSLParser.Identifier) coord
+                    : temp(null, ASTCopier.plainCopy(coord), number);
+            expr.callee = new GLSLParser.Identifier("textureGrad");
+            expr.arguments.set(1, value);
+            expr.arguments.add(temp("dFdx", copy(value), number));
+            expr.arguments.add(temp("dFdy", copy(value), number));
+            gradCount++;
+        } else if (lodFallback) {
+            expr.callee = new GLSLParser.Identifier(LOD_FETCHES.get(name));
+            GLSLParser.Literal lod = new GLSLParser.Literal(0.0f, "0.0");
+            lod.resolvedType = "float";
+            expr.arguments.add(lod);
+            lodCount++;
+        }
+        return expr;
+    }
+
+    private Region open(List<GLSLParser.ASTNode> statements) {
+        Set<String> variant = new HashSet<>();
+        RegionScan scan = new RegionScan();
+        for (GLSLParser.ASTNode stmt : statements) {
+            if (stmt != null) {
+                variant.addAll(WriteAnalysis.writtenNames(stmt, functions));
+                stmt.accept(scan);
+            }
+        }
+        variant.addAll(scan.declared);
+        if (scan.userCalls) {
+            variant.addAll(mutableGlobals);
+        }
+        return new Region(variant);
+    }
+
+    // Объявления производных встают в объемлющий блок перед оператором
+    private GLSLParser.ASTNode close(GLSLParser.ASTNode stmt) {
+        List<GLSLParser.ASTNode> hoisted = region.hoisted;
+        region = null;
+        if (hoisted.isEmpty()) {
+            return stmt;
+        }
+        // Вложенный оператор if/for/while остаётся блоком
+        GLSLParser.BlockStatement block = new GLSLParser.BlockStatement();
+        block.statements.addAll(hoisted);
+        block.statements.add(stmt);
+        hoistBlocks.add(block);
+        return block;
+    }
+
+    // Координата чиста, и все её переменные имеют перед областью то же значение
+    private boolean isAvailable(GLSLParser.ASTNode node) {
+        ValueNumbering.Info info = numbering.info(numbering.number(node));
+        if (!info.pure || node.resolvedType == null) {
+            return false;
+        }
+        for (String var : info.vars) {
+            if (region.variant.contains(var)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Временная переменная derivative(arg) (или само значение arg при derivative == null),
+    // вычисленная перед областью; number - номер исходного выражения, по нему
+    // одинаковые значения делят переменную
+    private GLSLParser.Identifier temp(String derivative, GLSLParser.ASTNode arg, int number) {
+        String key = derivative + ":" + number;
+        GLSLParser.Identifier known = region.temps.get(key);
+        if (known == null) {
+            GLSLParser.ASTNode initializer = arg;
+            if (derivative != null) {
+                GLSLParser.CallExpression call = new GLSLParser.CallExpression();
+                GLSLParser.Identifier callee = new GLSLParser.Identifier(derivative);
+                callee.resolvedType = arg.resolvedType;
+                call.callee = callee;
+                call.arguments.add(arg);
+                call.resolvedType = arg.resolvedType;
+                initializer = call;
+            }
+
+            GLSLParser.VariableDeclaration decl = new GLSLParser.VariableDeclaration();
+            decl.type = arg.resolvedType;
+            decl.name = TEMP_PREFIX + tempCounter++;
+            decl.initializer = initializer;
+            region.hoisted.add(new GLSLParser.VariableStatement(decl));
+            known = new GLSLParser.Identifier(decl.name);
+            known.resolvedType = decl.type;
+            region.temps.put(key, known);
+        }
+        return copy(known);
+    }
+
+    private static GLSLParser.Identifier copy(GLSLParser.Identifier identifier) {
+        GLSLParser.Identifier use = new GLSLParser.Identifier(identifier.name);
+        use.resolvedType = identifier.resolvedType;
+        return use;
+    }
+
+    // Есть ли в операторе return под неоднородным условием if, for или while
+    private boolean divergentReturn(GLSLParser.ASTNode stmt) {
+        if (stmt == null) {
+            return false;
+        }
+        ReturnScan scan = new ReturnScan();
+        stmt.accept(scan);
+        return scan.found;
+    }
+
+    private final class ReturnScan extends ASTRewriter {
+        private int divergentDepth;
+        boolean found;
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ReturnStatement stmt) {
+            found |= divergentDepth > 0;
+            return stmt;
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+            return nested(stmt, stmt.test, () -> super.visit(stmt));
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+            return nested(stmt, stmt.test, () -> super.visit(stmt));
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+            return nested(stmt, stmt.test, () -> super.visit(stmt));
+        }
+
+        private GLSLParser.ASTNode nested(GLSLParser.ASTNode stmt, GLSLParser.ASTNode test, Runnable body) {
+            boolean divergent = !uniformity.isUniform(test);
+            if (divergent) {
+                divergentDepth++;
+            }
+            body.run();
+            if (divergent) {
+                divergentDepth--;
+            }
+            return stmt;
+        }
+
+        // Выражения не содержат операторов
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.ExpressionStatement stmt) {
+            return stmt;
+        }
+    }
+
+    // Имена, объявленные в области, и наличие вызовов пользовательских функций
+    private final class RegionScan extends ASTRewriter {
+        final Set<String> declared = new HashSet<>();
+        boolean userCalls;
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+            declared.add(decl.name);
+            return super.visit(decl);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+            if (expr.callee instanceof GLSLParser.Identifier
+                    && functions.containsKey(((GLSLParser.Identifier) expr.callee).name)) {
+                userCalls = true;
+            }
+            return super.visit(expr);
+        }
+    }
+}
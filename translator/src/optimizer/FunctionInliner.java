@@ -0,0 +1,512 @@
+package optimizer;
+
+import parser.ASTFingerprint;
+import parser.GLSLParser;
+import semantics.CallGraph;
+
+import java.util.*;
+
+// Встраивание небольших пользовательских функций в места вызова.
+// Кандидат - нерекурсивная функция без перегрузок, кроме main, у которой return
+// встречается только последним оператором тела, а размер тела не больше maxSize узлов
+// (или функция вызывается ровно один раз).
+// Функция вида { return e; } с in-параметрами встраивается как выражение в любом месте:
+// аргумент, который не меняется в теле и дёшев (переменная, литерал) или чист и
+// используется не больше раза, подставляется напрямую, иначе вычисляется во временную
+// переменную перед оператором (если в операторе нет других вызовов и записей).
+// Остальные функции встраиваются на уровне оператора (f(...); x = f(...); T x = f(...);
+// return f(...);)
+// блоком: in/inout-параметры копируются в локальные _inlN_имя, out - объявляются без
+// значения, после тела значения out/inout копируются обратно в аргументы,
+// результат попадает в _inlN_result. Локальные переменные функции переименовываются.
+// Вызов не встраивается, если глобальное имя из тела функции перекрыто локальным
+// в месте вызова. После встраивания удаляются функции, ставшие недостижимыми из main.
+public class FunctionInliner extends ScopedRewriter implements OptimizationPass {
+    public static final int DEFAULT_MAX_SIZE = 32;
+
+    private static final String PREFIX = "_inl";
+
+    private final int maxSize;
+    private final Map<String, List<GLSLParser.FunctionDeclaration>> functions = new HashMap<>();
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private int siteCounter;
+    private int inlinedCount;
+    private int removedCount;
+
+    // Операторы, которые нужно вставить перед текущим оператором списка
+    private List<GLSLParser.ASTNode> prefix;
+    private boolean hoistable;
+
+    public FunctionInliner() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public FunctionInliner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static final class Candidate {
+        final GLSLParser.FunctionDeclaration function;
+        // Тело - единственный return с выражением, все параметры in
+        final boolean expression;
+        final Set<String> writtenParameters;
+        final Map<String, Integer> parameterUses;
+        final Set<String> freeNames;
+
+        Candidate(GLSLParser.FunctionDeclaration function, boolean expression, Set<String> writtenParameters,
+                  Map<String, Integer> parameterUses, Set<String> freeNames) {
+            this.function = function;
+            this.expression = expression;
+            this.writtenParameters = writtenParameters;
+            this.parameterUses = parameterUses;
+            this.freeNames = freeNames;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Inlining";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions.clear();
+        candidates.clear();
+        siteCounter = 0;
+        inlinedCount = 0;
+        removedCount = 0;
+
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
+                functions.computeIfAbsent(func.name, k -> new ArrayList<>()).add(func);
+            }
+        }
+
+        CallGraph graph = CallGraph.build(program);
+        Set<String> reachableBefore = graph.reachable(CallGraph.ENTRY_POINT);
+        Map<String, Integer> callCounts = countCalls(graph, reachableBefore);
+        for (String name : reachableBefore) {
+            Candidate candidate = candidate(name, graph, callCounts.getOrDefault(name, 0));
+            if (candidate != null) {
+                candidates.put(name, candidate);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return "0 calls inlined, 0 functions removed";
+        }
+
+        // Вызываемые раньше вызывающих: тело кандидата встраивается уже обработанным
+        for (GLSLParser.FunctionDeclaration func : graph.emissionOrder(CallGraph.ENTRY_POINT)) {
+            func.accept(this);
+        }
+
+        if (graph.hasFunction(CallGraph.ENTRY_POINT)) {
+            removeUnreferenced(program, reachableBefore);
+        }
+
+        return inlinedCount + " calls inlined, " + removedCount + " functions removed";
+    }
+
+    // Удаляет функции, которые были достижимы из main, а после встраивания нигде не вызываются.
+    // Вызовы из оставшихся функций (в том числе недостижимых) сохраняют вызываемую функцию
+    private void removeUnreferenced(GLSLParser.Program program, Set<String> reachableBefore) {
+        CallGraph after = CallGraph.build(program);
+        Set<String> removable = new HashSet<>(reachableBefore);
+        removable.removeAll(after.reachable(CallGraph.ENTRY_POINT));
+
+        Deque<String> kept = new ArrayDeque<>();
+        for (String name : functions.keySet()) {
+            if (!removable.contains(name)) {
+                kept.push(name);
+            }
+        }
+        while (!kept.isEmpty()) {
+            for (String callee : after.getCallees(kept.pop())) {
+                if (removable.remove(callee)) {
+                    kept.push(callee);
+                }
+            }
+        }
+
+        Iterator<GLSLParser.ASTNode> it = program.declarations.iterator();
+        while (it.hasNext()) {
+            GLSLParser.ASTNode decl = it.next();
+            if (decl instanceof GLSLParser.FunctionDeclaration
+                    && removable.contains(((GLSLParser.FunctionDeclaration) decl).name)) {
+                it.remove();
+                removedCount++;
+            }
+        }
+    }
+
+    public int getInlinedCount() {
+        return inlinedCount;
+    }
+
+    private Map<String, Integer> countCalls(CallGraph graph, Set<String> reachable) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : reachable) {
+            for (GLSLParser.FunctionDeclaration func : functions.get(name)) {
+                for (GLSLParser.ASTNode node : ASTFingerprint.nodesOf(func).getNodes()) {
+                    String callee = calleeName(node);
+                    if (callee != null && graph.hasFunction(callee)) {
+                        counts.merge(callee, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    private Candidate candidate(String name, CallGraph graph, int callCount) {
+        List<GLSLParser.FunctionDeclaration> overloads = functions.get(name);
+        if (name.equals(CallGraph.ENTRY_POINT) || overloads.size() != 1 || callCount == 0) {
+            return null;
+        }
+        GLSLParser.FunctionDeclaration func = overloads.get(0);
+        if (func.body == null || func.body.statements.isEmpty() && !func.returnType.equals("void")) {
+            return null;
+        }
+        for (GLSLParser.Parameter param : func.parameters) {
+            if (param.name == null) {
+                return null;
+            }
+        }
+        for (String callee : graph.getCallees(name)) {
+            if (graph.reachable(callee).contains(name)) {
+                return null; // Рекурсия
+            }
+        }
+
+        List<GLSLParser.ASTNode> nodes = ASTFingerprint.nodesOf(func.body).getNodes();
+        if (nodes.size() > maxSize && callCount > 1) {
+            return null;
+        }
+        // return допускается только последним оператором тела
+        List<GLSLParser.ASTNode> statements = func.body.statements;
+        GLSLParser.ASTNode last = statements.isEmpty() ? null : statements.get(statements.size() - 1);
+        for (GLSLParser.ASTNode node : nodes) {
+            if (node instanceof GLSLParser.ReturnStatement && node != last) {
+                return null;
+            }
+        }
+        if (!func.returnType.equals("void")
+                && !(last instanceof GLSLParser.ReturnStatement && ((GLSLParser.ReturnStatement) last).argument != null)) {
+            return null;
+        }
+
+        Set<String> parameterNames = new HashSet<>();
+        boolean allIn = true;
+        for (GLSLParser.Parameter param : func.parameters) {
+            parameterNames.add(param.name);
+            allIn &= param.qualifier == null || param.qualifier.equals("in");
+        }
+        Map<String, Integer> uses = new HashMap<>();
+        for (GLSLParser.ASTNode node : nodes) {
+            if (node instanceof GLSLParser.Identifier && parameterNames.contains(((GLSLParser.Identifier) node).name)) {
+                uses.merge(((GLSLParser.Identifier) node).name, 1, Integer::sum);
+            }
+        }
+        Set<String> written = new HashSet<>(WriteAnalysis.writtenNames(func.body, functions));
+        written.retainAll(parameterNames);
+
+        // Свободные имена тела: всё, что не параметр и не локальная переменная
+        Map<String, GLSLParser.ASTNode> renames = new HashMap<>();
+        for (String param : parameterNames) {
+            renames.put(param, new GLSLParser.Identifier(param));
+        }
+        ASTCopier probe = new ASTCopier(renames, local -> local);
+        probe.copy(func.body);
+
+        boolean expression = allIn && statements.size() == 1 && last instanceof GLSLParser.ReturnStatement
+                && !func.returnType.equals("void");
+        return new Candidate(func, expression, written, uses, probe.getFreeNames());
+    }
+
+    private static String calleeName(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.CallExpression
+                && ((GLSLParser.CallExpression) node).callee instanceof GLSLParser.Identifier) {
+            return ((GLSLParser.Identifier) ((GLSLParser.CallExpression) node).callee).name;
+        }
+        return null;
+    }
+
+    private Candidate inlinable(GLSLParser.ASTNode node) {
+        String name = calleeName(node);
+        Candidate candidate = name != null ? candidates.get(name) : null;
+        if (candidate == null
+                || ((GLSLParser.CallExpression) node).arguments.size() != candidate.function.parameters.size()) {
+            return null;
+        }
+        for (String free : candidate.freeNames) {
+            if (resolve(free) != null) {
+                return null; // Глобальное имя перекрыто локальным в месте вызова
+            }
+        }
+        return candidate;
+    }
+
+    private static boolean isInput(GLSLParser.Parameter param) {
+        return param.qualifier == null || param.qualifier.equals("in");
+    }
+
+    private static boolean isCheap(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.Identifier || node instanceof GLSLParser.Literal) {
+            return true;
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) node;
+            return unary.operator.equals("-") && unary.argument instanceof GLSLParser.Literal;
+        }
+        return node instanceof GLSLParser.MemberExpression
+                && baseIdentifier(node) != null && isCheap(((GLSLParser.MemberExpression) node).object);
+    }
+
+    private boolean isPure(GLSLParser.ASTNode node) {
+        ValueNumbering numbering = new ValueNumbering(functions.keySet());
+        return numbering.info(numbering.number(node)).pure;
+    }
+
+    private static boolean mentions(List<GLSLParser.ASTNode> nodes, String name) {
+        for (GLSLParser.ASTNode node : nodes) {
+            if (ASTFingerprint.nodesOf(node).getNames().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLValue(GLSLParser.ASTNode node) {
+        return baseIdentifier(node) != null && isCheap(node);
+    }
+
+    private String freshName(int site, String name) {
+        return PREFIX + site + "_" + name;
+    }
+
+    private static GLSLParser.Identifier identifier(String name, String type) {
+        GLSLParser.Identifier identifier = new GLSLParser.Identifier(name);
+        identifier.resolvedType = type;
+        return identifier;
+    }
+
+    private static GLSLParser.VariableStatement declaration(String type, String precision, String name,
+                                                            GLSLParser.ASTNode initializer) {
+        GLSLParser.VariableDeclaration decl = new GLSLParser.VariableDeclaration();
+        decl.type = type;
+        decl.precision = precision;
+        decl.name = name;
+        decl.initializer = initializer;
+        return new GLSLParser.VariableStatement(decl);
+    }
+
+    private static GLSLParser.ExpressionStatement assignment(String operator, GLSLParser.ASTNode target,
+                                                             GLSLParser.ASTNode value) {
+        GLSLParser.BinaryExpression expr = new GLSLParser.BinaryExpression(operator, target, value);
+        expr.resolvedType = target.resolvedType;
+        return new GLSLParser.ExpressionStatement(expr);
+    }
+
+    // Встраивание выражением
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        super.visit(expr);
+        Candidate candidate = inlinable(expr);
+        if (candidate == null || !candidate.expression) {
+            return expr;
+        }
+
+        int site = siteCounter;
+        List<GLSLParser.Parameter> params = candidate.function.parameters;
+        Map<String, GLSLParser.ASTNode> replacements = new HashMap<>();
+        List<GLSLParser.ASTNode> temporaries = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            GLSLParser.Parameter param = params.get(i);
+            GLSLParser.ASTNode arg = expr.arguments.get(i);
+            int uses = candidate.parameterUses.getOrDefault(param.name, 0);
+            boolean written = candidate.writtenParameters.contains(param.name);
+            if (!written && (isCheap(arg) || uses <= 1 && isPure(arg))) {
+                replacements.put(param.name, arg);
+            } else if (hoistable && prefix != null) {
+                String temp = freshName(site, param.name);
+                temporaries.add(declaration(param.type, param.precision, temp, arg));
+                replacements.put(param.name, identifier(temp, param.type));
+            } else {
+                return expr;
+            }
+        }
+
+        siteCounter++;
+        inlinedCount++;
+        prefix.addAll(temporaries);
+        ASTCopier copier = new ASTCopier(replacements, local -> freshName(site, local));
+        GLSLParser.ReturnStatement ret = (GLSLParser.ReturnStatement) candidate.function.body.statements.get(0);
+        return copier.copy(ret.argument);
+    }
+
+    // Встраивание на уровне оператора
+
+    @Override
+    protected void rewriteStatements(List<GLSLParser.ASTNode> statements) {
+        List<GLSLParser.ASTNode> result = new ArrayList<>();
+        List<GLSLParser.ASTNode> savedPrefix = prefix;
+        boolean savedHoistable = hoistable;
+        for (GLSLParser.ASTNode stmt : statements) {
+            prefix = new ArrayList<>();
+            hoistable = isHoistable(stmt);
+            GLSLParser.ASTNode rewritten = rewrite(stmt);
+            result.addAll(prefix);
+            if (rewritten != null && !inlineStatement(rewritten, result)) {
+                result.add(rewritten);
+            }
+        }
+        prefix = savedPrefix;
+        hoistable = savedHoistable;
+        statements.clear();
+        statements.addAll(result);
+    }
+
+    // Временные переменные для аргументов можно вычислить перед оператором, если
+    // в нём нет других записей и вызовов пользовательских функций
+    private boolean isHoistable(GLSLParser.ASTNode stmt) {
+        if (!(stmt instanceof GLSLParser.VariableStatement || stmt instanceof GLSLParser.ExpressionStatement
+                || stmt instanceof GLSLParser.ReturnStatement)) {
+            return false;
+        }
+        int userCalls = 0;
+        int writes = 0;
+        for (GLSLParser.ASTNode node : ASTFingerprint.nodesOf(stmt).getNodes()) {
+            String callee = calleeName(node);
+            if (callee != null && functions.containsKey(callee)) {
+                userCalls++;
+            } else if (node instanceof GLSLParser.BinaryExpression
+                    && isAssignment(((GLSLParser.BinaryExpression) node).operator)) {
+                writes++;
+            } else if (node instanceof GLSLParser.UnaryExpression
+                    && (((GLSLParser.UnaryExpression) node).operator.equals("++")
+                    || ((GLSLParser.UnaryExpression) node).operator.equals("--"))) {
+                writes += 2;
+            }
+        }
+        // Одно присваивание верхнего уровня допустимо: оно выполняется после правой части
+        return userCalls <= 1 && writes <= (topLevelAssignment(stmt) != null ? 1 : 0);
+    }
+
+    private static GLSLParser.BinaryExpression topLevelAssignment(GLSLParser.ASTNode stmt) {
+        GLSLParser.ASTNode expr = stmt;
+        while (expr instanceof GLSLParser.ExpressionStatement) {
+            expr = ((GLSLParser.ExpressionStatement) expr).expression;
+        }
+        if (expr instanceof GLSLParser.BinaryExpression && isAssignment(((GLSLParser.BinaryExpression) expr).operator)) {
+            return (GLSLParser.BinaryExpression) expr;
+        }
+        return null;
+    }
+
+    private boolean inlineStatement(GLSLParser.ASTNode stmt, List<GLSLParser.ASTNode> out) {
+        GLSLParser.ASTNode call;
+        GLSLParser.BinaryExpression assignment = topLevelAssignment(stmt);
+        GLSLParser.VariableDeclaration target = null;
+        GLSLParser.ReturnStatement ret = null;
+        if (stmt instanceof GLSLParser.VariableStatement) {
+            target = ((GLSLParser.VariableStatement) stmt).declaration;
+            call = target.initializer;
+        } else if (stmt instanceof GLSLParser.ReturnStatement) {
+            ret = (GLSLParser.ReturnStatement) stmt;
+            call = ret.argument;
+        } else if (assignment != null) {
+            call = assignment.right;
+        } else if (stmt instanceof GLSLParser.ExpressionStatement) {
+            call = stmt;
+            while (call instanceof GLSLParser.ExpressionStatement) {
+                call = ((GLSLParser.ExpressionStatement) call).expression;
+            }
+        } else {
+            return false;
+        }
+        Candidate candidate = call != null ? inlinable(call) : null;
+        if (candidate == null) {
+            return false;
+        }
+        GLSLParser.FunctionDeclaration func = candidate.function;
+        boolean needsResult = target != null || ret != null || assignment != null;
+        if (needsResult && func.returnType.equals("void")) {
+            return false;
+        }
+        List<GLSLParser.ASTNode> args = ((GLSLParser.CallExpression) call).arguments;
+        for (int i = 0; i < args.size(); i++) {
+            if (!isInput(func.parameters.get(i)) && !isLValue(args.get(i))) {
+                return false;
+            }
+        }
+        int site = siteCounter++;
+        inlinedCount++;
+        GLSLParser.BlockStatement block = new GLSLParser.BlockStatement();
+        Map<String, GLSLParser.ASTNode> replacements = new HashMap<>();
+        List<GLSLParser.ASTNode> copyBack = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            GLSLParser.Parameter param = func.parameters.get(i);
+            GLSLParser.ASTNode arg = args.get(i);
+            if (isInput(param) && isCheap(arg) && !candidate.writtenParameters.contains(param.name)) {
+                replacements.put(param.name, arg);
+                continue;
+            }
+            String local = freshName(site, param.name);
+            replacements.put(param.name, identifier(local, param.type));
+            block.statements.add(declaration(param.type, param.precision, local, param.qualifier != null
+                    && param.qualifier.equals("out") ? null : arg));
+            if (!isInput(param)) {
+                copyBack.add(assignment("=", ASTCopier.plainCopy(arg), identifier(local, param.type)));
+            }
+        }
+
+        ASTCopier copier = new ASTCopier(replacements, local -> freshName(site, local));
+        List<GLSLParser.ASTNode> body = func.body.statements;
+        GLSLParser.ASTNode result = null;
+        for (int i = 0; i < body.size(); i++) {
+            GLSLParser.ASTNode bodyStmt = body.get(i);
+            if (bodyStmt instanceof GLSLParser.ReturnStatement) {
+                result = copier.copy(((GLSLParser.ReturnStatement) bodyStmt).argument);
+            } else {
+                block.statements.add(copier.copy(bodyStmt));
+            }
+        }
+
+        if (!needsResult) {
+            if (result != null && !isPure(result)) {
+                block.statements.add(new GLSLParser.ExpressionStatement(result));
+            }
+            block.statements.addAll(copyBack);
+            out.add(block);
+            return true;
+        }
+
+        // Переменную можно объявить до блока, если её имя не нужно ни телу, ни аргументам
+        if (target != null && copyBack.isEmpty() && target.type.equals(func.returnType)
+                && !candidate.freeNames.contains(target.name) && !mentions(args, target.name)) {
+            // T x = f(...); -> T x; { ... x = result; }
+            target.initializer = null;
+            block.statements.add(assignment("=", identifier(target.name, target.type), result));
+            out.add(stmt);
+            out.add(block);
+            return true;
+        }
+
+        String resultName = freshName(site, "result");
+        out.add(declaration(func.returnType, func.returnPrecision, resultName, null));
+        block.statements.add(assignment("=", identifier(resultName, func.returnType), result));
+        block.statements.addAll(copyBack);
+        out.add(block);
+        if (target != null) {
+            target.initializer = identifier(resultName, func.returnType);
+        } else if (ret != null) {
+            ret.argument = identifier(resultName, func.returnType);
+        } else {
+            assignment.right = identifier(resultName, func.returnType);
+        }
+        out.add(stmt);
+        return true;
+    }
+}
@@ -0,0 +1,224 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Вынос инвариантных выражений из циклов for и while.
+// Выражение инвариантно, если оно чисто (встроенные функции, включая чтение текстур
+// texture/textureLod, конструкторы, арифметика, swizzle) и ни одна его переменная не
+// меняется в цикле: в неё не пишут, она не объявлена внутри цикла и не является
+// глобальной переменной, которую может изменить вызванная в цикле пользовательская
+// функция. Выносятся максимальные инвариантные подвыражения из условия, шага и тела
+// (init выполняется один раз и не трогается): одинаковые вхождения вычисляются один раз
+// в переменную _licmN, объявленную перед циклом.
+// Внешний цикл обрабатывается раньше вложенных, поэтому выражение поднимается сразу
+// на ту глубину, на которой перестаёт меняться.
+// Шейдерные операции не вызывают исключений, так что вычисление до цикла, который может
+// не выполниться ни разу, безопасно и стоит не больше одной итерации.
+public class LoopInvariantCodeMotion extends ASTRewriter implements OptimizationPass {
+    private static final String TEMP_PREFIX = "_licm";
+
+    private Map<String, List<GLSLParser.FunctionDeclaration>> functions = Collections.emptyMap();
+    private final Set<String> structNames = new HashSet<>();
+    private final Set<String> mutableGlobals = new HashSet<>();
+    // Блоки "объявления + цикл", которые встраиваются в объемлющий список операторов
+    private final Set<GLSLParser.ASTNode> hoistBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int tempCounter;
+    private int hoistedCount;
+    private int loopCount;
+
+    @Override
+    public String getName() {
+        return "Loop-invariant code motion";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions = WriteAnalysis.functionsOf(program);
+        structNames.clear();
+        mutableGlobals.clear();
+        tempCounter = 0;
+        hoistedCount = 0;
+        loopCount = 0;
+
+        Set<String> globals = new HashSet<>();
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.StructDeclaration) {
+                structNames.add(((GLSLParser.StructDeclaration) decl).name);
+            } else if (decl instanceof GLSLParser.VariableDeclaration
+                    && !((GLSLParser.VariableDeclaration) decl).isUniform) {
+                globals.add(((GLSLParser.VariableDeclaration) decl).name);
+            }
+        }
+        // Глобальные переменные, в которые пишет хотя бы одна функция
+        for (List<GLSLParser.FunctionDeclaration> overloads : functions.values()) {
+            for (GLSLParser.FunctionDeclaration func : overloads) {
+                if (func.body != null) {
+                    for (String name : WriteAnalysis.writtenNames(func.body, functions)) {
+                        if (globals.contains(name)) {
+                            mutableGlobals.add(name);
+                        }
+                    }
+                }
+            }
+        }
+
+        program.accept(this);
+        hoistBlocks.clear();
+        return hoistedCount + " invariant expressions hoisted from " + loopCount + " loops";
+    }
+
+    public int getHoistedCount() {
+        return hoistedCount;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        List<GLSLParser.ASTNode> hoisted = hoist(stmt, Arrays.asList(stmt.test, stmt.update, stmt.body));
+        super.visit(stmt);
+        return wrap(hoisted, stmt);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        List<GLSLParser.ASTNode> hoisted = hoist(stmt, Arrays.asList(stmt.test, stmt.body));
+        super.visit(stmt);
+        return wrap(hoisted, stmt);
+    }
+
+    // Объявления временных переменных встают в объемлющий блок перед циклом
+    @Override
+    protected void rewriteStatements(List<GLSLParser.ASTNode> statements) {
+        super.rewriteStatements(statements);
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            GLSLParser.ASTNode stmt = statements.get(i);
+            if (hoistBlocks.contains(stmt)) {
+                statements.remove(i);
+                statements.addAll(i, ((GLSLParser.BlockStatement) stmt).statements);
+            }
+        }
+    }
+
+    private GLSLParser.ASTNode wrap(List<GLSLParser.ASTNode> hoisted, GLSLParser.ASTNode loop) {
+        if (hoisted.isEmpty()) {
+            return loop;
+        }
+        // Вложенный оператор if/for/while остаётся блоком
+        GLSLParser.BlockStatement block = new GLSLParser.BlockStatement();
+        block.statements.addAll(hoisted);
+        block.statements.add(loop);
+        hoistBlocks.add(block);
+        return block;
+    }
+
+    // Выносит инвариантные выражения из частей цикла, которые выполняются на каждой
+    // итерации; возвращает объявления временных переменных
+    private List<GLSLParser.ASTNode> hoist(GLSLParser.ASTNode loop, List<GLSLParser.ASTNode> parts) {
+        LoopScan scan = new LoopScan();
+        loop.accept(scan);
+        Set<String> variant = new HashSet<>(WriteAnalysis.writtenNames(loop, functions));
+        variant.addAll(scan.declared);
+        if (scan.userCalls) {
+            variant.addAll(mutableGlobals);
+        }
+
+        InvariantCollector collector = new InvariantCollector(new ValueNumbering(functions.keySet()), variant);
+        for (GLSLParser.ASTNode part : parts) {
+            collector.rewrite(part);
+        }
+        if (collector.groups.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<GLSLParser.ASTNode> declarations = new ArrayList<>();
+        for (List<GLSLParser.ASTNode> group : collector.groups.values()) {
+            GLSLParser.ASTNode first = group.get(0);
+            String name = TEMP_PREFIX + tempCounter++;
+            Set<GLSLParser.ASTNode> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+            targets.addAll(group);
+            loop.accept(new NodeReplacer(targets, name, first.resolvedType));
+
+            GLSLParser.VariableDeclaration decl = new GLSLParser.VariableDeclaration();
+            decl.type = first.resolvedType;
+            decl.name = name;
+            decl.initializer = first;
+            declarations.add(new GLSLParser.VariableStatement(decl));
+            hoistedCount += group.size();
+        }
+        loopCount++;
+        return declarations;
+    }
+
+    // Имена, объявленные внутри цикла, и наличие вызовов пользовательских функций
+    private final class LoopScan extends ASTRewriter {
+        final Set<String> declared = new HashSet<>();
+        boolean userCalls;
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+            declared.add(decl.name);
+            return super.visit(decl);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+            if (expr.callee instanceof GLSLParser.Identifier
+                    && functions.containsKey(((GLSLParser.Identifier) expr.callee).name)) {
+                userCalls = true;
+            }
+            return super.visit(expr);
+        }
+    }
+
+    // Максимальные инвариантные подвыражения, сгруппированные по номеру значения
+    // в порядке первого вхождения. Узлы не меняются.
+    private final class InvariantCollector extends ASTRewriter {
+        private final ValueNumbering numbering;
+        private final Set<String> variant;
+        final Map<Integer, List<GLSLParser.ASTNode>> groups = new LinkedHashMap<>();
+
+        InvariantCollector(ValueNumbering numbering, Set<String> variant) {
+            this.numbering = numbering;
+            this.variant = variant;
+        }
+
+        private boolean collect(GLSLParser.ASTNode node) {
+            if (!numbering.isCandidate(node, structNames)) {
+                return false;
+            }
+            int number = numbering.number(node);
+            for (String var : numbering.info(number).vars) {
+                if (variant.contains(var)) {
+                    return false;
+                }
+            }
+            groups.computeIfAbsent(number, key -> new ArrayList<>()).add(node);
+            return true;
+        }
+
+        @Override
+        protected GLSLParser.ASTNode rewrite(GLSLParser.ASTNode node) {
+            if (node == null || collect(node)) {
+                return node;
+            }
+            return super.rewrite(node);
+        }
+
+        @Override
+        public GLSLParser.ASTNode visit(GLSLParser.BinaryExpression expr) {
+            // Левая цепочка проходится сверху вниз до первого инвариантного уровня
+            GLSLParser.ASTNode node = expr;
+            while (node instanceof GLSLParser.BinaryExpression) {
+                GLSLParser.BinaryExpression binary = (GLSLParser.BinaryExpression) node;
+                if (binary != expr && collect(binary)) {
+                    return expr;
+                }
+                rewrite(binary.right);
+                node = binary.left;
+            }
+            rewrite(node);
+            return expr;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package optimizer;
+
+import parser.ASTFingerprint;
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Выбор атрибута HLSL для циклов и полная развёртка маленьких циклов.
+// Число итераций for известно, если:
+//  - init объявляет счётчик int/float с константным значением или присваивает его;
+//  - test сравнивает счётчик с константой (<, <=, >, >=, ==, !=; счётчик с любой стороны);
+//  - update - ++i, --i, i += c (-=, *=, /=) или i = i + c (-, *, /) с константой c;
+//  - тело не пишет в счётчик.
+// Итерации моделируются с арифметикой ConstantValue (32-битный int, float с округлением),
+// но не дальше unrollBudget шагов. Цикл с известным числом итераций N <= unrollBudget
+// получает [unroll(N)], остальные циклы for и все while - [loop].
+// Если счётчик объявлен в init и N * размер тела <= fullUnrollNodes, цикл заменяется
+// блоком копий тела, в которых счётчик заменён своим значением на итерации.
+// Вложенные циклы обрабатываются раньше внешних.
+public class LoopUnroller extends ASTRewriter implements OptimizationPass {
+    public static final int DEFAULT_UNROLL_BUDGET = 32;
+    public static final int DEFAULT_FULL_UNROLL_NODES = 48;
+
+    private final int unrollBudget;
+    private final int fullUnrollNodes;
+    private Map<String, List<GLSLParser.FunctionDeclaration>> functions = Collections.emptyMap();
+    private int unrolledCount;
+    private int unrollCount;
+    private int loopCount;
+    // Блоки, которыми заменены развёрнутые циклы
+    private final Set<GLSLParser.ASTNode> unrolledBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public LoopUnroller() {
+        this(DEFAULT_UNROLL_BUDGET, DEFAULT_FULL_UNROLL_NODES);
+    }
+
+    public LoopUnroller(int unrollBudget, int fullUnrollNodes) {
+        if (unrollBudget < 1) {
+            throw new IllegalArgumentException("unrollBudget must be positive: " + unrollBudget);
+        }
+        this.unrollBudget = unrollBudget;
+        this.fullUnrollNodes = fullUnrollNodes;
+    }
+
+    // Счётчик цикла и его значения в начале каждой итерации
+    private static final class TripCount {
+        final String counter;
+        final boolean declared;
+        final List<ConstantValue> values;
+
+        TripCount(String counter, boolean declared, List<ConstantValue> values) {
+            this.counter = counter;
+            this.declared = declared;
+            this.values = values;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Loop unrolling";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        functions = WriteAnalysis.functionsOf(program);
+        unrolledCount = 0;
+        unrollCount = 0;
+        loopCount = 0;
+        program.accept(this);
+        unrolledBlocks.clear();
+        return unrolledCount + " loops fully unrolled, " + unrollCount + " marked [unroll], "
+                + loopCount + " marked [loop]";
+    }
+
+    public int getUnrolledCount() {
+        return unrolledCount;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        super.visit(stmt);
+        TripCount trip = tripCount(stmt);
+        if (trip == null) {
+            stmt.attribute = "loop";
+            loopCount++;
+            return stmt;
+        }
+
+        int trips = trip.values.size();
+        if (trip.declared && (long) trips * ASTFingerprint.nodesOf(stmt.body).getNodes().size() <= fullUnrollNodes) {
+            unrolledCount++;
+            return trips > 0 ? unroll(stmt.body, trip) : null;
+        }
+        // Цикл без итераций с внешним счётчиком остаётся ради присваивания в init
+        stmt.attribute = trips > 0 ? "unroll(" + trips + ")" : null;
+        if (trips > 0) {
+            unrollCount++;
+        }
+        return stmt;
+    }
+
+    // Развёрнутый цикл без собственных объявлений вставляется в объемлющий список
+    // операторов без лишнего блока
+    @Override
+    protected void rewriteStatements(List<GLSLParser.ASTNode> statements) {
+        super.rewriteStatements(statements);
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            GLSLParser.ASTNode stmt = statements.get(i);
+            if (unrolledBlocks.contains(stmt) && !declaresLocals((GLSLParser.BlockStatement) stmt)) {
+                statements.remove(i);
+                statements.addAll(i, ((GLSLParser.BlockStatement) stmt).statements);
+            }
+        }
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        super.visit(stmt);
+        stmt.attribute = "loop";
+        loopCount++;
+        return stmt;
+    }
+
+    private GLSLParser.BlockStatement unroll(GLSLParser.ASTNode body, TripCount trip) {
+        GLSLParser.BlockStatement result = new GLSLParser.BlockStatement();
+        for (ConstantValue value : trip.values) {
+            Map<String, GLSLParser.ASTNode> replacements = new HashMap<>();
+            replacements.put(trip.counter, value.toNode());
+            GLSLParser.ASTNode copy = new ASTCopier(replacements, name -> name).copy(body);
+            // Тело без собственных объявлений вставляется без лишнего блока
+            if (copy instanceof GLSLParser.BlockStatement && !declaresLocals((GLSLParser.BlockStatement) copy)) {
+                result.statements.addAll(((GLSLParser.BlockStatement) copy).statements);
+            } else if (copy instanceof GLSLParser.VariableStatement) {
+                GLSLParser.BlockStatement block = new GLSLParser.BlockStatement();
+                block.statements.add(copy);
+                result.statements.add(block);
+            } else {
+                result.statements.add(copy);
+            }
+        }
+        unrolledBlocks.add(result);
+        return result;
+    }
+
+    private static boolean declaresLocals(GLSLParser.BlockStatement block) {
+        for (GLSLParser.ASTNode stmt : block.statements) {
+            if (stmt instanceof GLSLParser.VariableStatement) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TripCount tripCount(GLSLParser.ForStatement stmt) {
+        // init: объявление счётчика или присваивание ему
+        String counter;
+        String type;
+        GLSLParser.ASTNode initial;
+        boolean declared = stmt.init instanceof GLSLParser.VariableDeclaration;
+        if (declared) {
+            GLSLParser.VariableDeclaration decl = (GLSLParser.VariableDeclaration) stmt.init;
+            counter = decl.name;
+            type = decl.type;
+            initial = decl.initializer;
+        } else if (stmt.init instanceof GLSLParser.ExpressionStatement
+                && isAssignmentTo(((GLSLParser.ExpressionStatement) stmt.init).expression, "=")) {
+            GLSLParser.BinaryExpression assign =
+                    (GLSLParser.BinaryExpression) ((GLSLParser.ExpressionStatement) stmt.init).expression;
+            counter = ((GLSLParser.Identifier) assign.left).name;
+            type = assign.left.resolvedType;
+            initial = assign.right;
+        } else {
+            return null;
+        }
+        if (!"int".equals(type) && !"float".equals(type)) {
+            return null;
+        }
+        ConstantValue value = initial != null ? ConstantValue.of(initial) : null;
+        if (value == null || !value.isScalar() || value.type.equals("bool")) {
+            return null;
+        }
+
+        // test: счётчик против константы
+        if (!(stmt.test instanceof GLSLParser.BinaryExpression)) {
+            return null;
+        }
+        GLSLParser.BinaryExpression test = (GLSLParser.BinaryExpression) stmt.test;
+        boolean counterLeft = isCounter(test.left, counter);
+        if (!counterLeft && !isCounter(test.right, counter)) {
+            return null;
+        }
+        ConstantValue bound = ConstantValue.of(counterLeft ? test.right : test.left);
+        if (bound == null || !bound.isScalar()) {
+            return null;
+        }
+
+        // update: шаг как бинарная операция над счётчиком
+        String stepOp;
+        ConstantValue step;
+        if (stmt.update instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression update = (GLSLParser.UnaryExpression) stmt.update;
+            if (!isCounter(update.argument, counter)
+                    || !(update.operator.equals("++") || update.operator.equals("--"))) {
+                return null;
+            }
+            stepOp = update.operator.substring(1);
+            step = ConstantValue.scalar(type, 1);
+        } else if (stmt.update instanceof GLSLParser.BinaryExpression
+                && isCounter(((GLSLParser.BinaryExpression) stmt.update).left, counter)) {
+            GLSLParser.BinaryExpression update = (GLSLParser.BinaryExpression) stmt.update;
+            GLSLParser.ASTNode amount = update.right;
+            if (update.operator.equals("=")) {
+                if (!(amount instanceof GLSLParser.BinaryExpression)
+                        || !isCounter(((GLSLParser.BinaryExpression) amount).left, counter)) {
+                    return null;
+                }
+                stepOp = ((GLSLParser.BinaryExpression) amount).operator;
+                amount = ((GLSLParser.BinaryExpression) amount).right;
+            } else if (isAssignmentTo(update, update.operator)) {
+                stepOp = update.operator.substring(0, 1);
+            } else {
+                return null;
+            }
+            step = ConstantValue.of(amount);
+        } else {
+            return null;
+        }
+        if (step == null || !step.isScalar() || "+-*/".indexOf(stepOp) < 0) {
+            return null;
+        }
+
+        if (WriteAnalysis.writtenNames(stmt.body, functions).contains(counter)) {
+            return null;
+        }
+
+        value = ConstantValue.scalar(type, value.get(0));
+        List<ConstantValue> values = new ArrayList<>();
+        while (true) {
+            ConstantValue condition = counterLeft
+                    ? ConstantValue.binary(test.operator, value, bound, "bool")
+                    : ConstantValue.binary(test.operator, bound, value, "bool");
+            if (condition == null || !condition.type.equals("bool")) {
+                return null;
+            }
+            if (condition.get(0) == 0) {
+                return new TripCount(counter, declared, values);
+            }
+            if (values.size() == unrollBudget) {
+                return null;
+            }
+            values.add(value);
+            value = ConstantValue.binary(stepOp, value, step, type);
+            if (value == null) {
+                return null;
+            }
+        }
+    }
+
+    private static boolean isCounter(GLSLParser.ASTNode node, String counter) {
+        return node instanceof GLSLParser.Identifier && ((GLSLParser.Identifier) node).name.equals(counter);
+    }
+
+    private static boolean isAssignmentTo(GLSLParser.ASTNode node, String operator) {
+        return node instanceof GLSLParser.BinaryExpression
+                && ((GLSLParser.BinaryExpression) node).operator.equals(operator)
+                && ScopedRewriter.isAssignment(operator)
+                && ((GLSLParser.BinaryExpression) node).left instanceof GLSLParser.Identifier;
+    }
+}
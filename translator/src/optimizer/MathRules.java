@@ -0,0 +1,223 @@
+package optimizer;
+
+import parser.GLSLParser;
+import semantics.BuiltInPrelude;
+
+import java.util.*;
+
+// Таблица правил упрощения математики по умолчанию:
+//   pow(x, 2.0)              -> x * x          (x - переменная или её поле/swizzle)
+//   x / c, x /= c            -> x * (1/c), x *= (1/c)   (c - ненулевая float-константа)
+//   length(v) * length(v)    -> dot(v, v)
+//   normalize(normalize(x))  -> normalize(x)
+//   a * b + c, c + a * b     -> fma(a, b, c)   (одинаковые float-типы; в HLSL - mad)
+// Правила работают только с узлами, для которых известен resolvedType.
+final class MathRules {
+    private static final BuiltInPrelude PRELUDE = BuiltInPrelude.get();
+
+    private MathRules() {
+    }
+
+    static List<RewriteRule> defaults() {
+        return List.of(
+                RewriteRule.of("pow-square", MathRules::powSquare),
+                RewriteRule.of("div-by-constant", MathRules::divisionByConstant),
+                RewriteRule.of("length-squared", MathRules::lengthSquared),
+                RewriteRule.of("double-normalize", MathRules::doubleNormalize),
+                RewriteRule.of("multiply-add", MathRules::multiplyAdd));
+    }
+
+    private static GLSLParser.ASTNode powSquare(GLSLParser.ASTNode node) {
+        GLSLParser.CallExpression call = call(node, "pow", 2);
+        if (call == null || call.resolvedType == null) {
+            return null;
+        }
+        GLSLParser.ASTNode x = call.arguments.get(0);
+        ConstantValue exponent = ConstantValue.of(call.arguments.get(1));
+        if (exponent == null || !exponent.type.equals("float") || exponent.components[0] != 2
+                || !call.resolvedType.equals(x.resolvedType)) {
+            return null;
+        }
+        // Удваивать можно только то, что ничего не стоит вычислить повторно
+        GLSLParser.ASTNode copy = copyVariable(x);
+        return copy != null ? binary("*", x, copy, call.resolvedType) : null;
+    }
+
+    private static GLSLParser.ASTNode divisionByConstant(GLSLParser.ASTNode node) {
+        if (!(node instanceof GLSLParser.BinaryExpression)) {
+            return null;
+        }
+        GLSLParser.BinaryExpression expr = (GLSLParser.BinaryExpression) node;
+        boolean compound = expr.operator.equals("/=");
+        if (!expr.operator.equals("/") && !compound) {
+            return null;
+        }
+        String type = expr.left.resolvedType;
+        if (type == null || expr.resolvedType == null || !ConstantValue.isFloatBased(type)) {
+            return null;
+        }
+        ConstantValue divisor = ConstantValue.of(expr.right);
+        ConstantValue reciprocal = divisor != null ? divisor.reciprocal() : null;
+        if (reciprocal == null) {
+            return null;
+        }
+        return binary(compound ? "*=" : "*", expr.left, reciprocal.toNode(), expr.resolvedType);
+    }
+
+    private static GLSLParser.ASTNode lengthSquared(GLSLParser.ASTNode node) {
+        if (!(node instanceof GLSLParser.BinaryExpression)
+                || !((GLSLParser.BinaryExpression) node).operator.equals("*")) {
+            return null;
+        }
+        GLSLParser.BinaryExpression expr = (GLSLParser.BinaryExpression) node;
+        GLSLParser.CallExpression left = call(expr.left, "length", 1);
+        GLSLParser.CallExpression right = call(expr.right, "length", 1);
+        if (left == null || right == null || expr.resolvedType == null) {
+            return null;
+        }
+        GLSLParser.ASTNode v = left.arguments.get(0);
+        GLSLParser.ASTNode w = right.arguments.get(0);
+        if (v.resolvedType == null || !sameExpression(v, w)) {
+            return null;
+        }
+        // Аргумент вычислялся дважды и по-прежнему вычисляется дважды
+        return call("dot", expr.resolvedType, v, w);
+    }
+
+    private static GLSLParser.ASTNode doubleNormalize(GLSLParser.ASTNode node) {
+        GLSLParser.CallExpression outer = call(node, "normalize", 1);
+        if (outer == null) {
+            return null;
+        }
+        return call(outer.arguments.get(0), "normalize", 1);
+    }
+
+    private static GLSLParser.ASTNode multiplyAdd(GLSLParser.ASTNode node) {
+        if (!(node instanceof GLSLParser.BinaryExpression)
+                || !((GLSLParser.BinaryExpression) node).operator.equals("+")) {
+            return null;
+        }
+        GLSLParser.BinaryExpression sum = (GLSLParser.BinaryExpression) node;
+        String type = sum.resolvedType;
+        if (type == null || !ConstantValue.isFloatBased(type) || ConstantValue.componentCount(type) < 0) {
+            return null;
+        }
+
+        GLSLParser.BinaryExpression product;
+        GLSLParser.ASTNode addend;
+        if (isProduct(sum.left)) {
+            product = (GLSLParser.BinaryExpression) sum.left;
+            addend = sum.right;
+        } else if (isProduct(sum.right) && isPure(sum.left)) {
+            // c + a*b: c переносится после a и b, поэтому не должно иметь побочных эффектов
+            product = (GLSLParser.BinaryExpression) sum.right;
+            addend = sum.left;
+        } else {
+            return null;
+        }
+        if (!type.equals(product.left.resolvedType) || !type.equals(product.right.resolvedType)
+                || !type.equals(addend.resolvedType)) {
+            return null;
+        }
+        return call("fma", type, product.left, product.right, addend);
+    }
+
+    private static boolean isProduct(GLSLParser.ASTNode node) {
+        return node instanceof GLSLParser.BinaryExpression
+                && ((GLSLParser.BinaryExpression) node).operator.equals("*");
+    }
+
+    private static GLSLParser.CallExpression call(GLSLParser.ASTNode node, String name, int argumentCount) {
+        if (!(node instanceof GLSLParser.CallExpression)) {
+            return null;
+        }
+        GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+        if (!(call.callee instanceof GLSLParser.Identifier)
+                || !((GLSLParser.Identifier) call.callee).name.equals(name)
+                || call.arguments.size() != argumentCount) {
+            return null;
+        }
+        return call;
+    }
+
+    private static GLSLParser.CallExpression call(String name, String type, GLSLParser.ASTNode... arguments) {
+        GLSLParser.CallExpression call = new GLSLParser.CallExpression();
+        call.callee = new GLSLParser.Identifier(name);
+        call.arguments.addAll(Arrays.asList(arguments));
+        call.resolvedType = type;
+        return call;
+    }
+
+    private static GLSLParser.BinaryExpression binary(String operator, GLSLParser.ASTNode left,
+                                                      GLSLParser.ASTNode right, String type) {
+        GLSLParser.BinaryExpression expr = new GLSLParser.BinaryExpression(operator, left, right);
+        expr.resolvedType = type;
+        return expr;
+    }
+
+    // Копия переменной, её поля или swizzle; для остальных выражений - null
+    private static GLSLParser.ASTNode copyVariable(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.Identifier) {
+            GLSLParser.Identifier copy = new GLSLParser.Identifier(((GLSLParser.Identifier) node).name);
+            copy.resolvedType = node.resolvedType;
+            return copy;
+        }
+        if (node instanceof GLSLParser.MemberExpression) {
+            GLSLParser.MemberExpression member = (GLSLParser.MemberExpression) node;
+            GLSLParser.ASTNode object = copyVariable(member.object);
+            if (object == null || !(member.property instanceof GLSLParser.Identifier)) {
+                return null;
+            }
+            GLSLParser.MemberExpression copy = new GLSLParser.MemberExpression();
+            copy.object = object;
+            copy.property = new GLSLParser.Identifier(((GLSLParser.Identifier) member.property).name);
+            copy.resolvedType = member.resolvedType;
+            return copy;
+        }
+        return null;
+    }
+
+    private static boolean sameExpression(GLSLParser.ASTNode a, GLSLParser.ASTNode b) {
+        ValueNumbering numbering = new ValueNumbering(Collections.emptySet());
+        return numbering.number(a) == numbering.number(b);
+    }
+
+    // Нет присваиваний, ++/-- и вызовов функций, кроме встроенных и конструкторов
+    private static boolean isPure(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.Identifier || node instanceof GLSLParser.Literal) {
+            return true;
+        }
+        if (node instanceof GLSLParser.BinaryExpression) {
+            GLSLParser.BinaryExpression expr = (GLSLParser.BinaryExpression) node;
+            return !ScopedRewriter.isAssignment(expr.operator) && isPure(expr.left) && isPure(expr.right);
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression expr = (GLSLParser.UnaryExpression) node;
+            return !expr.operator.equals("++") && !expr.operator.equals("--") && isPure(expr.argument);
+        }
+        if (node instanceof GLSLParser.MemberExpression) {
+            return isPure(((GLSLParser.MemberExpression) node).object);
+        }
+        if (node instanceof GLSLParser.TernaryExpression) {
+            GLSLParser.TernaryExpression expr = (GLSLParser.TernaryExpression) node;
+            return isPure(expr.test) && isPure(expr.consequent) && isPure(expr.alternate);
+        }
+        if (node instanceof GLSLParser.CallExpression) {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+            if (!(call.callee instanceof GLSLParser.Identifier)) {
+                return false;
+            }
+            String name = ((GLSLParser.Identifier) call.callee).name;
+            if (!PRELUDE.isBuiltInFunction(name) && !PRELUDE.isBuiltInType(name)) {
+                return false;
+            }
+            for (GLSLParser.ASTNode arg : call.arguments) {
+                if (!isPure(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
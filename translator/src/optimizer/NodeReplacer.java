@@ -0,0 +1,38 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Замена вхождений (по идентичности узлов) на временную переменную
+final class NodeReplacer extends ASTRewriter {
+    private final Set<GLSLParser.ASTNode> targets;
+    private final String name;
+    private final String type;
+
+    NodeReplacer(Set<GLSLParser.ASTNode> targets, String name, String type) {
+        this.targets = targets;
+        this.name = name;
+        this.type = type;
+    }
+
+    private GLSLParser.ASTNode replacement() {
+        GLSLParser.Identifier identifier = new GLSLParser.Identifier(name);
+        identifier.resolvedType = type;
+        return identifier;
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewrite(GLSLParser.ASTNode node) {
+        if (node != null && targets.contains(node)) {
+            return replacement();
+        }
+        return super.rewrite(node);
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        // Внутренние уровни цепочки не проходят через rewrite
+        return targets.contains(expr) ? replacement() : expr;
+    }
+}
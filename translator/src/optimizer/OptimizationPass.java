@@ -0,0 +1,11 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+// Проход оптимизации AST. Выполняется после семантического анализа (нужны resolvedType)
+// и перед генерацией; возвращает краткое описание сделанного для журнала
+public interface OptimizationPass {
+    String getName();
+
+    String run(GLSLParser.Program program);
+}
@@ -0,0 +1,44 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Последовательность проходов оптимизации между семантическим анализом и генерацией
+public class Optimizer {
+    private final List<OptimizationPass> passes = new ArrayList<>();
+
+    public Optimizer() {
+        passes.add(new FunctionInliner());
+        passes.add(new ConstantFolder());
+        // После развёртки счётчик в копиях тела - константа, поэтому свёртка повторяется
+        passes.add(new LoopUnroller());
+        passes.add(new ConstantFolder());
+        passes.add(new LoopInvariantCodeMotion());
+        passes.add(new PeepholeOptimizer());
+        passes.add(new CommonSubexpressionEliminator());
+        passes.add(new ComponentNarrowing());
+        // Производные выносятся из расходящихся ветвей, после чего такие ветви
+        // не обязательно сглаживать
+        passes.add(new DivergentSampling());
+        // Атрибуты ветвлений выбираются по окончательному коду ветвей
+        passes.add(new BranchAttributes());
+    }
+
+    public Optimizer(List<OptimizationPass> passes) {
+        this.passes.addAll(passes);
+    }
+
+    public List<OptimizationPass> getPasses() {
+        return passes;
+    }
+
+    // Выполняет все проходы по порядку; возвращает журнал (строка на проход)
+    public List<String> optimize(GLSLParser.Program program) {
+        List<String> log = new ArrayList<>();
+        for (OptimizationPass pass : passes) {
+            log.add(pass.getName() + ": " + pass.run(program));
+        }
+        return log;
+    }
+}
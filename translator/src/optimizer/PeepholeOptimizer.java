@@ -0,0 +1,126 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Движок локальных перезаписей выражений по таблице правил (по умолчанию - MathRules).
+// Обход снизу вверх: к каждому выражению после перезаписи детей применяется первое
+// подходящее правило, затем правила пробуются на результате. Обходы программы
+// повторяются до неподвижной точки, но не больше maxIterations раз.
+// Для каждого правила считается число срабатываний за последний запуск.
+public class PeepholeOptimizer extends ASTRewriter implements OptimizationPass {
+    public static final int DEFAULT_MAX_ITERATIONS = 8;
+
+    private final List<RewriteRule> rules = new ArrayList<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+    private final int maxIterations;
+    private int iterations;
+    private int sweepHits;
+
+    public PeepholeOptimizer() {
+        this(MathRules.defaults(), DEFAULT_MAX_ITERATIONS);
+    }
+
+    public PeepholeOptimizer(List<RewriteRule> rules, int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be positive: " + maxIterations);
+        }
+        this.maxIterations = maxIterations;
+        for (RewriteRule rule : rules) {
+            addRule(rule);
+        }
+    }
+
+    public void addRule(RewriteRule rule) {
+        rules.add(rule);
+        hits.putIfAbsent(rule.getName(), 0);
+    }
+
+    public List<RewriteRule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    // Срабатывания по именам правил в порядке таблицы
+    public Map<String, Integer> getHits() {
+        return Collections.unmodifiableMap(hits);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public String getName() {
+        return "Peephole";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        hits.replaceAll((name, count) -> 0);
+        iterations = 0;
+        do {
+            sweepHits = 0;
+            program.accept(this);
+            iterations++;
+        } while (sweepHits > 0 && iterations < maxIterations);
+
+        int total = 0;
+        StringBuilder details = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : hits.entrySet()) {
+            if (entry.getValue() > 0) {
+                details.append(details.length() == 0 ? " (" : ", ")
+                        .append(entry.getKey()).append(' ').append(entry.getValue());
+                total += entry.getValue();
+            }
+        }
+        if (details.length() > 0) {
+            details.append(')');
+        }
+        return total + " rewrites in " + iterations + " iterations" + details;
+    }
+
+    private GLSLParser.ASTNode applyRules(GLSLParser.ASTNode node) {
+        for (int step = 0; step < maxIterations; step++) {
+            GLSLParser.ASTNode replacement = null;
+            for (RewriteRule rule : rules) {
+                replacement = rule.apply(node);
+                if (replacement != null) {
+                    hits.merge(rule.getName(), 1, Integer::sum);
+                    sweepHits++;
+                    break;
+                }
+            }
+            if (replacement == null) {
+                break;
+            }
+            node = replacement;
+        }
+        return node;
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        return applyRules(expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        return applyRules(super.visit(expr));
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        return applyRules(super.visit(expr));
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.MemberExpression expr) {
+        return applyRules(super.visit(expr));
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.TernaryExpression expr) {
+        return applyRules(super.visit(expr));
+    }
+}
@@ -0,0 +1,447 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Вывод пониженной точности (min16float) для локальных переменных float/vecN.
+// Проход не входит в конвейер по умолчанию: он включается вместе с
+// HLSLGenerator.setMinPrecision(true), который выводит min16float для объявлений
+// с квалификатором lowp/mediump.
+// Переменные с явной точностью (или точностью из оператора precision) не меняются.
+// Для остальных интервальным анализом оценивается диапазон значений всех компонент:
+// литералы, чтение текстур (считается, что текстуры в нормализованных форматах дают
+// [0, 1]), normalize/sin/cos, fract/step/smoothstep, clamp/min/max/abs/mix, dot и length
+// от ограниченных аргументов, арифметика и конструкторы. Uniform-переменные, входы,
+// параметры и результаты пользовательских функций не ограничены.
+// Диапазон переменной - объединение диапазонов всех записанных в неё значений;
+// он уточняется итерациями, а растущий дольше MAX_ITERATIONS шагов (накопление в цикле)
+// считается неограниченным. Переменная получает mediump, если модуль её значений
+// не превышает rangeLimit.
+public class PrecisionLowering extends ScopedRewriter implements OptimizationPass {
+    public static final double DEFAULT_RANGE_LIMIT = 4.0;
+
+    private static final int MAX_ITERATIONS = 8;
+    private static final Range UNBOUNDED = new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    private static final Range EMPTY = new Range(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    private static final Range UNIT = new Range(0, 1);
+    private static final Range SIGNED_UNIT = new Range(-1, 1);
+
+    private final double rangeLimit;
+    private Set<String> userFunctions = Collections.emptySet();
+    private int inferredCount;
+    private int qualifiedCount;
+
+    // Состояние текущей функции
+    private final Map<GLSLParser.VariableDeclaration, List<Write>> writes = new LinkedHashMap<>();
+    private final Map<GLSLParser.VariableDeclaration, Range> ranges = new IdentityHashMap<>();
+    // Разрешение идентификаторов в отслеживаемые объявления (запоминается при обходе)
+    private final Map<GLSLParser.Identifier, GLSLParser.VariableDeclaration> references = new IdentityHashMap<>();
+
+    public PrecisionLowering() {
+        this(DEFAULT_RANGE_LIMIT);
+    }
+
+    public PrecisionLowering(double rangeLimit) {
+        this.rangeLimit = rangeLimit;
+    }
+
+    // Замкнутый интервал [lo, hi]; lo > hi - пустой (значений ещё нет)
+    private static final class Range {
+        final double lo;
+        final double hi;
+
+        Range(double lo, double hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        boolean isEmpty() {
+            return lo > hi;
+        }
+
+        double magnitude() {
+            return Math.max(Math.abs(lo), Math.abs(hi));
+        }
+
+        Range hull(Range other) {
+            if (isEmpty()) return other;
+            if (other.isEmpty()) return this;
+            return new Range(Math.min(lo, other.lo), Math.max(hi, other.hi));
+        }
+
+        boolean within(Range other) {
+            return isEmpty() || !other.isEmpty() && lo >= other.lo && hi <= other.hi;
+        }
+
+        boolean sameAs(Range other) {
+            return other != null && (lo == other.lo && hi == other.hi || isEmpty() && other.isEmpty());
+        }
+    }
+
+    // Запись в переменную: значение и операция (= или составное присваивание)
+    private static final class Write {
+        final String operator;
+        final GLSLParser.ASTNode value;
+
+        Write(String operator, GLSLParser.ASTNode value) {
+            this.operator = operator;
+            this.value = value;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Precision lowering";
+    }
+
+    @Override
+    public String run(GLSLParser.Program program) {
+        userFunctions = WriteAnalysis.functionsOf(program).keySet();
+        inferredCount = 0;
+        qualifiedCount = 0;
+        program.accept(this);
+        return inferredCount + " locals inferred as min16float, " + qualifiedCount + " declared lowp/mediump";
+    }
+
+    public int getInferredCount() {
+        return inferredCount;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        writes.clear();
+        ranges.clear();
+        references.clear();
+        super.visit(func);
+
+        // Диапазоны переменных до неподвижной точки
+        boolean changed = true;
+        for (int iteration = 0; changed && iteration < MAX_ITERATIONS; iteration++) {
+            changed = false;
+            for (Map.Entry<GLSLParser.VariableDeclaration, List<Write>> entry : writes.entrySet()) {
+                Range range = evaluate(entry.getKey(), entry.getValue());
+                if (!range.sameAs(ranges.get(entry.getKey()))) {
+                    ranges.put(entry.getKey(), range);
+                    changed = true;
+                }
+            }
+        }
+        // Расширение: переменная, которая всё ещё растёт, не ограничена
+        while (changed) {
+            changed = false;
+            for (Map.Entry<GLSLParser.VariableDeclaration, List<Write>> entry : writes.entrySet()) {
+                Range current = ranges.get(entry.getKey());
+                if (current != UNBOUNDED && !evaluate(entry.getKey(), entry.getValue()).within(current)) {
+                    ranges.put(entry.getKey(), UNBOUNDED);
+                    changed = true;
+                }
+            }
+        }
+
+        for (GLSLParser.VariableDeclaration decl : writes.keySet()) {
+            Range range = ranges.get(decl);
+            if (!range.isEmpty() && range.magnitude() <= rangeLimit) {
+                decl.precision = "mediump";
+                inferredCount++;
+            }
+        }
+        return func;
+    }
+
+    private Range evaluate(GLSLParser.VariableDeclaration decl, List<Write> list) {
+        Range result = EMPTY;
+        for (Write write : list) {
+            Range value = write.value != null ? range(write.value) : UNBOUNDED;
+            if (!write.operator.equals("=")) {
+                value = arithmetic(write.operator.substring(0, 1), ranges.getOrDefault(decl, EMPTY), value);
+            }
+            result = result.hull(value);
+        }
+        return result;
+    }
+
+    private GLSLParser.VariableDeclaration tracked(GLSLParser.ASTNode node) {
+        return node instanceof GLSLParser.Identifier ? references.get(node) : null;
+    }
+
+    private void addWrite(GLSLParser.ASTNode target, String operator, GLSLParser.ASTNode value) {
+        GLSLParser.Identifier base = baseIdentifier(target);
+        GLSLParser.VariableDeclaration decl = base != null ? tracked(base) : null;
+        if (decl != null) {
+            writes.get(decl).add(new Write(operator, value));
+        }
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        super.visit(decl);
+        if (!inFunction()) {
+            return decl;
+        }
+        if ("lowp".equals(decl.precision) || "mediump".equals(decl.precision)) {
+            qualifiedCount++;
+        } else if (decl.precision == null && isFloatType(decl.type)) {
+            List<Write> list = new ArrayList<>();
+            if (decl.initializer != null) {
+                list.add(new Write("=", decl.initializer));
+            }
+            writes.put(decl, list);
+        }
+        return decl;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Parameter param) {
+        if ("lowp".equals(param.precision) || "mediump".equals(param.precision)) {
+            qualifiedCount++;
+        }
+        return param;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+        GLSLParser.ASTNode declaration = resolve(identifier.name);
+        if (declaration instanceof GLSLParser.VariableDeclaration && writes.containsKey(declaration)) {
+            references.put(identifier, (GLSLParser.VariableDeclaration) declaration);
+        }
+        return identifier;
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        if (isAssignment(expr.operator)) {
+            addWrite(expr.left, expr.operator, expr.right);
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        super.visit(expr);
+        if (expr.operator.equals("++") || expr.operator.equals("--")) {
+            addWrite(expr.argument, "=", null);
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        super.visit(expr);
+        // Аргумент пользовательской функции может быть out/inout
+        if (expr.callee instanceof GLSLParser.Identifier
+                && userFunctions.contains(((GLSLParser.Identifier) expr.callee).name)) {
+            for (GLSLParser.ASTNode arg : expr.arguments) {
+                addWrite(arg, "=", null);
+            }
+        }
+        return expr;
+    }
+
+    private static boolean isFloatType(String type) {
+        return type.equals("float") || type.startsWith("vec");
+    }
+
+    // Диапазон всех компонент выражения при текущих диапазонах переменных
+    private Range range(GLSLParser.ASTNode node) {
+        if (node instanceof GLSLParser.BinaryExpression) {
+            // Левая цепочка вычисляется без рекурсии
+            List<GLSLParser.BinaryExpression> chain = new ArrayList<>();
+            while (node instanceof GLSLParser.BinaryExpression) {
+                chain.add((GLSLParser.BinaryExpression) node);
+                node = ((GLSLParser.BinaryExpression) node).left;
+            }
+            Range result = range(node);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                GLSLParser.BinaryExpression binary = chain.get(i);
+                Range right = range(binary.right);
+                if (isMatrix(binary.left) || isMatrix(binary.right)) {
+                    // Произведение матриц суммирует компоненты - диапазон не отслеживается
+                    result = UNBOUNDED;
+                    continue;
+                }
+                result = isAssignment(binary.operator) ? right : arithmetic(binary.operator, result, right);
+            }
+            return result;
+        }
+        if (node instanceof GLSLParser.Literal) {
+            Object value = ((GLSLParser.Literal) node).value;
+            if (value instanceof Number) {
+                double v = ((Number) value).doubleValue();
+                return new Range(v, v);
+            }
+            return UNBOUNDED;
+        }
+        if (node instanceof GLSLParser.Identifier) {
+            GLSLParser.VariableDeclaration decl = tracked(node);
+            return decl != null ? ranges.getOrDefault(decl, EMPTY) : UNBOUNDED;
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) node;
+            Range argument = range(unary.argument);
+            if (unary.operator.equals("-")) {
+                return argument.isEmpty() ? EMPTY : new Range(-argument.hi, -argument.lo);
+            }
+            return unary.operator.equals("+") ? argument : UNBOUNDED;
+        }
+        if (node instanceof GLSLParser.TernaryExpression) {
+            GLSLParser.TernaryExpression ternary = (GLSLParser.TernaryExpression) node;
+            return range(ternary.consequent).hull(range(ternary.alternate));
+        }
+        if (node instanceof GLSLParser.MemberExpression) {
+            GLSLParser.MemberExpression member = (GLSLParser.MemberExpression) node;
+            // Swizzle не выходит за диапазон вектора; поля структур не отслеживаются
+            String objectType = member.object.resolvedType;
+            return objectType != null && objectType.startsWith("vec") ? range(member.object) : UNBOUNDED;
+        }
+        if (node instanceof GLSLParser.CallExpression) {
+            return callRange((GLSLParser.CallExpression) node);
+        }
+        return UNBOUNDED;
+    }
+
+    private Range callRange(GLSLParser.CallExpression call) {
+        if (!(call.callee instanceof GLSLParser.Identifier)) {
+            return UNBOUNDED;
+        }
+        String name = ((GLSLParser.Identifier) call.callee).name;
+        if (userFunctions.contains(name)) {
+            return UNBOUNDED;
+        }
+        List<Range> args = new ArrayList<>();
+        for (GLSLParser.ASTNode arg : call.arguments) {
+            args.add(range(arg));
+        }
+        if (name.equals(call.resolvedType) || name.equals("float")) {
+            // Конструктор: компоненты берутся из аргументов
+            Range result = EMPTY;
+            for (Range arg : args) {
+                result = result.hull(arg);
+            }
+            return result;
+        }
+
+        switch (name) {
+            case "texture":
+            case "texture2D":
+            case "textureCube":
+            case "textureProj":
+            case "texture2DProj":
+            case "textureLod":
+            case "texture2DLod":
+            case "textureCubeLod":
+            case "textureGrad":
+            case "fract":
+            case "step":
+            case "smoothstep":
+                return UNIT;
+            case "normalize":
+            case "sin":
+            case "cos":
+                return SIGNED_UNIT;
+            case "abs": {
+                Range x = args.get(0);
+                if (x.isEmpty()) return EMPTY;
+                double lo = x.lo <= 0 && x.hi >= 0 ? 0 : Math.min(Math.abs(x.lo), Math.abs(x.hi));
+                return new Range(lo, x.magnitude());
+            }
+            case "min":
+                return args.size() == 2 ? bound(args.get(0), args.get(1), false) : UNBOUNDED;
+            case "max":
+                return args.size() == 2 ? bound(args.get(0), args.get(1), true) : UNBOUNDED;
+            case "clamp":
+                return args.size() == 3 ? bound(bound(args.get(0), args.get(1), true), args.get(2), false) : UNBOUNDED;
+            case "mix": {
+                if (args.size() != 3) return UNBOUNDED;
+                if (args.get(2).within(UNIT)) {
+                    return args.get(0).hull(args.get(1));
+                }
+                Range t = args.get(2);
+                Range oneMinusT = arithmetic("-", new Range(1, 1), t);
+                return arithmetic("+", arithmetic("*", args.get(0), oneMinusT), arithmetic("*", args.get(1), t));
+            }
+            case "sqrt": {
+                Range x = args.get(0);
+                return x.isEmpty() ? EMPTY : x.lo >= 0 ? new Range(Math.sqrt(x.lo), Math.sqrt(x.hi)) : UNBOUNDED;
+            }
+            case "pow":
+                return args.size() == 2 && args.get(0).within(UNIT) && !args.get(1).isEmpty()
+                        && args.get(1).lo >= 0 ? UNIT : UNBOUNDED;
+            case "dot": {
+                if (args.size() != 2) return UNBOUNDED;
+                // Неравенство Коши-Буняковского для двух единичных векторов
+                if (isNormalize(call.arguments.get(0)) && isNormalize(call.arguments.get(1))) {
+                    return SIGNED_UNIT;
+                }
+                double bound = width(call.arguments.get(0).resolvedType)
+                        * args.get(0).magnitude() * args.get(1).magnitude();
+                return symmetric(bound, args);
+            }
+            case "length": {
+                if (args.size() != 1) return UNBOUNDED;
+                double bound = Math.sqrt(width(call.arguments.get(0).resolvedType)) * args.get(0).magnitude();
+                return args.get(0).isEmpty() ? EMPTY : new Range(0, bound);
+            }
+            default:
+                return UNBOUNDED;
+        }
+    }
+
+    private static boolean isMatrix(GLSLParser.ASTNode node) {
+        return node.resolvedType != null && node.resolvedType.startsWith("mat");
+    }
+
+    private static boolean isNormalize(GLSLParser.ASTNode node) {
+        return node instanceof GLSLParser.CallExpression
+                && ((GLSLParser.CallExpression) node).callee instanceof GLSLParser.Identifier
+                && ((GLSLParser.Identifier) ((GLSLParser.CallExpression) node).callee).name.equals("normalize");
+    }
+
+    private static int width(String type) {
+        if (type == null) return 4;
+        return type.startsWith("vec") ? type.charAt(3) - '0' : 1;
+    }
+
+    private static Range symmetric(double bound, List<Range> args) {
+        for (Range arg : args) {
+            if (arg.isEmpty()) return EMPTY;
+        }
+        return Double.isNaN(bound) ? UNBOUNDED : new Range(-bound, bound);
+    }
+
+    // Диапазон max(a, b) (upper = true) или min(a, b)
+    private static Range bound(Range a, Range b, boolean upper) {
+        if (a.isEmpty() || b.isEmpty()) return EMPTY;
+        return upper
+                ? new Range(Math.max(a.lo, b.lo), Math.max(a.hi, b.hi))
+                : new Range(Math.min(a.lo, b.lo), Math.min(a.hi, b.hi));
+    }
+
+    private static Range arithmetic(String op, Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) return EMPTY;
+        switch (op) {
+            case "+":
+                return checked(a.lo + b.lo, a.hi + b.hi);
+            case "-":
+                return checked(a.lo - b.hi, a.hi - b.lo);
+            case "*":
+                return product(a, b.lo, b.hi);
+            case "/":
+                if (b.lo <= 0 && b.hi >= 0) return UNBOUNDED;
+                return product(a, 1 / b.hi, 1 / b.lo);
+            default:
+                // Сравнения и логические операции дают bool
+                return UNBOUNDED;
+        }
+    }
+
+    private static Range product(Range a, double lo, double hi) {
+        double p1 = a.lo * lo, p2 = a.lo * hi, p3 = a.hi * lo, p4 = a.hi * hi;
+        return checked(Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+    }
+
+    // 0 * inf и inf - inf дают NaN - такой интервал не ограничен
+    private static Range checked(double lo, double hi) {
+        return Double.isNaN(lo) || Double.isNaN(hi) ? UNBOUNDED : new Range(lo, hi);
+    }
+}
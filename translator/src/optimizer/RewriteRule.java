@@ -0,0 +1,28 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.function.Function;
+
+// Правило локальной перезаписи выражения для PeepholeOptimizer.
+// apply получает узел, дети которого уже переписаны, и возвращает узел-замену
+// или null, если правило не подходит. Исходный узел правило не изменяет.
+public interface RewriteRule {
+    String getName();
+
+    GLSLParser.ASTNode apply(GLSLParser.ASTNode node);
+
+    static RewriteRule of(String name, Function<GLSLParser.ASTNode, GLSLParser.ASTNode> rewrite) {
+        return new RewriteRule() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public GLSLParser.ASTNode apply(GLSLParser.ASTNode node) {
+                return rewrite.apply(node);
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Преобразование, знающее области видимости внутри функций: каждый идентификатор
+// можно разрешить в объявивший его узел (VariableDeclaration или Parameter).
+// Глобальные символы не отслеживаются - для них resolve возвращает null.
+public abstract class ScopedRewriter extends ASTRewriter {
+    private final Deque<Map<String, GLSLParser.ASTNode>> scopes = new ArrayDeque<>();
+
+    protected void enterScope() {
+        scopes.push(new HashMap<>());
+    }
+
+    protected void exitScope() {
+        scopes.pop();
+    }
+
+    protected void declare(String name, GLSLParser.ASTNode declaration) {
+        if (!scopes.isEmpty() && name != null) {
+            scopes.peek().put(name, declaration);
+        }
+    }
+
+    // Объявление локальной переменной или параметра, на которое ссылается имя
+    protected GLSLParser.ASTNode resolve(String name) {
+        for (Map<String, GLSLParser.ASTNode> scope : scopes) {
+            GLSLParser.ASTNode declaration = scope.get(name);
+            if (declaration != null) {
+                return declaration;
+            }
+        }
+        return null;
+    }
+
+    protected boolean inFunction() {
+        return !scopes.isEmpty();
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.FunctionDeclaration func) {
+        enterScope();
+        for (GLSLParser.Parameter param : func.parameters) {
+            declare(param.name, param);
+        }
+        GLSLParser.ASTNode result = super.visit(func);
+        exitScope();
+        return result;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        // Инициализатор вычисляется до появления имени в области видимости
+        GLSLParser.ASTNode result = super.visit(decl);
+        declare(decl.name, decl);
+        return result;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.BlockStatement block) {
+        enterScope();
+        GLSLParser.ASTNode result = super.visit(block);
+        exitScope();
+        return result;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        enterScope();
+        GLSLParser.ASTNode result = super.visit(stmt);
+        exitScope();
+        return result;
+    }
+
+    // Корневая переменная выражения-адресата: a, a.x, a.b.c -> a
+    protected static GLSLParser.Identifier baseIdentifier(GLSLParser.ASTNode target) {
+        while (target instanceof GLSLParser.MemberExpression) {
+            target = ((GLSLParser.MemberExpression) target).object;
+        }
+        return target instanceof GLSLParser.Identifier ? (GLSLParser.Identifier) target : null;
+    }
+
+    protected static boolean isAssignment(String operator) {
+        return operator.equals("=") || operator.equals("+=") || operator.equals("-=")
+                || operator.equals("*=") || operator.equals("/=");
+    }
+}
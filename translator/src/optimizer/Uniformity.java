@@ -0,0 +1,221 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Анализ однородности значений внутри одной функции: выражение однородно, если оно
+// одинаково во всех пикселях одного вызова отрисовки. Однородны литералы и uniform-
+// переменные; входы, gl_FragCoord, параметры функции, производные (dFdx, dFdy, fwidth)
+// и результаты пользовательских функций - нет.
+// Локальная переменная однородна, если однородны все записанные в неё значения и
+// условия всех if/for/while, внутри которых происходят записи: запись в расходящейся
+// ветви делает переменную разной в разных пикселях. Анализ нечувствителен к порядку
+// операторов и начинает с предположения, что все переменные однородны, снимая его
+// до неподвижной точки.
+class Uniformity extends ScopedRewriter {
+    private static final Set<String> DERIVATIVES = new HashSet<>(Arrays.asList("dFdx", "dFdy", "fwidth"));
+
+    private final Set<String> uniformGlobals;
+    private final Set<String> userFunctions;
+    // Записи в локальные переменные: значение (null - ++/--) и условия вокруг записи
+    private final Map<GLSLParser.ASTNode, List<Write>> writes = new LinkedHashMap<>();
+    private final Map<GLSLParser.Identifier, GLSLParser.ASTNode> references = new IdentityHashMap<>();
+    private final Set<GLSLParser.ASTNode> divergent = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Deque<GLSLParser.ASTNode> conditions = new ArrayDeque<>();
+
+    private static final class Write {
+        final GLSLParser.ASTNode value;
+        final List<GLSLParser.ASTNode> conditions;
+
+        Write(GLSLParser.ASTNode value, List<GLSLParser.ASTNode> conditions) {
+            this.value = value;
+            this.conditions = conditions;
+        }
+    }
+
+    private Uniformity(Set<String> uniformGlobals, Set<String> userFunctions) {
+        this.uniformGlobals = uniformGlobals;
+        this.userFunctions = userFunctions;
+    }
+
+    static Set<String> uniformGlobals(GLSLParser.Program program) {
+        Set<String> names = new HashSet<>();
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.VariableDeclaration && ((GLSLParser.VariableDeclaration) decl).isUniform) {
+                names.add(((GLSLParser.VariableDeclaration) decl).name);
+            }
+        }
+        return names;
+    }
+
+    static Uniformity analyze(GLSLParser.FunctionDeclaration func, Set<String> uniformGlobals,
+                              Set<String> userFunctions) {
+        Uniformity analysis = new Uniformity(uniformGlobals, userFunctions);
+        func.accept(analysis);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<GLSLParser.ASTNode, List<Write>> entry : analysis.writes.entrySet()) {
+                if (!analysis.divergent.contains(entry.getKey()) && !analysis.uniformWrites(entry.getValue())) {
+                    analysis.divergent.add(entry.getKey());
+                    changed = true;
+                }
+            }
+        }
+        return analysis;
+    }
+
+    private boolean uniformWrites(List<Write> list) {
+        for (Write write : list) {
+            if (write.value != null && !isUniform(write.value)) {
+                return false;
+            }
+            for (GLSLParser.ASTNode condition : write.conditions) {
+                if (!isUniform(condition)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Однородно ли выражение из проанализированной функции
+    boolean isUniform(GLSLParser.ASTNode node) {
+        if (node == null || node instanceof GLSLParser.Literal) {
+            return true;
+        }
+        if (node instanceof GLSLParser.Identifier) {
+            GLSLParser.ASTNode declaration = references.get(node);
+            if (declaration == null) {
+                return uniformGlobals.contains(((GLSLParser.Identifier) node).name);
+            }
+            return declaration instanceof GLSLParser.VariableDeclaration && !divergent.contains(declaration);
+        }
+        if (node instanceof GLSLParser.BinaryExpression) {
+            // Левая цепочка проверяется без рекурсии
+            while (node instanceof GLSLParser.BinaryExpression) {
+                if (!isUniform(((GLSLParser.BinaryExpression) node).right)) {
+                    return false;
+                }
+                node = ((GLSLParser.BinaryExpression) node).left;
+            }
+            return isUniform(node);
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            return isUniform(((GLSLParser.UnaryExpression) node).argument);
+        }
+        if (node instanceof GLSLParser.MemberExpression) {
+            return isUniform(((GLSLParser.MemberExpression) node).object);
+        }
+        if (node instanceof GLSLParser.TernaryExpression) {
+            GLSLParser.TernaryExpression ternary = (GLSLParser.TernaryExpression) node;
+            return isUniform(ternary.test) && isUniform(ternary.consequent) && isUniform(ternary.alternate);
+        }
+        if (node instanceof GLSLParser.CallExpression) {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+            if (!(call.callee instanceof GLSLParser.Identifier)) {
+                return false;
+            }
+            String name = ((GLSLParser.Identifier) call.callee).name;
+            if (userFunctions.contains(name) || DERIVATIVES.contains(name)) {
+                return false;
+            }
+            for (GLSLParser.ASTNode arg : call.arguments) {
+                if (!isUniform(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void addWrite(GLSLParser.ASTNode target, GLSLParser.ASTNode value) {
+        GLSLParser.Identifier base = baseIdentifier(target);
+        GLSLParser.ASTNode declaration = base != null ? references.get(base) : null;
+        List<Write> list = declaration != null ? writes.get(declaration) : null;
+        if (list != null) {
+            list.add(new Write(value, new ArrayList<>(conditions)));
+        }
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.VariableDeclaration decl) {
+        super.visit(decl);
+        List<Write> list = new ArrayList<>();
+        if (decl.initializer != null) {
+            list.add(new Write(decl.initializer, new ArrayList<>(conditions)));
+        }
+        writes.put(decl, list);
+        return decl;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.Identifier identifier) {
+        GLSLParser.ASTNode declaration = resolve(identifier.name);
+        if (declaration != null) {
+            references.put(identifier, declaration);
+        }
+        return identifier;
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        if (isAssignment(expr.operator)) {
+            // Составное присваивание зависит и от старого значения - оно уже учтено
+            addWrite(expr.left, expr.right);
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        super.visit(expr);
+        if (expr.operator.equals("++") || expr.operator.equals("--")) {
+            addWrite(expr.argument, null);
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        super.visit(expr);
+        // Аргумент пользовательской функции может быть out/inout
+        if (expr.callee instanceof GLSLParser.Identifier
+                && userFunctions.contains(((GLSLParser.Identifier) expr.callee).name)) {
+            for (GLSLParser.ASTNode arg : expr.arguments) {
+                addWrite(arg, expr);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.IfStatement stmt) {
+        rewrite(stmt.test);
+        conditions.push(stmt.test);
+        rewrite(stmt.consequent);
+        rewrite(stmt.alternate);
+        conditions.pop();
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.ForStatement stmt) {
+        // Условие цикла управляет всеми итерациями, включая счётчик
+        conditions.push(stmt.test != null ? stmt.test : new GLSLParser.Literal(true));
+        super.visit(stmt);
+        conditions.pop();
+        return stmt;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.WhileStatement stmt) {
+        conditions.push(stmt.test);
+        super.visit(stmt);
+        conditions.pop();
+        return stmt;
+    }
+}
@@ -0,0 +1,184 @@
+package optimizer;
+
+import parser.GLSLParser;
+import semantics.BuiltInPrelude;
+
+import java.util.*;
+
+// Нумерация значений выражений: структурно одинаковые выражения получают один номер.
+// Номер строится из номеров детей (hash-consing), поэтому нумерация всего дерева
+// линейна по его размеру. Для каждого номера известны размер, чистота (нет присваиваний,
+// ++/-- и вызовов пользовательских функций), константность и множество имён переменных.
+class ValueNumbering {
+    private static final BuiltInPrelude PRELUDE = BuiltInPrelude.get();
+
+    static final class Info {
+        final int size;
+        final boolean pure;
+        final boolean constant;
+        final Set<String> vars;
+
+        Info(int size, boolean pure, boolean constant, Set<String> vars) {
+            this.size = size;
+            this.pure = pure;
+            this.constant = constant;
+            this.vars = vars;
+        }
+    }
+
+    private final Set<String> userFunctions;
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final List<Info> infos = new ArrayList<>();
+    private final Map<GLSLParser.ASTNode, Integer> memo = new IdentityHashMap<>();
+
+    ValueNumbering(Set<String> userFunctions) {
+        this.userFunctions = userFunctions;
+    }
+
+    Info info(int number) {
+        return infos.get(number);
+    }
+
+    int number(GLSLParser.ASTNode node) {
+        Integer known = memo.get(node);
+        if (known != null) {
+            return known;
+        }
+
+        if (node instanceof GLSLParser.BinaryExpression) {
+            // Левая цепочка нумеруется снизу вверх без рекурсии
+            List<GLSLParser.BinaryExpression> chain = new ArrayList<>();
+            GLSLParser.ASTNode current = node;
+            while (current instanceof GLSLParser.BinaryExpression && !memo.containsKey(current)) {
+                chain.add((GLSLParser.BinaryExpression) current);
+                current = ((GLSLParser.BinaryExpression) current).left;
+            }
+            int left = number(current);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                GLSLParser.BinaryExpression binary = chain.get(i);
+                int right = number(binary.right);
+                boolean assignment = ScopedRewriter.isAssignment(binary.operator);
+                left = intern(binary, "B" + binary.operator + "," + left + "," + right,
+                        !assignment, new int[] { left, right });
+            }
+            return left;
+        }
+
+        if (node instanceof GLSLParser.Identifier) {
+            String name = ((GLSLParser.Identifier) node).name;
+            return intern(node, "I" + name, new Info(1, true, false, Collections.singleton(name)));
+        }
+        if (node instanceof GLSLParser.Literal) {
+            GLSLParser.Literal literal = (GLSLParser.Literal) node;
+            return intern(node, "L" + literal.resolvedType + ":" + literal.raw,
+                    new Info(1, true, true, Collections.emptySet()));
+        }
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) node;
+            int argument = number(unary.argument);
+            boolean write = unary.operator.equals("++") || unary.operator.equals("--");
+            return intern(node, "U" + unary.operator + "," + argument, !write, new int[] { argument });
+        }
+        if (node instanceof GLSLParser.CallExpression) {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) node;
+            String callee = call.callee instanceof GLSLParser.Identifier
+                    ? ((GLSLParser.Identifier) call.callee).name
+                    : null;
+            int[] children = new int[call.arguments.size()];
+            StringBuilder key = new StringBuilder("C").append(callee);
+            for (int i = 0; i < children.length; i++) {
+                children[i] = number(call.arguments.get(i));
+                key.append(',').append(children[i]);
+            }
+            // Встроенные функции и конструкторы чисты; пользовательские функции могут
+            // менять out-параметры и глобальные переменные
+            boolean pure = callee != null && !userFunctions.contains(callee);
+            // Конструктор типа из констант (vec2(1.0, 2.0)) - такая же константа, как литерал,
+            // и остаётся на месте, а не выносится во временную переменную
+            boolean constructor = pure && (PRELUDE.isBuiltInType(callee) || callee.equals(call.resolvedType));
+            Info info = combine(pure, children, constructor);
+            return intern(node, key.toString(), info);
+        }
+        if (node instanceof GLSLParser.MemberExpression) {
+            GLSLParser.MemberExpression member = (GLSLParser.MemberExpression) node;
+            int object = number(member.object);
+            String property = member.property instanceof GLSLParser.Identifier
+                    ? ((GLSLParser.Identifier) member.property).name
+                    : "?";
+            return intern(node, "M" + object + "." + property, true, new int[] { object });
+        }
+        if (node instanceof GLSLParser.TernaryExpression) {
+            GLSLParser.TernaryExpression ternary = (GLSLParser.TernaryExpression) node;
+            int[] children = { number(ternary.test), number(ternary.consequent), number(ternary.alternate) };
+            return intern(node, "T" + children[0] + "," + children[1] + "," + children[2], true, children);
+        }
+
+        // Прочие узлы не сравниваются между собой
+        return intern(node, "N" + System.identityHashCode(node) + "@" + memo.size(),
+                new Info(1, false, false, Collections.emptySet()));
+    }
+
+    private int intern(GLSLParser.ASTNode node, String key, boolean pure, int[] children) {
+        return intern(node, key, combine(pure, children, true));
+    }
+
+    private Info combine(boolean pure, int[] children, boolean constantIfChildren) {
+        int size = 1;
+        boolean constant = constantIfChildren;
+        Set<String> vars = Collections.emptySet();
+        for (int child : children) {
+            Info info = infos.get(child);
+            size += info.size;
+            pure &= info.pure;
+            constant &= info.constant;
+            if (!info.vars.isEmpty() && !vars.containsAll(info.vars)) {
+                if (vars.isEmpty()) {
+                    vars = info.vars;
+                } else {
+                    Set<String> union = new HashSet<>(vars);
+                    union.addAll(info.vars);
+                    vars = union;
+                }
+            }
+        }
+        return new Info(size, pure, constant, vars);
+    }
+
+    private int intern(GLSLParser.ASTNode node, String key, Info info) {
+        Integer number = numbers.get(key);
+        if (number == null) {
+            number = infos.size();
+            numbers.put(key, number);
+            infos.add(info);
+        }
+        memo.put(node, number);
+        return number;
+    }
+
+    // Можно ли вынести выражение во временную переменную
+    boolean isCandidate(GLSLParser.ASTNode node, Set<String> structNames) {
+        if (!(node instanceof GLSLParser.CallExpression || node instanceof GLSLParser.BinaryExpression
+                || node instanceof GLSLParser.TernaryExpression
+                || node instanceof GLSLParser.MemberExpression || node instanceof GLSLParser.UnaryExpression)) {
+            return false;
+        }
+        Info info = infos.get(number(node));
+        if (!info.pure || info.constant || info.size < 2) {
+            return false;
+        }
+        // Swizzle и унарная операция над переменной ничего не стоят
+        if (node instanceof GLSLParser.MemberExpression
+                && ((GLSLParser.MemberExpression) node).object instanceof GLSLParser.Identifier) {
+            return false;
+        }
+        if (node instanceof GLSLParser.UnaryExpression
+                && ((GLSLParser.UnaryExpression) node).argument instanceof GLSLParser.Identifier) {
+            return false;
+        }
+        String type = node.resolvedType;
+        if (type == null || type.equals("void") || type.startsWith("sampler")) {
+            return false;
+        }
+        return PRELUDE.isBuiltInType(type) || structNames.contains(type);
+    }
+}
@@ -0,0 +1,93 @@
+package optimizer;
+
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Поиск локальных переменных и параметров, которые где-либо изменяются:
+// стоят слева от присваивания (в том числе через поле или swizzle), являются
+// операндом ++/-- или передаются в out/inout параметр пользовательской функции.
+// Результат - множество объявлений (по идентичности узлов) или, для поддерева,
+// множество имён корневых переменных адресатов записи.
+public class WriteAnalysis extends ScopedRewriter {
+    private final Map<String, List<GLSLParser.FunctionDeclaration>> functions;
+    private final Set<GLSLParser.ASTNode> written = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> writtenNames = new HashSet<>();
+
+    private WriteAnalysis(Map<String, List<GLSLParser.FunctionDeclaration>> functions) {
+        this.functions = functions;
+    }
+
+    public static Set<GLSLParser.ASTNode> writtenDeclarations(GLSLParser.Program program) {
+        WriteAnalysis analysis = new WriteAnalysis(functionsOf(program));
+        program.accept(analysis);
+        return analysis.written;
+    }
+
+    // Имена, в которые пишет поддерево (оператор или выражение); functions - функции
+    // программы по именам, нужны для out/inout-параметров
+    public static Set<String> writtenNames(GLSLParser.ASTNode node,
+                                           Map<String, List<GLSLParser.FunctionDeclaration>> functions) {
+        WriteAnalysis analysis = new WriteAnalysis(functions);
+        node.accept(analysis);
+        return analysis.writtenNames;
+    }
+
+    public static Map<String, List<GLSLParser.FunctionDeclaration>> functionsOf(GLSLParser.Program program) {
+        Map<String, List<GLSLParser.FunctionDeclaration>> functions = new HashMap<>();
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                GLSLParser.FunctionDeclaration func = (GLSLParser.FunctionDeclaration) decl;
+                functions.computeIfAbsent(func.name, k -> new ArrayList<>()).add(func);
+            }
+        }
+        return functions;
+    }
+
+    private void markWritten(GLSLParser.ASTNode target) {
+        GLSLParser.Identifier base = baseIdentifier(target);
+        if (base != null) {
+            writtenNames.add(base.name);
+            GLSLParser.ASTNode declaration = resolve(base.name);
+            if (declaration != null) {
+                written.add(declaration);
+            }
+        }
+    }
+
+    @Override
+    protected GLSLParser.ASTNode rewriteBinary(GLSLParser.BinaryExpression expr) {
+        if (isAssignment(expr.operator)) {
+            markWritten(expr.left);
+        }
+        return expr;
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.UnaryExpression expr) {
+        if (expr.operator.equals("++") || expr.operator.equals("--")) {
+            markWritten(expr.argument);
+        }
+        return super.visit(expr);
+    }
+
+    @Override
+    public GLSLParser.ASTNode visit(GLSLParser.CallExpression expr) {
+        if (expr.callee instanceof GLSLParser.Identifier) {
+            List<GLSLParser.FunctionDeclaration> overloads =
+                    functions.get(((GLSLParser.Identifier) expr.callee).name);
+            if (overloads != null) {
+                // Перегрузка не выбирается: достаточно, чтобы позиция была out хотя бы в одной
+                for (GLSLParser.FunctionDeclaration func : overloads) {
+                    for (int i = 0; i < func.parameters.size() && i < expr.arguments.size(); i++) {
+                        String qualifier = func.parameters.get(i).qualifier;
+                        if ("out".equals(qualifier) || "inout".equals(qualifier)) {
+                            markWritten(expr.arguments.get(i));
+                        }
+                    }
+                }
+            }
+        }
+        return super.visit(expr);
+    }
+}
@@ -0,0 +1,329 @@
+package parser;
+
+import java.util.*;
+
+// Каноническое текстовое представление поддерева AST.
+// Структурно одинаковые поддеревья дают одинаковый текст, поэтому он служит
+// ключом для кэшей и для сравнения выражений. Попутно собираются узлы в порядке
+// обхода и имена (идентификаторы, вызываемые функции, типы), на которые ссылается поддерево.
+public class ASTFingerprint implements GLSLParser.ASTVisitor<Void> {
+    // null - текст не строится
+    private final StringBuilder text;
+    // Собирать ли узлы и имена
+    private final boolean collect;
+    // Считать ли хэши (хэш текста считается по мере обхода, сам текст для этого не нужен)
+    private final boolean hashing;
+    private final List<GLSLParser.ASTNode> nodes = new ArrayList<>();
+    private final Set<String> names = new LinkedHashSet<>();
+    // Вычисленные типы (resolvedType) узлов в порядке обхода, строится вместе с текстом
+    private final StringBuilder types;
+    private long hash = 0xcbf29ce484222325L;
+
+    private ASTFingerprint(boolean withText, boolean collect, boolean hashing) {
+        this.text = withText ? new StringBuilder() : null;
+        this.types = withText ? new StringBuilder() : null;
+        this.collect = collect;
+        this.hashing = hashing;
+    }
+
+    public static ASTFingerprint of(GLSLParser.ASTNode node) {
+        ASTFingerprint fingerprint = new ASTFingerprint(true, true, true);
+        fingerprint.append(node);
+        return fingerprint;
+    }
+
+    // Только узлы и имена (без канонического текста и хэша) - для обходов, которым
+    // не нужен ключ, например построения графа вызовов
+    public static ASTFingerprint nodesOf(GLSLParser.ASTNode node) {
+        ASTFingerprint fingerprint = new ASTFingerprint(false, true, false);
+        fingerprint.append(node);
+        return fingerprint;
+    }
+
+    public String getText() {
+        return text != null ? text.toString() : "";
+    }
+
+    // 64-битный хэш FNV-1a канонического текста
+    public long getHash() {
+        return hash;
+    }
+
+    // Вычисленные типы узлов в порядке обхода через пробел ("_" - тип не вычислен)
+    public String getTypes() {
+        return types != null ? types.toString() : "";
+    }
+
+    // Узлы поддерева в порядке обхода (одинаковый для структурно равных поддеревьев)
+    public List<GLSLParser.ASTNode> getNodes() {
+        return nodes;
+    }
+
+    public Set<String> getNames() {
+        return names;
+    }
+
+    private void append(GLSLParser.ASTNode node) {
+        if (node == null) {
+            emit(" _");
+            return;
+        }
+        node.accept(this);
+    }
+
+    private void node(GLSLParser.ASTNode node) {
+        if (collect) {
+            nodes.add(node);
+        }
+        if (types != null) {
+            types.append(node.resolvedType != null ? node.resolvedType : "_").append(' ');
+        }
+    }
+
+    private void name(String name) {
+        if (collect) {
+            names.add(name);
+        }
+    }
+
+    private void open(GLSLParser.ASTNode node, String tag) {
+        node(node);
+        emit(" (");
+        emit(tag);
+    }
+
+    private void close() {
+        emit(")");
+    }
+
+    private void word(String value) {
+        emit(" ");
+        emit(String.valueOf(value));
+    }
+
+    private void emit(String value) {
+        if (text != null) {
+            text.append(value);
+        }
+        if (hashing) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+    }
+
+    private void type(String type) {
+        word(type);
+        if (type != null) {
+            name(type);
+        }
+    }
+
+    @Override
+    public Void visit(GLSLParser.Program program) {
+        open(program, "program");
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            append(decl);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.VariableDeclaration decl) {
+        open(decl, "var");
+        word(decl.isUniform ? "uniform" : decl.isAttribute ? "attribute" : decl.isVarying ? "varying"
+                : decl.isInput ? "in" : "-");
+        type(decl.type);
+        word(decl.precision);
+        word(decl.annotation);
+        word(decl.name);
+        word(decl.semantic);
+        append(decl.initializer);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.FunctionDeclaration decl) {
+        open(decl, "function");
+        type(decl.returnType);
+        word(decl.returnPrecision);
+        word(decl.name);
+        for (GLSLParser.Parameter param : decl.parameters) {
+            append(param);
+        }
+        append(decl.body);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.StructDeclaration decl) {
+        open(decl, "struct");
+        word(decl.name);
+        for (GLSLParser.VariableDeclaration field : decl.fields) {
+            append(field);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.Parameter param) {
+        open(param, "param");
+        word(param.qualifier);
+        type(param.type);
+        word(param.precision);
+        word(param.name);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.BlockStatement block) {
+        open(block, "block");
+        for (GLSLParser.ASTNode stmt : block.statements) {
+            append(stmt);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.VariableStatement stmt) {
+        open(stmt, "decl");
+        append(stmt.declaration);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.ExpressionStatement stmt) {
+        open(stmt, "expr");
+        append(stmt.expression);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.ReturnStatement stmt) {
+        open(stmt, "return");
+        append(stmt.argument);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.IfStatement stmt) {
+        open(stmt, "if");
+        word(stmt.attribute);
+        append(stmt.test);
+        append(stmt.consequent);
+        append(stmt.alternate);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.ForStatement stmt) {
+        open(stmt, "for");
+        word(stmt.attribute);
+        append(stmt.init);
+        append(stmt.test);
+        append(stmt.update);
+        append(stmt.body);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.WhileStatement stmt) {
+        open(stmt, "while");
+        word(stmt.attribute);
+        append(stmt.test);
+        append(stmt.body);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.BinaryExpression expr) {
+        // Левая цепочка ((a + b) + c) + ... обходится итеративно, текст и порядок узлов
+        // те же, что при рекурсивном обходе
+        List<GLSLParser.BinaryExpression> chain = new ArrayList<>();
+        GLSLParser.ASTNode node = expr;
+        while (node instanceof GLSLParser.BinaryExpression) {
+            GLSLParser.BinaryExpression binary = (GLSLParser.BinaryExpression) node;
+            open(binary, binary.operator);
+            chain.add(binary);
+            node = binary.left;
+        }
+        append(node);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            append(chain.get(i).right);
+            close();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.UnaryExpression expr) {
+        open(expr, "unary" + expr.operator);
+        append(expr.argument);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.CallExpression expr) {
+        open(expr, "call");
+        append(expr.callee);
+        for (GLSLParser.ASTNode arg : expr.arguments) {
+            append(arg);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.MemberExpression expr) {
+        open(expr, "member");
+        append(expr.object);
+        // Имя поля не является ссылкой на символ
+        if (expr.property instanceof GLSLParser.Identifier) {
+            node(expr.property);
+            word(((GLSLParser.Identifier) expr.property).name);
+        } else {
+            append(expr.property);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.TernaryExpression expr) {
+        open(expr, "?");
+        append(expr.test);
+        append(expr.consequent);
+        append(expr.alternate);
+        close();
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.Identifier identifier) {
+        node(identifier);
+        word(identifier.name);
+        name(identifier.name);
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.Literal literal) {
+        node(literal);
+        word(literal.raw);
+        return null;
+    }
+}
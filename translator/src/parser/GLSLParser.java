@@ -1,5 +1,6 @@
 package parser;
 
+import lexer.NamePool;
 import lexer.Token;
 import lexer.TokenType1;
 import java.util.*;
@@ -9,8 +10,14 @@ public class GLSLParser {
     private int current = 0;
     private final List<String> errors = new ArrayList<>();
     private final Set<String> userTypes = new HashSet<>();
+    // Точность по умолчанию из операторов precision: области видимости от внутренней
+    // к внешней, в каждой - базовый тип (float, int, sampler2D...) -> квалификатор
+    private final Deque<Map<String, String>> precisionScopes = new ArrayDeque<>();
 
     public static abstract class ASTNode {
+        // Тип выражения, вычисленный семантическим анализатором (null - не вычислен)
+        public String resolvedType;
+
         public abstract <R> R accept(ASTVisitor<R> visitor);
     }
 
@@ -31,6 +38,12 @@ public class GLSLParser {
         public boolean isUniform;
         public boolean isAttribute;
         public boolean isVarying;
+        // Глобальный вход с квалификатором in (GLSL 1.30+)
+        public boolean isInput;
+        // Квалификатор точности (lowp, mediump, highp): явный или из оператора precision
+        public String precision;
+        // Аннотация из комментария при объявлении ("per_object" для // @per_object)
+        public String annotation;
 
         @Override
         public <R> R accept(ASTVisitor<R> visitor) {
@@ -40,6 +53,7 @@ public class GLSLParser {
 
     public static class FunctionDeclaration extends ASTNode {
         public String returnType;
+        public String returnPrecision;
         public String name;
         public List<Parameter> parameters = new ArrayList<>();
         public BlockStatement body;
@@ -64,6 +78,7 @@ public class GLSLParser {
         public String type;
         public String name;
         public String qualifier;
+        public String precision;
 
         @Override
         public <R> R accept(ASTVisitor<R> visitor) {
@@ -125,6 +140,8 @@ public class GLSLParser {
         public ASTNode test;
         public ASTNode update;
         public ASTNode body;
+        // Атрибут цикла HLSL без скобок ("unroll(4)", "loop"); выставляется оптимизатором
+        public String attribute;
 
         @Override
         public <R> R accept(ASTVisitor<R> visitor) {
@@ -133,10 +150,15 @@ public class GLSLParser {
     }
 
     public static class Identifier extends ASTNode {
-        public String name;
+        // Имя и его номер задаются вместе и не меняются: переименование - новый узел
+        public final String name;
+        // Номер имени в NamePool: по нему идёт поиск в таблице символов
+        public final int nameId;
 
         public Identifier(String name) {
-            this.name = name;
+            // Узел держит канонический экземпляр имени, поэтому номер остаётся действительным
+            this.name = NamePool.get().intern(name);
+            this.nameId = NamePool.get().find(this.name);
         }
 
         @Override
@@ -149,6 +171,8 @@ public class GLSLParser {
         public ASTNode test;
         public ASTNode consequent;
         public ASTNode alternate;
+        // Атрибут ветвления HLSL ("branch", "flatten"); выставляется оптимизатором
+        public String attribute;
 
         @Override
         public <R> R accept(ASTVisitor<R> visitor) {
@@ -224,6 +248,8 @@ public class GLSLParser {
     public static class WhileStatement extends ASTNode {
         public ASTNode test;
         public ASTNode body;
+        // Атрибут цикла HLSL без скобок, как у ForStatement
+        public String attribute;
 
         @Override
         public <R> R accept(ASTVisitor<R> visitor) {
@@ -265,6 +291,8 @@ public class GLSLParser {
 
     public Program parseProgram() {
         Program program = new Program();
+        precisionScopes.clear();
+        precisionScopes.push(new HashMap<>());
 
         while (!isAtEnd()) {
             try {
@@ -272,6 +300,9 @@ public class GLSLParser {
                     // Игнорируем препроцессорные директивы
                     continue;
                 }
+                else if (match(TokenType1.KEYWORD_PRECISION)) {
+                    parsePrecisionStatement();
+                }
                 else if (match(TokenType1.KEYWORD_STRUCT)) {
                     program.declarations.add(parseStructDeclaration());
                 } else if (checkDeclarationStart()) {
@@ -304,6 +335,7 @@ public class GLSLParser {
             )) {
                 // Просто пропускаем
             }
+            matchPrecision();
 
             // Проверяем тип или void
             if (check(TokenType1.KEYWORD_VOID) || checkTypeToken()) {
@@ -387,6 +419,7 @@ public class GLSLParser {
             )) {
                 // Просто пропускаем
             }
+            matchPrecision();
 
             // Читаем тип
             if (!checkTypeToken() && !check(TokenType1.KEYWORD_VOID)) {
@@ -452,11 +485,14 @@ public class GLSLParser {
             // но мы пропускаем для обработки ошибочного ввода
         }
 
+        String precision = matchPrecision();
+
         // Тип возврата
         if (match(TokenType1.KEYWORD_VOID)) {
             func.returnType = "void";
         } else if (checkTypeToken()) {
             func.returnType = advance().value;
+            func.returnPrecision = precisionOf(func.returnType, precision);
         } else {
             error("Expected return type for function");
             func.returnType = "float"; // Значение по умолчанию
@@ -509,10 +545,12 @@ public class GLSLParser {
         if (match(TokenType1.KEYWORD_IN, TokenType1.KEYWORD_OUT, TokenType1.KEYWORD_INOUT)) {
             param.qualifier = previous().value;
         }
+        String precision = matchPrecision();
 
         // Тип параметра
         if (checkTypeToken()) {
             param.type = advance().value;
+            param.precision = precisionOf(param.type, precision);
         } else {
             throw error(peek(), "Expected parameter type");
         }
@@ -530,6 +568,7 @@ public class GLSLParser {
 
     private VariableDeclaration parseVariableDeclaration(boolean inStruct) {
         VariableDeclaration decl = new VariableDeclaration();
+        int start = current;
 
         // Квалификаторы
         if (match(TokenType1.KEYWORD_UNIFORM)) {
@@ -539,14 +578,17 @@ public class GLSLParser {
         } else if (match(TokenType1.KEYWORD_VARYING)) {
             decl.isVarying = true;
         } else if (match(TokenType1.KEYWORD_IN)) {
-            // In квалификатор
+            decl.isInput = true;
         } else if (match(TokenType1.KEYWORD_OUT)) {
             // Out квалификатор
         }
+        String precision = matchPrecision();
 
         // Тип переменной
         if (checkTypeToken()) {
             decl.type = advance().value;
+            // У полей структур точности нет
+            decl.precision = inStruct ? precision : precisionOf(decl.type, precision);
         } else {
             throw error(peek(), "Expected variable type");
         }
@@ -571,21 +613,81 @@ public class GLSLParser {
         // Для полей структуры также ожидаем точку с запятой
         expect(TokenType1.SEMICOLON, "Expected ';' after variable declaration");
 
+        // Аннотация перед объявлением, внутри него или в конце строки
+        for (int i = start; i < current; i++) {
+            if (tokens.get(i).annotation != null) {
+                decl.annotation = tokens.get(i).annotation;
+            }
+        }
         return decl;
     }
 
     private BlockStatement parseBlockStatement() {
         BlockStatement block = new BlockStatement();
         expect(TokenType1.LBRACE, "Expected '{' before block");
+        precisionScopes.push(new HashMap<>());
 
-        while (!check(TokenType1.RBRACE) && !isAtEnd()) {
-            block.statements.add(parseStatement());
+        try {
+            while (!check(TokenType1.RBRACE) && !isAtEnd()) {
+                if (match(TokenType1.KEYWORD_PRECISION)) {
+                    parsePrecisionStatement();
+                } else {
+                    block.statements.add(parseStatement());
+                }
+            }
+        } finally {
+            precisionScopes.pop();
         }
 
         expect(TokenType1.RBRACE, "Expected '}' after block");
         return block;
     }
 
+    // precision mediump float; - в AST не попадает, а задаёт точность следующих
+    // объявлений этого типа до конца текущей области видимости
+    private void parsePrecisionStatement() {
+        String precision = matchPrecision();
+        if (precision == null) {
+            throw error(peek(), "Expected precision qualifier after 'precision'");
+        }
+        if (!checkTypeToken()) {
+            throw error(peek(), "Expected type in precision statement");
+        }
+        String type = advance().value;
+        expect(TokenType1.SEMICOLON, "Expected ';' after precision statement");
+        precisionScopes.peek().put(precisionBaseType(type), precision);
+    }
+
+    private String matchPrecision() {
+        if (match(TokenType1.KEYWORD_LOWP, TokenType1.KEYWORD_MEDIUMP, TokenType1.KEYWORD_HIGHP)) {
+            return previous().value;
+        }
+        return null;
+    }
+
+    // Явный квалификатор или точность по умолчанию для типа
+    private String precisionOf(String type, String explicit) {
+        if (explicit != null) {
+            return explicit;
+        }
+        String base = precisionBaseType(type);
+        for (Map<String, String> scope : precisionScopes) {
+            String precision = scope.get(base);
+            if (precision != null) {
+                return precision;
+            }
+        }
+        return null;
+    }
+
+    // Векторы и матрицы получают точность своего скалярного типа
+    private static String precisionBaseType(String type) {
+        if (type.startsWith("vec") || type.startsWith("mat")) {
+            return "float";
+        }
+        return type;
+    }
+
     private ASTNode parseStatement() {
         // Пропускаем препроцессорные директивы в начале
         if (match(TokenType1.PREPROCESSOR_DIRECTIVE)) {
@@ -0,0 +1,95 @@
+package semantics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Кэш результатов семантической проверки функций.
+// Ключ - канонический текст AST функции вместе с сигнатурами глобальных переменных,
+// структур и функций, на которые она ссылается. Поэтому после правки повторно
+// проверяются только изменённые функции и те, чьи зависимости поменяли сигнатуру.
+// Ключи сравниваются целиком: совпадение хэшей разных функций не подставит чужие
+// ошибки и типы.
+// Кэш потокобезопасен и может разделяться несколькими анализаторами.
+public class AnalysisCache {
+    private final int maxEntries;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AnalysisCache() {
+        this(4096);
+    }
+
+    public AnalysisCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    void put(Key key, Entry entry) {
+        if (entries.size() >= maxEntries) {
+            entries.clear(); // Простое ограничение размера
+        }
+        entries.put(key, entry);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    // Ключ: канонический текст AST функции и канонический текст используемых ею
+    // внешних сигнатур; хэш AST нужен только для hashCode и быстрого отказа в equals
+    static final class Key {
+        final String ast;
+        final long astHash;
+        final String dependencies;
+
+        Key(String ast, long astHash, String dependencies) {
+            this.ast = ast;
+            this.astHash = astHash;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return astHash == other.astHash && ast.equals(other.ast)
+                    && dependencies.equals(other.dependencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(astHash) * 31 + dependencies.hashCode();
+        }
+    }
+
+    // Результат проверки: ошибки и вычисленные типы узлов в порядке обхода,
+    // чтобы восстановить resolvedType на структурно такой же функции
+    static final class Entry {
+        final List<String> errors;
+        final String[] resolvedTypes;
+
+        Entry(List<String> errors, String[] resolvedTypes) {
+            this.errors = errors;
+            this.resolvedTypes = resolvedTypes;
+        }
+    }
+}
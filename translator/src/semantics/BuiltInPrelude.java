@@ -0,0 +1,408 @@
+package semantics;
+
+import lexer.NamePool;
+
+import java.util.*;
+
+// Неизменяемый набор встроенных типов, правил совместимости и встроенных функций.
+// Строится один раз при загрузке класса и разделяется всеми экземплярами
+// SemanticAnalyzer (в том числе из разных потоков), поэтому создание
+// анализатора не требует повторной инициализации таблиц.
+public final class BuiltInPrelude {
+    // Встроенные типы
+    final Set<String> builtInTypes;
+
+    // Таблица типов и их совместимости
+    final Map<String, Set<String>> typeCompatibility;
+
+    // Встроенные функции (все перегрузки по имени, в порядке объявления)
+    final Map<String, List<BuiltInFunctionInfo>> builtInFunctions;
+
+    // Индекс перегрузок: имя -> (сигнатура из арности и id типов аргументов -> перегрузка)
+    private final Map<String, Map<Long, BuiltInFunctionInfo>> overloadIndex;
+
+    // Встроенные символы по номеру имени в NamePool: один массив на все SymbolTable,
+    // после построения не меняется, поэтому создание таблицы символов его не копирует
+    final SymbolTable.SymbolInfo[] symbolsById;
+    // Канонические экземпляры имён встроенных символов: пока прелюдия жива (всегда),
+    // их номера в NamePool не освобождаются
+    private final String[] symbolNames;
+
+    // Встроенные функции GLSL, которые транслятор знает, но не поддерживает:
+    // имя -> причина (для сообщения вместо "Undeclared function")
+    private static final Map<String, String> UNSUPPORTED_FUNCTIONS = new HashMap<>();
+
+    // Плотные id типов для ключей индекса перегрузок
+    private static final Map<String, Integer> TYPE_IDS = new HashMap<>();
+
+    // genType из спецификации GLSL
+    private static final String[] GEN_TYPES = {"float", "vec2", "vec3", "vec4"};
+
+    private static final int TYPE_ID_BITS = 5;
+    private static final int ARITY_BITS = 4;
+
+    static {
+        String[] types = {"float", "int", "bool", "void", "vec2", "vec3", "vec4",
+                "mat2", "mat3", "mat4", "sampler2D", "samplerCube"};
+        for (int i = 0; i < types.length; i++) {
+            TYPE_IDS.put(types[i], i);
+        }
+        for (String name : new String[]{"lessThan", "lessThanEqual", "greaterThan", "greaterThanEqual",
+                "equal", "notEqual", "any", "all", "not"}) {
+            UNSUPPORTED_FUNCTIONS.put(name, "bvec types are not supported");
+        }
+        UNSUPPORTED_FUNCTIONS.put("texelFetch", "ivec types are not supported");
+        UNSUPPORTED_FUNCTIONS.put("textureSize", "ivec types are not supported");
+    }
+
+    // Создаётся после таблиц выше: конструктор использует их
+    private static final BuiltInPrelude INSTANCE = new BuiltInPrelude();
+
+    public static BuiltInPrelude get() {
+        return INSTANCE;
+    }
+
+    private BuiltInPrelude() {
+        Set<String> types = new HashSet<>();
+        Map<String, Set<String>> compatibility = new HashMap<>();
+        Map<String, List<BuiltInFunctionInfo>> functions = new LinkedHashMap<>();
+        Map<String, SymbolTable.SymbolInfo> builtInSymbols = new HashMap<>();
+
+        initializeTypeSystem(types, compatibility);
+        initializeBuiltIns(functions);
+
+        // Добавляем встроенные типы в таблицу символов
+        for (String type : types) {
+            builtInSymbols.put(type, new SymbolTable.SymbolInfo(
+                    type, type, SymbolTable.SymbolKind.TYPE, null));
+        }
+
+        // Добавляем встроенные функции (в таблицу символов попадает первая перегрузка)
+        for (Map.Entry<String, List<BuiltInFunctionInfo>> entry : functions.entrySet()) {
+            BuiltInFunctionInfo info = entry.getValue().get(0);
+            builtInSymbols.put(entry.getKey(), new SymbolTable.SymbolInfo(
+                    entry.getKey(), info.returnType, SymbolTable.SymbolKind.FUNCTION, info.paramTypes));
+        }
+
+        // Встроенные переменные GLSL
+        addBuiltInVariable(builtInSymbols, "gl_FragCoord", "vec4");
+        addBuiltInVariable(builtInSymbols, "gl_FragColor", "vec4");
+        addBuiltInVariable(builtInSymbols, "gl_Position", "vec4");
+
+        // Замораживаем таблицы
+        for (Map.Entry<String, Set<String>> entry : compatibility.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        Map<String, Map<Long, BuiltInFunctionInfo>> index = new HashMap<>();
+        for (Map.Entry<String, List<BuiltInFunctionInfo>> entry : functions.entrySet()) {
+            Map<Long, BuiltInFunctionInfo> bySignature = new HashMap<>();
+            for (BuiltInFunctionInfo info : entry.getValue()) {
+                bySignature.putIfAbsent(signature(info.paramTypes), info);
+            }
+            index.put(entry.getKey(), Collections.unmodifiableMap(bySignature));
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.overloadIndex = Collections.unmodifiableMap(index);
+        this.builtInTypes = Collections.unmodifiableSet(types);
+        this.typeCompatibility = Collections.unmodifiableMap(compatibility);
+        this.builtInFunctions = Collections.unmodifiableMap(functions);
+        NamePool names = NamePool.get();
+        this.symbolNames = new String[builtInSymbols.size()];
+        int size = 0;
+        int count = 0;
+        for (String name : builtInSymbols.keySet()) {
+            symbolNames[count] = names.intern(name);
+            size = Math.max(size, names.find(symbolNames[count]) + 1);
+            count++;
+        }
+        this.symbolsById = new SymbolTable.SymbolInfo[size];
+        for (String name : symbolNames) {
+            symbolsById[names.find(name)] = builtInSymbols.get(name);
+        }
+    }
+
+    private static void initializeTypeSystem(Set<String> builtInTypes, Map<String, Set<String>> compatibility) {
+        // Базовые типы
+        builtInTypes.add("float");
+        builtInTypes.add("int");
+        builtInTypes.add("bool");
+        builtInTypes.add("void");
+
+        // Векторы
+        builtInTypes.add("vec2");
+        builtInTypes.add("vec3");
+        builtInTypes.add("vec4");
+
+        // Матрицы
+        builtInTypes.add("mat2");
+        builtInTypes.add("mat3");
+        builtInTypes.add("mat4");
+
+        // Сэмплеры
+        builtInTypes.add("sampler2D");
+        builtInTypes.add("samplerCube");
+
+        // Совместимость типов
+        addCompatibleTypes(compatibility, "float", "float");
+        addCompatibleTypes(compatibility, "int", "int");
+        addCompatibleTypes(compatibility, "bool", "bool");
+
+        addCompatibleTypes(compatibility, "vec2", "vec2");
+        addCompatibleTypes(compatibility, "vec3", "vec3");
+        addCompatibleTypes(compatibility, "vec4", "vec4");
+
+        addCompatibleTypes(compatibility, "mat2", "mat2");
+        addCompatibleTypes(compatibility, "mat3", "mat3");
+        addCompatibleTypes(compatibility, "mat4", "mat4");
+
+        // Скалярные преобразования
+        addCompatibleTypes(compatibility, "float", "vec2");
+        addCompatibleTypes(compatibility, "float", "vec3");
+        addCompatibleTypes(compatibility, "float", "vec4");
+        addCompatibleTypes(compatibility, "float", "mat2");
+        addCompatibleTypes(compatibility, "float", "mat3");
+        addCompatibleTypes(compatibility, "float", "mat4");
+
+        // int к float
+        addCompatibleTypes(compatibility, "int", "float");
+        addCompatibleTypes(compatibility, "int", "vec2");
+        addCompatibleTypes(compatibility, "int", "vec3");
+        addCompatibleTypes(compatibility, "int", "vec4");
+    }
+
+    private static void initializeBuiltIns(Map<String, List<BuiltInFunctionInfo>> functions) {
+        // Тригонометрия: genType f(genType)
+        for (String name : new String[]{"radians", "degrees", "sin", "cos", "tan",
+                "asin", "acos", "atan", "sinh", "cosh", "tanh"}) {
+            addGenTypeFunction(functions, name, name, "T", "T");
+        }
+        addGenTypeFunction(functions, "atan", "atan2", "T", "T", "T");
+
+        // Экспоненциальные функции
+        addGenTypeFunction(functions, "pow", "pow", "T", "T", "T");
+        for (String name : new String[]{"exp", "log", "exp2", "log2", "sqrt"}) {
+            addGenTypeFunction(functions, name, name, "T", "T");
+        }
+        addGenTypeFunction(functions, "inversesqrt", "rsqrt", "T", "T");
+
+        // Общие функции
+        for (String name : new String[]{"abs", "sign", "floor", "trunc", "round", "ceil"}) {
+            addGenTypeFunction(functions, name, name, "T", "T");
+        }
+        addGenTypeFunction(functions, "fract", "frac", "T", "T");
+        // fmod в HLSL округляет частное к нулю, а mod в GLSL - к минус бесконечности
+        // (x - y * floor(x / y)); генератор выводит вспомогательную функцию
+        addGenTypeFunction(functions, "mod", "glsl_mod", "T", "T", "T");
+        addGenTypeFunction(functions, "mod", "glsl_mod", "T", "T", "float");
+        for (String name : new String[]{"min", "max"}) {
+            addGenTypeFunction(functions, name, name, "T", "T", "T");
+            addGenTypeFunction(functions, name, name, "T", "T", "float");
+            addBuiltInFunction(functions, name, name, "int", "int", "int");
+        }
+        addGenTypeFunction(functions, "clamp", "clamp", "T", "T", "T", "T");
+        addGenTypeFunction(functions, "clamp", "clamp", "T", "T", "float", "float");
+        addBuiltInFunction(functions, "clamp", "clamp", "int", "int", "int", "int");
+        addBuiltInFunction(functions, "abs", "abs", "int", "int");
+        addBuiltInFunction(functions, "sign", "sign", "int", "int");
+        addGenTypeFunction(functions, "mix", "lerp", "T", "T", "T", "T");
+        addGenTypeFunction(functions, "mix", "lerp", "T", "T", "T", "float");
+        addGenTypeFunction(functions, "step", "step", "T", "T", "T");
+        addGenTypeFunction(functions, "step", "step", "T", "float", "T");
+        addGenTypeFunction(functions, "smoothstep", "smoothstep", "T", "T", "T", "T");
+        addGenTypeFunction(functions, "smoothstep", "smoothstep", "T", "float", "float", "T");
+        addGenTypeFunction(functions, "fma", "mad", "T", "T", "T", "T");
+
+        // Геометрические функции
+        addGenTypeFunction(functions, "length", "length", "float", "T");
+        addGenTypeFunction(functions, "distance", "distance", "float", "T", "T");
+        addGenTypeFunction(functions, "dot", "dot", "float", "T", "T");
+        addBuiltInFunction(functions, "cross", "cross", "vec3", "vec3", "vec3");
+        addGenTypeFunction(functions, "normalize", "normalize", "T", "T");
+        addGenTypeFunction(functions, "faceforward", "faceforward", "T", "T", "T", "T");
+        addGenTypeFunction(functions, "reflect", "reflect", "T", "T", "T");
+        addGenTypeFunction(functions, "refract", "refract", "T", "T", "T", "float");
+
+        // Матричные функции (inverse и matrixCompMult не имеют прямого аналога в HLSL);
+        // outerProduct - вспомогательная функция генератора
+        for (int n = 2; n <= 4; n++) {
+            String mat = "mat" + n;
+            String vec = "vec" + n;
+            addBuiltInFunction(functions, "transpose", "transpose", mat, mat);
+            addBuiltInFunction(functions, "determinant", "determinant", "float", mat);
+            addBuiltInFunction(functions, "outerProduct", "glsl_outerProduct", mat, vec, vec);
+        }
+
+        // Производные
+        addGenTypeFunction(functions, "dFdx", "ddx", "T", "T");
+        addGenTypeFunction(functions, "dFdy", "ddy", "T", "T");
+        addGenTypeFunction(functions, "fwidth", "fwidth", "T", "T");
+
+        // Текстурные функции: HLSL-имя - метод объекта текстуры (albedo.Sample(sampler, uv)),
+        // сэмплер подставляет генератор
+        addBuiltInFunction(functions, "texture", "Sample", "vec4", "sampler2D", "vec2");
+        addBuiltInFunction(functions, "texture", "Sample", "vec4", "samplerCube", "vec3");
+        addBuiltInFunction(functions, "texture2D", "Sample", "vec4", "sampler2D", "vec2");
+        addBuiltInFunction(functions, "textureCube", "Sample", "vec4", "samplerCube", "vec3");
+        addBuiltInFunction(functions, "texture", "SampleBias", "vec4", "sampler2D", "vec2", "float");
+        addBuiltInFunction(functions, "texture", "SampleBias", "vec4", "samplerCube", "vec3", "float");
+        addBuiltInFunction(functions, "texture2D", "SampleBias", "vec4", "sampler2D", "vec2", "float");
+        addBuiltInFunction(functions, "textureCube", "SampleBias", "vec4", "samplerCube", "vec3", "float");
+        // Проективное чтение: координата делится на последнюю компоненту
+        for (String name : new String[]{"textureProj", "texture2DProj"}) {
+            addBuiltInFunction(functions, name, "SampleProj", "vec4", "sampler2D", "vec3");
+            addBuiltInFunction(functions, name, "SampleProj", "vec4", "sampler2D", "vec4");
+            addBuiltInFunction(functions, name, "SampleProjBias", "vec4", "sampler2D", "vec3", "float");
+            addBuiltInFunction(functions, name, "SampleProjBias", "vec4", "sampler2D", "vec4", "float");
+        }
+        addBuiltInFunction(functions, "textureLod", "SampleLevel", "vec4", "sampler2D", "vec2", "float");
+        addBuiltInFunction(functions, "textureLod", "SampleLevel", "vec4", "samplerCube", "vec3", "float");
+        addBuiltInFunction(functions, "texture2DLod", "SampleLevel", "vec4", "sampler2D", "vec2", "float");
+        addBuiltInFunction(functions, "textureCubeLod", "SampleLevel", "vec4", "samplerCube", "vec3", "float");
+        addBuiltInFunction(functions, "textureGrad", "SampleGrad", "vec4", "sampler2D", "vec2", "vec2", "vec2");
+        addBuiltInFunction(functions, "textureGrad", "SampleGrad", "vec4", "samplerCube", "vec3", "vec3", "vec3");
+    }
+
+    // Объявляет функцию для каждого genType; "T" в сигнатуре заменяется на конкретный тип
+    private static void addGenTypeFunction(Map<String, List<BuiltInFunctionInfo>> functions,
+                                           String name, String hlslName, String returnType, String... paramTypes) {
+        for (String genType : GEN_TYPES) {
+            String[] params = new String[paramTypes.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = paramTypes[i].equals("T") ? genType : paramTypes[i];
+            }
+            addBuiltInFunction(functions, name, hlslName,
+                    returnType.equals("T") ? genType : returnType, params);
+        }
+    }
+
+    private static void addBuiltInFunction(Map<String, List<BuiltInFunctionInfo>> functions,
+                                           String name, String hlslName, String returnType, String... paramTypes) {
+        BuiltInFunctionInfo info = new BuiltInFunctionInfo(name, hlslName, returnType,
+                Collections.unmodifiableList(Arrays.asList(paramTypes)));
+        functions.computeIfAbsent(name, k -> new ArrayList<>()).add(info);
+    }
+
+    private static void addBuiltInVariable(Map<String, SymbolTable.SymbolInfo> symbols, String name, String type) {
+        symbols.put(name, new SymbolTable.SymbolInfo(
+                name, type, SymbolTable.SymbolKind.VARIABLE, null));
+    }
+
+    private static void addCompatibleTypes(Map<String, Set<String>> compatibility, String type1, String type2) {
+        compatibility.computeIfAbsent(type1, k -> new HashSet<>()).add(type2);
+        compatibility.computeIfAbsent(type2, k -> new HashSet<>()).add(type1);
+    }
+
+    // Разрешение перегрузок ================================================
+
+    // Прямой поиск перегрузки по индексу: сначала точное совпадение типов,
+    // затем с неявным преобразованием int -> float. Перебор остаётся только
+    // для аргументов с неизвестным типом.
+    BuiltInFunctionInfo resolveOverload(String name, List<String> argTypes) {
+        Map<Long, BuiltInFunctionInfo> bySignature = overloadIndex.get(name);
+        if (bySignature == null) {
+            return null;
+        }
+
+        long key = signature(argTypes);
+        if (key >= 0) {
+            BuiltInFunctionInfo info = bySignature.get(key);
+            if (info != null) {
+                return info;
+            }
+
+            if (argTypes.contains("int")) {
+                List<String> promoted = new ArrayList<>(argTypes.size());
+                for (String argType : argTypes) {
+                    promoted.add(argType.equals("int") ? "float" : argType);
+                }
+                return bySignature.get(signature(promoted));
+            }
+            return null;
+        }
+
+        for (BuiltInFunctionInfo info : builtInFunctions.get(name)) {
+            if (info.paramTypes.size() != argTypes.size()) continue;
+
+            boolean matches = true;
+            for (int i = 0; i < argTypes.size() && matches; i++) {
+                String argType = argTypes.get(i);
+                matches = argType == null || argType.equals(info.paramTypes.get(i)) ||
+                        (argType.equals("int") && info.paramTypes.get(i).equals("float"));
+            }
+            if (matches) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    // Имя HLSL-функции для вызова встроенной функции GLSL (null - не встроенная).
+    // Если перегрузка не найдена (типы аргументов не разрешены или не подходят), имя
+    // берётся, только когда оно у всех перегрузок одно; иначе - IllegalStateException
+    public String mapFunctionName(String name, List<String> argTypes) {
+        List<BuiltInFunctionInfo> overloads = builtInFunctions.get(name);
+        if (overloads == null) {
+            return null;
+        }
+        BuiltInFunctionInfo info = resolveOverload(name, argTypes);
+        if (info != null) {
+            return info.hlslName;
+        }
+        String hlslName = overloads.get(0).hlslName;
+        for (BuiltInFunctionInfo overload : overloads) {
+            if (!overload.hlslName.equals(hlslName)) {
+                throw new IllegalStateException("Cannot resolve overload of built-in function '" + name
+                        + "' for arguments " + argTypes);
+            }
+        }
+        return hlslName;
+    }
+
+    // Причина, по которой встроенная функция GLSL не поддерживается (null - не такая функция)
+    public String unsupportedReason(String name) {
+        return UNSUPPORTED_FUNCTIONS.get(name);
+    }
+
+    public boolean isBuiltInFunction(String name) {
+        return builtInFunctions.containsKey(name);
+    }
+
+    public boolean isBuiltInType(String name) {
+        return builtInTypes.contains(name);
+    }
+
+    // Ключ индекса: арность в младших битах, затем id типов аргументов (-1 - тип неизвестен)
+    private static long signature(List<String> types) {
+        if (types.size() >= (1 << ARITY_BITS) ||
+                ARITY_BITS + types.size() * TYPE_ID_BITS > Long.SIZE - 1) {
+            return -1;
+        }
+
+        long key = types.size();
+        int shift = ARITY_BITS;
+        for (String type : types) {
+            Integer id = type != null ? TYPE_IDS.get(type) : null;
+            if (id == null) {
+                return -1;
+            }
+            key |= (long) id << shift;
+            shift += TYPE_ID_BITS;
+        }
+        return key;
+    }
+
+    // Информация о встроенной функции
+    static class BuiltInFunctionInfo {
+        final String name;
+        final String hlslName;
+        final String returnType;
+        final List<String> paramTypes;
+
+        BuiltInFunctionInfo(String name, String hlslName, String returnType, List<String> paramTypes) {
+            this.name = name;
+            this.hlslName = hlslName;
+            this.returnType = returnType;
+            this.paramTypes = paramTypes;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package semantics;
+
+import parser.ASTFingerprint;
+import parser.GLSLParser;
+
+import java.util.*;
+
+// Граф вызовов пользовательских функций.
+// Вершина - имя функции (все перегрузки одного имени - одна вершина), рёбра строятся
+// по CallExpression в телах. Вызовы встроенных функций и конструкторов в граф не попадают.
+public class CallGraph {
+    public static final String ENTRY_POINT = "main";
+
+    // Функции в порядке объявления
+    private final Map<String, List<GLSLParser.FunctionDeclaration>> functions = new LinkedHashMap<>();
+    private final Map<String, Set<String>> callees = new HashMap<>();
+    // Имена (идентификаторы и типы), упомянутые в сигнатуре и теле функции
+    private final Map<String, Set<String>> usedNames = new HashMap<>();
+
+    public static CallGraph build(GLSLParser.Program program) {
+        CallGraph graph = new CallGraph();
+        for (GLSLParser.ASTNode decl : program.declarations) {
+            if (decl instanceof GLSLParser.FunctionDeclaration) {
+                graph.addFunction((GLSLParser.FunctionDeclaration) decl);
+            }
+        }
+        return graph;
+    }
+
+    private void addFunction(GLSLParser.FunctionDeclaration func) {
+        functions.computeIfAbsent(func.name, k -> new ArrayList<>()).add(func);
+
+        ASTFingerprint fingerprint = ASTFingerprint.nodesOf(func);
+        Set<String> calls = callees.computeIfAbsent(func.name, k -> new LinkedHashSet<>());
+        for (GLSLParser.ASTNode node : fingerprint.getNodes()) {
+            if (node instanceof GLSLParser.CallExpression) {
+                GLSLParser.ASTNode callee = ((GLSLParser.CallExpression) node).callee;
+                if (callee instanceof GLSLParser.Identifier) {
+                    calls.add(((GLSLParser.Identifier) callee).name);
+                }
+            }
+        }
+        usedNames.computeIfAbsent(func.name, k -> new LinkedHashSet<>()).addAll(fingerprint.getNames());
+    }
+
+    public boolean hasFunction(String name) {
+        return functions.containsKey(name);
+    }
+
+    // Пользовательские функции, которые вызывает данная
+    public Set<String> getCallees(String name) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String callee : callees.getOrDefault(name, Collections.emptySet())) {
+            if (functions.containsKey(callee)) {
+                result.add(callee);
+            }
+        }
+        return result;
+    }
+
+    // Функции, достижимые из точки входа (включая её саму).
+    // Без точки входа (библиотека функций) достижимыми считаются все
+    public Set<String> reachable(String entry) {
+        if (!functions.containsKey(entry)) {
+            return new LinkedHashSet<>(functions.keySet());
+        }
+        Set<String> visited = new LinkedHashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(entry);
+        while (!stack.isEmpty()) {
+            String name = stack.pop();
+            if (visited.add(name)) {
+                for (String callee : getCallees(name)) {
+                    stack.push(callee);
+                }
+            }
+        }
+        return visited;
+    }
+
+    // Достижимые функции в порядке зависимостей: вызываемая функция идёт раньше вызывающей.
+    // При прочих равных сохраняется порядок объявления, поэтому для корректного GLSL
+    // (функция объявлена до использования) порядок не меняется
+    public List<GLSLParser.FunctionDeclaration> emissionOrder(String entry) {
+        Set<String> live = reachable(entry);
+        Set<String> visited = new HashSet<>();
+        List<GLSLParser.FunctionDeclaration> order = new ArrayList<>();
+        for (String name : functions.keySet()) {
+            if (live.contains(name)) {
+                appendPostOrder(name, visited, order);
+            }
+        }
+        return order;
+    }
+
+    private void appendPostOrder(String name, Set<String> visited, List<GLSLParser.FunctionDeclaration> order) {
+        if (!visited.add(name)) {
+            return; // Уже добавлена или рекурсия (в GLSL запрещена)
+        }
+        for (String callee : getCallees(name)) {
+            appendPostOrder(callee, visited, order);
+        }
+        order.addAll(functions.get(name));
+    }
+
+    // Объявленные в программе функции, недостижимые из точки входа
+    public Set<String> unreachable(String entry) {
+        Set<String> result = new LinkedHashSet<>(functions.keySet());
+        result.removeAll(reachable(entry));
+        return result;
+    }
+
+    // Имена (в том числе пользовательских структур), на которые ссылаются достижимые функции
+    public Set<String> namesUsedFrom(String entry) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String name : reachable(entry)) {
+            result.addAll(usedNames.getOrDefault(name, Collections.emptySet()));
+        }
+        return result;
+    }
+}
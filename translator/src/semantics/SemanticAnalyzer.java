@@ -1,126 +1,80 @@
 package semantics;
 
+import parser.ASTFingerprint;
 import parser.GLSLParser;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
-    private final SymbolTable symbolTable = new SymbolTable();
+    // Встроенные типы, их совместимость и встроенные функции общие для всех анализаторов
+    private final BuiltInPrelude prelude = BuiltInPrelude.get();
+
+    private final SymbolTable symbolTable;
+    // Кэш результатов проверки функций (null - без кэширования)
+    private final AnalysisCache cache;
     private final List<String> errors = new ArrayList<>();
     private String currentFunctionReturnType = null;
     private boolean inFunction = false;
     private boolean inGlobalScope = true;
     private boolean inStructDeclaration = false;
-
-    // Таблица типов и их совместимости
-    private final Map<String, Set<String>> typeCompatibility = new HashMap<>();
-
-    // Встроенные типы
-    private final Set<String> builtInTypes = new HashSet<>();
-
-    // Встроенные функции
-    private final Map<String, BuiltInFunctionInfo> builtInFunctions = new HashMap<>();
+    // Число шагов типизации выражений: своих и (после проверки деклараций)
+    // собранных у анализаторов отдельных деклараций, в том числе из других потоков
+    private long typedExpressions;
+    private final LongAdder declarationTypedExpressions = new LongAdder();
 
     public SemanticAnalyzer() {
-        initializeTypeSystem();
-        initializeBuiltIns();
+        this((AnalysisCache) null);
     }
 
-    private void initializeTypeSystem() {
-        // Базовые типы
-        builtInTypes.add("float");
-        builtInTypes.add("int");
-        builtInTypes.add("bool");
-        builtInTypes.add("void");
-
-        // Векторы
-        builtInTypes.add("vec2");
-        builtInTypes.add("vec3");
-        builtInTypes.add("vec4");
-
-        // Матрицы
-        builtInTypes.add("mat2");
-        builtInTypes.add("mat3");
-        builtInTypes.add("mat4");
-
-        // Совместимость типов
-        addCompatibleTypes("float", "float");
-        addCompatibleTypes("int", "int");
-        addCompatibleTypes("bool", "bool");
-
-        addCompatibleTypes("vec2", "vec2");
-        addCompatibleTypes("vec3", "vec3");
-        addCompatibleTypes("vec4", "vec4");
-
-        addCompatibleTypes("mat2", "mat2");
-        addCompatibleTypes("mat3", "mat3");
-        addCompatibleTypes("mat4", "mat4");
-
-        // Скалярные преобразования
-        addCompatibleTypes("float", "vec2");
-        addCompatibleTypes("float", "vec3");
-        addCompatibleTypes("float", "vec4");
-        addCompatibleTypes("float", "mat2");
-        addCompatibleTypes("float", "mat3");
-        addCompatibleTypes("float", "mat4");
-
-        // int к float
-        addCompatibleTypes("int", "float");
-        addCompatibleTypes("int", "vec2");
-        addCompatibleTypes("int", "vec3");
-        addCompatibleTypes("int", "vec4");
+    // Анализатор, повторно использующий результаты проверки неизменённых функций
+    public SemanticAnalyzer(AnalysisCache cache) {
+        this.symbolTable = new SymbolTable(prelude.symbolsById);
+        this.cache = cache;
     }
 
-    private void initializeBuiltIns() {
-        // Встроенные функции-конструкторы
-        addBuiltInFunction("vec2", "vec2", Arrays.asList("float", "float"));
-        addBuiltInFunction("vec3", "vec3", Arrays.asList("float", "float", "float"));
-        addBuiltInFunction("vec4", "vec4", Arrays.asList("float", "float", "float", "float"));
-
-        // Математические функции
-        addBuiltInFunction("length", "float", Arrays.asList("vec2"));
-        addBuiltInFunction("length", "float", Arrays.asList("vec3"));
-        addBuiltInFunction("length", "float", Arrays.asList("vec4"));
-
-        // Добавляем встроенные типы в таблицу символов
-        for (String type : builtInTypes) {
-            symbolTable.addBuiltInSymbol(type, new SymbolTable.SymbolInfo(
-                    type, type, SymbolTable.SymbolKind.TYPE, null));
-        }
+    // Анализатор для проверки одной декларации поверх собранной глобальной области
+    private SemanticAnalyzer(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+        this.cache = null;
+    }
 
-        // Добавляем встроенные функции
-        for (Map.Entry<String, BuiltInFunctionInfo> entry : builtInFunctions.entrySet()) {
-            BuiltInFunctionInfo info = entry.getValue();
-            symbolTable.addBuiltInSymbol(entry.getKey(), new SymbolTable.SymbolInfo(
-                    entry.getKey(), info.returnType, SymbolTable.SymbolKind.FUNCTION, info.paramTypes));
-        }
+    public List<String> analyze(GLSLParser.Program program) {
+        return analyze(program, null);
     }
 
-    private void addBuiltInFunction(String name, String returnType, List<String> paramTypes) {
-        BuiltInFunctionInfo info = new BuiltInFunctionInfo(returnType, paramTypes);
-        builtInFunctions.put(name, info);
+    // Параллельный режим: после сбора глобальных деклараций тела функций
+    // независимы и проверяются задачами на fork-join пуле
+    public List<String> analyzeParallel(GLSLParser.Program program) {
+        return analyze(program, ForkJoinPool.commonPool());
     }
 
-    private void addCompatibleTypes(String type1, String type2) {
-        typeCompatibility.computeIfAbsent(type1, k -> new HashSet<>()).add(type2);
-        typeCompatibility.computeIfAbsent(type2, k -> new HashSet<>()).add(type1);
+    public List<String> analyzeParallel(GLSLParser.Program program, ForkJoinPool pool) {
+        return analyze(program, pool);
     }
 
-    public List<String> analyze(GLSLParser.Program program) {
+    private List<String> analyze(GLSLParser.Program program, ForkJoinPool pool) {
         errors.clear();
+        typedExpressions = 0;
+        declarationTypedExpressions.reset();
+
+        // Глобальная область видимости живёт на протяжении обоих проходов
+        symbolTable.enterScope();
 
         // Первый проход: сбор деклараций
         collectDeclarations(program);
 
         // Второй проход: проверка тел функций
-        checkDeclarations(program);
+        checkDeclarations(program, pool);
+
+        symbolTable.exitScope();
 
         errors.addAll(symbolTable.getErrors());
         return errors;
     }
 
     private void collectDeclarations(GLSLParser.Program program) {
-        // Входим в глобальную область видимости
-        symbolTable.enterScope();
         inGlobalScope = true;
 
         for (GLSLParser.ASTNode decl : program.declarations) {
@@ -135,7 +89,6 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         }
 
         inGlobalScope = false;
-        symbolTable.exitScope();
     }
 
     private void collectGlobalVariable(GLSLParser.VariableDeclaration decl) {
@@ -186,19 +139,131 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         ));
     }
 
-    private void checkDeclarations(GLSLParser.Program program) {
-        symbolTable.enterScope();
-        inGlobalScope = true;
+    private void checkDeclarations(GLSLParser.Program program, ForkJoinPool pool) {
+        // Каждая декларация проверяется отдельным анализатором со своей локальной
+        // областью видимости; глобальная область при этом только читается.
+        // Ошибки собираются в порядке деклараций в исходном коде.
+        List<ForkJoinTask<List<String>>> tasks = new ArrayList<>();
+        List<List<String>> results = new ArrayList<>();
 
         for (GLSLParser.ASTNode decl : program.declarations) {
-            decl.accept(this);
+            if (pool != null && decl instanceof GLSLParser.FunctionDeclaration) {
+                tasks.add(pool.submit(() -> checkDeclaration(decl)));
+                results.add(null);
+            } else {
+                tasks.add(null);
+                results.add(checkDeclaration(decl));
+            }
         }
 
-        inGlobalScope = false;
-        symbolTable.exitScope();
+        for (int i = 0; i < results.size(); i++) {
+            List<String> declErrors = tasks.get(i) != null ? tasks.get(i).join() : results.get(i);
+            errors.addAll(declErrors);
+        }
+    }
+
+    // Сколько раз последний analyze вычислил тип выражения: каждый узел выражения
+    // типизируется не больше одного раза. Нужно для проверки линейности анализа
+    long getTypedExpressions() {
+        return typedExpressions + declarationTypedExpressions.sum();
+    }
+
+    private List<String> checkDeclaration(GLSLParser.ASTNode decl) {
+        if (cache != null && decl instanceof GLSLParser.FunctionDeclaration) {
+            return checkFunctionCached((GLSLParser.FunctionDeclaration) decl);
+        }
+        return checkIsolated(decl);
+    }
+
+    private List<String> checkIsolated(GLSLParser.ASTNode decl) {
+        SemanticAnalyzer checker = new SemanticAnalyzer(symbolTable.fork());
+        decl.accept(checker);
+        declarationTypedExpressions.add(checker.getTypedExpressions());
+
+        List<String> declErrors = checker.errors;
+        declErrors.addAll(checker.symbolTable.getErrors());
+        return declErrors;
+    }
+
+    private List<String> checkFunctionCached(GLSLParser.FunctionDeclaration func) {
+        ASTFingerprint fingerprint = ASTFingerprint.of(func);
+        AnalysisCache.Key key = new AnalysisCache.Key(fingerprint.getText(),
+                fingerprint.getHash(), dependencySignatures(fingerprint.getNames()));
+        List<GLSLParser.ASTNode> nodes = fingerprint.getNodes();
+
+        AnalysisCache.Entry entry = cache.get(key);
+        // Равный текст даёт то же число узлов; проверка страхует восстановление типов
+        if (entry != null && entry.resolvedTypes.length == nodes.size()) {
+            // Функция не менялась: восстанавливаем типы узлов без повторной проверки
+            for (int i = 0; i < nodes.size(); i++) {
+                nodes.get(i).resolvedType = entry.resolvedTypes[i];
+            }
+            return new ArrayList<>(entry.errors);
+        }
+
+        List<String> declErrors = checkIsolated(func);
+
+        String[] resolvedTypes = new String[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            resolvedTypes[i] = nodes.get(i).resolvedType;
+        }
+        cache.put(key, new AnalysisCache.Entry(List.copyOf(declErrors), resolvedTypes));
+        return declErrors;
+    }
+
+    // Сигнатуры всех символов, на которые ссылается функция, в порядке первого упоминания,
+    // и полные списки полей структур, достижимых через их типы: тип глобальной переменной,
+    // возвращаемый тип и параметры вызванной функции, поля других структур
+    private String dependencySignatures(Set<String> names) {
+        StringBuilder sb = new StringBuilder();
+        Deque<String> types = new ArrayDeque<>();
+        for (String name : names) {
+            SymbolTable.SymbolInfo info = symbolTable.lookup(name);
+            sb.append(name).append('=');
+            if (info != null) {
+                sb.append(info).append(' ').append(info.extraInfo);
+                types.add(info.kind == SymbolTable.SymbolKind.STRUCT ? name : info.type);
+                addMemberTypes(info, types);
+            }
+            sb.append(';');
+        }
+
+        Set<String> visited = new HashSet<>();
+        while (!types.isEmpty()) {
+            String type = types.poll();
+            if (!visited.add(type)) {
+                continue;
+            }
+            SymbolTable.SymbolInfo struct = symbolTable.lookup(type);
+            if (struct == null || struct.kind != SymbolTable.SymbolKind.STRUCT) {
+                continue;
+            }
+            sb.append(type).append('{');
+            @SuppressWarnings("unchecked")
+            List<SymbolTable.SymbolInfo> fields = (List<SymbolTable.SymbolInfo>) struct.extraInfo;
+            for (SymbolTable.SymbolInfo field : fields) {
+                sb.append(field.name).append(':').append(field.type).append(';');
+            }
+            sb.append('}');
+            addMemberTypes(struct, types);
+        }
+        return sb.toString();
+    }
+
+    // Типы параметров функции или полей структуры
+    private static void addMemberTypes(SymbolTable.SymbolInfo info, Deque<String> types) {
+        if (info.extraInfo instanceof List) {
+            for (Object member : (List<?>) info.extraInfo) {
+                if (member instanceof SymbolTable.SymbolInfo) {
+                    types.add(((SymbolTable.SymbolInfo) member).type);
+                }
+            }
+        }
     }
 
     // Реализация ASTVisitor =================================================
+    // Выражения проверяются за один проход снизу вверх: каждый visit вычисляет
+    // тип узла по уже вычисленным типам детей и сохраняет его в resolvedType.
 
     @Override
     public Void visit(GLSLParser.Program program) {
@@ -254,7 +319,7 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
 
         // Проверяем инициализатор
         if (decl.initializer != null) {
-            String initType = checkExpression(decl.initializer);
+            String initType = typeOf(decl.initializer);
             if (initType != null && !areTypesCompatible(decl.type, initType)) {
                 errors.add("Type mismatch in variable '" + decl.name + "': expected " +
                         decl.type + ", got " + initType);
@@ -262,8 +327,9 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         }
 
         // Добавляем переменную в таблицу символов
-        // Не добавляем, если это поле структуры (мы их уже собрали в collectStructDeclaration)
-        if (!inStructDeclaration) {
+        // Не добавляем поля структуры (мы их уже собрали в collectStructDeclaration)
+        // и глобальные переменные (собраны в collectGlobalVariable)
+        if (!inStructDeclaration && !inGlobalScope) {
             symbolTable.addSymbol(decl.name, new SymbolTable.SymbolInfo(
                     decl.name,
                     decl.type,
@@ -297,7 +363,7 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         }
 
         if (stmt.argument != null) {
-            String returnType = checkExpression(stmt.argument);
+            String returnType = typeOf(stmt.argument);
             if (returnType != null && !areTypesCompatible(currentFunctionReturnType, returnType)) {
                 errors.add("Return type mismatch: expected " +
                         currentFunctionReturnType + ", got " + returnType);
@@ -310,16 +376,31 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
 
     @Override
     public Void visit(GLSLParser.BinaryExpression expr) {
-        String leftType = checkExpression(expr.left);
-        String rightType = checkExpression(expr.right);
+        // Длинные цепочки (a + b + c + ...) вложены влево, поэтому спускаемся
+        // по левому краю итеративно, а не рекурсивно, и типизируем снизу вверх
+        Deque<GLSLParser.BinaryExpression> chain = new ArrayDeque<>();
+        GLSLParser.ASTNode node = expr;
+        while (node instanceof GLSLParser.BinaryExpression) {
+            chain.push((GLSLParser.BinaryExpression) node);
+            node = ((GLSLParser.BinaryExpression) node).left;
+        }
 
-        if (leftType != null && rightType != null) {
-            if (!areTypesCompatibleForOperator(expr.operator, leftType, rightType)) {
-                errors.add("Incompatible types for operator '" + expr.operator +
-                        "': " + leftType + " and " + rightType);
+        String leftType = typeOf(node);
+        while (!chain.isEmpty()) {
+            GLSLParser.BinaryExpression binExpr = chain.pop();
+            typedExpressions++;
+            String rightType = typeOf(binExpr.right);
+
+            if (leftType != null && rightType != null) {
+                if (!areTypesCompatibleForOperator(binExpr.operator, leftType, rightType)) {
+                    errors.add("Incompatible types for operator '" + binExpr.operator +
+                            "': " + leftType + " and " + rightType);
+                }
             }
-        }
 
+            binExpr.resolvedType = binaryResultType(binExpr.operator, leftType, rightType);
+            leftType = binExpr.resolvedType;
+        }
         return null;
     }
 
@@ -327,33 +408,34 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
     public Void visit(GLSLParser.CallExpression expr) {
         String funcName = extractFunctionName(expr.callee);
 
+        // Типы аргументов вычисляются ровно один раз
+        List<String> argTypes = new ArrayList<>(expr.arguments.size());
+        for (GLSLParser.ASTNode arg : expr.arguments) {
+            argTypes.add(typeOf(arg));
+        }
+
         if (funcName == null) {
             errors.add("Invalid function call");
             return null;
         }
 
-        // Проверяем встроенные функции
-        if (builtInFunctions.containsKey(funcName)) {
-            BuiltInFunctionInfo builtInInfo = builtInFunctions.get(funcName);
-
-            // Проверяем количество аргументов
-            if (builtInInfo.paramTypes.size() != expr.arguments.size()) {
-                errors.add("Argument count mismatch for built-in function '" + funcName +
-                        "': expected " + builtInInfo.paramTypes.size() + ", got " + expr.arguments.size());
-                return null;
-            }
+        // Конструкторы типов (vec3(x), vec4(v, 1.0), структуры) принимают
+        // переменное число аргументов
+        if (prelude.builtInTypes.contains(funcName) || isStructType(funcName)) {
+            expr.resolvedType = funcName;
+            return null;
+        }
 
-            // Проверяем типы аргументов
-            for (int i = 0; i < expr.arguments.size(); i++) {
-                String argType = checkExpression(expr.arguments.get(i));
-                String expectedType = builtInInfo.paramTypes.get(i);
+        // Проверяем встроенные функции: перегрузка ищется по индексу сигнатур
+        if (prelude.builtInFunctions.containsKey(funcName)) {
+            BuiltInPrelude.BuiltInFunctionInfo builtInInfo = prelude.resolveOverload(funcName, argTypes);
 
-                if (argType != null && !areTypesCompatible(expectedType, argType)) {
-                    errors.add("Argument " + (i + 1) + " type mismatch in call to '" +
-                            funcName + "': expected " + expectedType + ", got " + argType);
-                }
+            if (builtInInfo == null) {
+                reportUnresolvedOverload(funcName, prelude.builtInFunctions.get(funcName), argTypes);
+                return null;
             }
 
+            expr.resolvedType = builtInInfo.returnType;
             return null;
         }
 
@@ -361,30 +443,64 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         SymbolTable.SymbolInfo funcInfo = symbolTable.lookup(funcName);
 
         if (funcInfo == null || funcInfo.kind != SymbolTable.SymbolKind.FUNCTION) {
-            errors.add("Undeclared function: " + funcName);
+            String reason = prelude.unsupportedReason(funcName);
+            errors.add(reason != null
+                    ? "Unsupported built-in function: " + funcName + " (" + reason + ")"
+                    : "Undeclared function: " + funcName);
             return null;
         }
 
         @SuppressWarnings("unchecked")
         List<SymbolTable.SymbolInfo> params = (List<SymbolTable.SymbolInfo>) funcInfo.extraInfo;
 
-        if (params.size() != expr.arguments.size()) {
+        expr.resolvedType = funcInfo.type;
+
+        if (params.size() != argTypes.size()) {
             errors.add("Argument count mismatch for function '" + funcName +
-                    "': expected " + params.size() + ", got " + expr.arguments.size());
+                    "': expected " + params.size() + ", got " + argTypes.size());
             return null;
         }
 
-        for (int i = 0; i < expr.arguments.size(); i++) {
-            String argType = checkExpression(expr.arguments.get(i));
-            String expectedType = params.get(i).type;
+        List<String> expectedTypes = new ArrayList<>(params.size());
+        for (SymbolTable.SymbolInfo param : params) {
+            expectedTypes.add(param.type);
+        }
+        reportArgumentMismatches(funcName, expectedTypes, argTypes);
+
+        return null;
+    }
+
+    private void reportArgumentMismatches(String funcName, List<String> expectedTypes, List<String> argTypes) {
+        for (int i = 0; i < argTypes.size(); i++) {
+            String argType = argTypes.get(i);
+            String expectedType = expectedTypes.get(i);
 
             if (argType != null && !areTypesCompatible(expectedType, argType)) {
                 errors.add("Argument " + (i + 1) + " type mismatch in call to '" +
                         funcName + "': expected " + expectedType + ", got " + argType);
             }
         }
+    }
+
+    private void reportUnresolvedOverload(String funcName, List<BuiltInPrelude.BuiltInFunctionInfo> overloads,
+                                          List<String> argTypes) {
+        // Перегрузки с подходящим числом аргументов
+        List<BuiltInPrelude.BuiltInFunctionInfo> sameArity = new ArrayList<>();
+        for (BuiltInPrelude.BuiltInFunctionInfo info : overloads) {
+            if (info.paramTypes.size() == argTypes.size()) {
+                sameArity.add(info);
+            }
+        }
 
-        return null;
+        if (sameArity.isEmpty()) {
+            errors.add("Argument count mismatch for built-in function '" + funcName +
+                    "': expected " + overloads.get(0).paramTypes.size() + ", got " + argTypes.size());
+        } else if (sameArity.size() == 1) {
+            reportArgumentMismatches(funcName, sameArity.get(0).paramTypes, argTypes);
+        } else {
+            errors.add("No matching overload for built-in function '" + funcName +
+                    "' with arguments (" + String.join(", ", argTypes) + ")");
+        }
     }
 
     private String extractFunctionName(GLSLParser.ASTNode callee) {
@@ -396,19 +512,21 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
 
     @Override
     public Void visit(GLSLParser.Identifier identifier) {
-        SymbolTable.SymbolInfo info = symbolTable.lookup(identifier.name);
+        SymbolTable.SymbolInfo info = symbolTable.lookup(identifier.nameId);
         if (info == null) {
             // Проверяем, не является ли это встроенным типом
-            if (!builtInTypes.contains(identifier.name)) {
+            if (!prelude.builtInTypes.contains(identifier.name)) {
                 errors.add("Undeclared identifier: " + identifier.name);
             }
+            return null;
         }
+        identifier.resolvedType = info.type;
         return null;
     }
 
     @Override
     public Void visit(GLSLParser.MemberExpression expr) {
-        String objectType = checkExpression(expr.object);
+        String objectType = typeOf(expr.object);
 
         if (objectType != null && expr.property instanceof GLSLParser.Identifier) {
             String fieldName = ((GLSLParser.Identifier) expr.property).name;
@@ -418,143 +536,158 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
             if (structInfo != null && structInfo.kind == SymbolTable.SymbolKind.STRUCT) {
                 @SuppressWarnings("unchecked")
                 List<SymbolTable.SymbolInfo> fields = (List<SymbolTable.SymbolInfo>) structInfo.extraInfo;
-                boolean fieldFound = false;
+                SymbolTable.SymbolInfo foundField = null;
 
                 for (SymbolTable.SymbolInfo field : fields) {
                     if (field.name.equals(fieldName)) {
-                        fieldFound = true;
+                        foundField = field;
                         break;
                     }
                 }
 
-                if (!fieldFound) {
+                if (foundField == null) {
                     errors.add("Unknown field '" + fieldName + "' in struct '" + objectType + "'");
+                } else {
+                    expr.resolvedType = foundField.type;
                 }
-            } else {
+            } else if (objectType.startsWith("vec")) {
                 // Проверяем доступ к компонентам вектора (x, y, z, w, r, g, b, a)
-                if (objectType != null && objectType.startsWith("vec")) {
-                    Set<String> validComponents = new HashSet<>(Arrays.asList("x", "y", "z", "w", "r", "g", "b", "a"));
-                    if (!validComponents.contains(fieldName)) {
+                for (char component : fieldName.toCharArray()) {
+                    if (VECTOR_COMPONENTS.indexOf(component) < 0) {
                         errors.add("Invalid component '" + fieldName + "' for type '" + objectType + "'");
+                        return null;
                     }
                 }
+                expr.resolvedType = fieldName.length() == 1 ? "float" : "vec" + fieldName.length();
+            } else {
+                // Для остальных типов возвращаем тип объекта
+                expr.resolvedType = objectType;
             }
         }
 
         return null;
     }
 
-    // Вспомогательные методы ================================================
+    @Override
+    public Void visit(GLSLParser.TernaryExpression expr) {
+        // Проверяем условие - должно быть bool
+        String conditionType = typeOf(expr.test);
+        if (conditionType != null && !"bool".equals(conditionType)) {
+            errors.add("Ternary condition must be boolean, got: " + conditionType);
+        }
+
+        // Проверяем оба выражения и берём их общий тип
+        String thenType = typeOf(expr.consequent);
+        String elseType = typeOf(expr.alternate);
+
+        if (thenType != null && elseType != null && !areTypesCompatible(thenType, elseType)) {
+            errors.add("Incompatible types in ternary operator: " + thenType + " and " + elseType);
+        }
+
+        expr.resolvedType = thenType; // Тип первого выражения
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.UnaryExpression expr) {
+        String argType = typeOf(expr.argument);
+        expr.resolvedType = "!".equals(expr.operator) ? "bool" : argType;
+        return null;
+    }
+
+    @Override
+    public Void visit(GLSLParser.Literal literal) {
+        literal.resolvedType = literalType(literal.value);
+        return null;
+    }
 
-    private String checkExpression(GLSLParser.ASTNode expr) {
-        if (expr instanceof GLSLParser.Identifier) {
-            SymbolTable.SymbolInfo info = symbolTable.lookup(((GLSLParser.Identifier) expr).name);
-            return info != null ? info.type : null;
-        } else if (expr instanceof GLSLParser.Literal) {
-            GLSLParser.Literal literal = (GLSLParser.Literal) expr;
-            Object value = literal.value;
+    // Вспомогательные методы ================================================
 
-            if (value instanceof Float || value instanceof Double) {
+    private static final String VECTOR_COMPONENTS = "xyzwrgba";
+
+    // Вычисляет тип выражения: узел посещается один раз, результат хранится в resolvedType
+    private String typeOf(GLSLParser.ASTNode expr) {
+        if (!(expr instanceof GLSLParser.BinaryExpression)) {
+            typedExpressions++; // Цепочки операторов считает visit(BinaryExpression)
+        }
+        expr.resolvedType = null;
+        expr.accept(this);
+        return expr.resolvedType;
+    }
+
+    private String literalType(Object value) {
+        if (value instanceof Float || value instanceof Double) {
+            return "float";
+        } else if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Boolean) {
+            return "bool";
+        } else if (value instanceof String) {
+            String strValue = (String) value;
+            try {
+                Float.parseFloat(strValue);
                 return "float";
-            } else if (value instanceof Integer) {
-                return "int";
-            } else if (value instanceof Boolean) {
-                return "bool";
-            } else if (value instanceof String) {
-                String strValue = (String) value;
+            } catch (NumberFormatException e1) {
                 try {
-                    Float.parseFloat(strValue);
-                    return "float";
-                } catch (NumberFormatException e1) {
-                    try {
-                        Integer.parseInt(strValue);
-                        return "int";
-                    } catch (NumberFormatException e2) {
-                        if ("true".equalsIgnoreCase(strValue) || "false".equalsIgnoreCase(strValue)) {
-                            return "bool";
-                        }
+                    Integer.parseInt(strValue);
+                    return "int";
+                } catch (NumberFormatException e2) {
+                    if ("true".equalsIgnoreCase(strValue) || "false".equalsIgnoreCase(strValue)) {
+                        return "bool";
                     }
                 }
-                return null;
             }
-        } else if (expr instanceof GLSLParser.BinaryExpression) {
-            GLSLParser.BinaryExpression binExpr = (GLSLParser.BinaryExpression) expr;
-            String leftType = checkExpression(binExpr.left);
-            String rightType = checkExpression(binExpr.right);
-
-            // Определяем тип результата операции
-            if (leftType != null && rightType != null) {
-                // Для арифметических операций
-                if (isArithmeticOperator(binExpr.operator)) {
-                    if (leftType.equals("float") && rightType.equals("float")) {
-                        return "float";
-                    } else if (leftType.equals("int") && rightType.equals("int")) {
-                        return "int";
-                    } else if (leftType.startsWith("vec") && rightType.equals("float")) {
-                        return leftType;
-                    } else if (rightType.startsWith("vec") && leftType.equals("float")) {
-                        return rightType;
-                    } else if (leftType.startsWith("vec") && rightType.equals(leftType)) {
-                        return leftType;
-                    }
-                }
-
-                // Для операторов сравнения возвращаем bool
-                if (isComparisonOperator(binExpr.operator)) {
-                    return "bool";
-                }
+        }
+        return null;
+    }
 
-                // Для логических операторов возвращаем bool
-                if (isLogicalOperator(binExpr.operator)) {
-                    return "bool";
+    private String binaryResultType(String operator, String leftType, String rightType) {
+        // Определяем тип результата операции
+        if (leftType != null && rightType != null) {
+            // Для арифметических операций
+            if (isArithmeticOperator(operator)) {
+                if (leftType.equals("float") && rightType.equals("float")) {
+                    return "float";
+                } else if (leftType.equals("int") && rightType.equals("int")) {
+                    return "int";
+                } else if (leftType.startsWith("vec") && isScalarType(rightType)) {
+                    return leftType;
+                } else if (rightType.startsWith("vec") && isScalarType(leftType)) {
+                    return rightType;
+                } else if (leftType.startsWith("vec") && rightType.equals(leftType)) {
+                    return leftType;
+                } else if (leftType.startsWith("mat") && rightType.startsWith("vec")) {
+                    return rightType; // матрица * вектор
+                } else if (leftType.startsWith("vec") && rightType.startsWith("mat")) {
+                    return leftType;  // вектор * матрица
                 }
             }
 
-            return leftType;
-        } else if (expr instanceof GLSLParser.CallExpression) {
-            String funcName = extractFunctionName(((GLSLParser.CallExpression) expr).callee);
-
-            if (builtInFunctions.containsKey(funcName)) {
-                return builtInFunctions.get(funcName).returnType;
-            }
-
-            SymbolTable.SymbolInfo info = symbolTable.lookup(funcName);
-            return info != null ? info.type : null;
-        } else if (expr instanceof GLSLParser.UnaryExpression) {
-            return checkExpression(((GLSLParser.UnaryExpression) expr).argument);
-        } else if (expr instanceof GLSLParser.MemberExpression) {
-            // Для простоты возвращаем тип объекта
-            return checkExpression(((GLSLParser.MemberExpression) expr).object);
-        } else if (expr instanceof GLSLParser.TernaryExpression) {
-            // Обработка тернарного оператора
-            GLSLParser.TernaryExpression ternary = (GLSLParser.TernaryExpression) expr;
-
-            // Проверяем условие - должно быть bool
-            String conditionType = checkExpression(ternary.test);
-            if (conditionType != null && !"bool".equals(conditionType)) {
-                errors.add("Ternary condition must be boolean, got: " + conditionType);
+            // Для операторов сравнения возвращаем bool
+            if (isComparisonOperator(operator)) {
+                return "bool";
             }
 
-            // Проверяем оба выражения и возвращаем их общий тип
-            String thenType = checkExpression(ternary.consequent);
-            String elseType = checkExpression(ternary.alternate);
-
-            if (thenType != null && elseType != null) {
-                if (areTypesCompatible(thenType, elseType)) {
-                    return thenType; // Возвращаем тип первого выражения
-                } else {
-                    errors.add("Incompatible types in ternary operator: " + thenType + " and " + elseType);
-                }
+            // Для логических операторов возвращаем bool
+            if (isLogicalOperator(operator)) {
+                return "bool";
             }
-
-            return thenType;
         }
 
-        return null;
+        return leftType;
     }
 
     private boolean isTypeValid(String type) {
-        return builtInTypes.contains(type) || symbolTable.lookup(type) != null;
+        return prelude.builtInTypes.contains(type) || symbolTable.lookup(type) != null;
+    }
+
+    private boolean isStructType(String name) {
+        SymbolTable.SymbolInfo info = symbolTable.lookup(name);
+        return info != null && info.kind == SymbolTable.SymbolKind.STRUCT;
+    }
+
+    private boolean isScalarType(String type) {
+        return type.equals("float") || type.equals("int");
     }
 
     private boolean isArithmeticOperator(String operator) {
@@ -578,7 +711,7 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         if (type1.equals("float") && type2.equals("int")) return true;
         if (type1.equals("int") && type2.equals("float")) return true;
 
-        Set<String> compatible = typeCompatibility.get(type1);
+        Set<String> compatible = prelude.typeCompatibility.get(type1);
         return compatible != null && compatible.contains(type2);
     }
 
@@ -614,17 +747,6 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
                 type.startsWith("vec") || type.startsWith("mat");
     }
 
-    // Внутренний класс для информации о встроенных функциях
-    private static class BuiltInFunctionInfo {
-        final String returnType;
-        final List<String> paramTypes;
-
-        BuiltInFunctionInfo(String returnType, List<String> paramTypes) {
-            this.returnType = returnType;
-            this.paramTypes = paramTypes;
-        }
-    }
-
     // Остальные методы visit
     @Override public Void visit(GLSLParser.Parameter param) { return null; }
     @Override public Void visit(GLSLParser.BlockStatement block) {
@@ -640,11 +762,11 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         return null;
     }
     @Override public Void visit(GLSLParser.ExpressionStatement stmt) {
-        checkExpression(stmt.expression);
+        typeOf(stmt.expression);
         return null;
     }
     @Override public Void visit(GLSLParser.IfStatement stmt) {
-        String testType = checkExpression(stmt.test);
+        String testType = typeOf(stmt.test);
         if (testType != null && !"bool".equals(testType)) {
             errors.add("If condition must be boolean, got: " + testType);
         }
@@ -656,40 +778,22 @@ public class SemanticAnalyzer implements GLSLParser.ASTVisitor<Void> {
         symbolTable.enterScope();
         if (stmt.init != null) stmt.init.accept(this);
         if (stmt.test != null) {
-            String testType = checkExpression(stmt.test);
+            String testType = typeOf(stmt.test);
             if (testType != null && !"bool".equals(testType)) {
                 errors.add("For condition must be boolean, got: " + testType);
             }
         }
-        if (stmt.update != null) checkExpression(stmt.update);
+        if (stmt.update != null) typeOf(stmt.update);
         if (stmt.body != null) stmt.body.accept(this);
         symbolTable.exitScope();
         return null;
     }
     @Override public Void visit(GLSLParser.WhileStatement stmt) {
-        String testType = checkExpression(stmt.test);
+        String testType = typeOf(stmt.test);
         if (testType != null && !"bool".equals(testType)) {
             errors.add("While condition must be boolean, got: " + testType);
         }
         stmt.body.accept(this);
         return null;
     }
-    @Override
-    public Void visit(GLSLParser.TernaryExpression expr) {
-        // Проверяем условие - должно быть bool
-        String conditionType = checkExpression(expr.test);
-        if (conditionType != null && !"bool".equals(conditionType)) {
-            errors.add("Ternary condition must be boolean, got: " + conditionType);
-        }
-
-        // Проверяем оба выражения
-        checkExpression(expr.consequent);
-        checkExpression(expr.alternate);
-        return null;
-    }
-    @Override public Void visit(GLSLParser.UnaryExpression expr) {
-        checkExpression(expr.argument);
-        return null;
-    }
-    @Override public Void visit(GLSLParser.Literal literal) { return null; }
-}
\ No newline at end of file
+}
@@ -1,54 +1,180 @@
 package semantics;
 
+import lexer.NamePool;
+
 import java.util.*;
 
 public class SymbolTable {
-    private final Stack<Map<String, SymbolInfo>> scopes = new Stack<>();
+    private static final int INITIAL_CAPACITY = 16;
+    private static final SymbolInfo[] NO_BUILT_INS = new SymbolInfo[0];
+
+    private final NamePool names = NamePool.get();
+    // Видимые привязки по номеру имени в NamePool: открытая адресация по номерам имён,
+    // объявленных в этой таблице, поэтому размер зависит от её символов, а не от числа
+    // имён, прошедших через общий пул. Привязки неизменяемы и образуют цепочку
+    // затенённых символов; удалённые привязки не стираются, а становятся null.
+    // keyNames держит канонические экземпляры имён: пока таблица жива, их номера
+    // не освобождаются пулом и не достаются другим именам
+    private int[] keys;
+    private String[] keyNames;
+    private Binding[] visible;
+    private int used;
+    // Номера имён, объявленных в каждой области, для отката при выходе из неё
+    private final Deque<List<Integer>> scopes = new ArrayDeque<>();
     private final List<String> errors = new ArrayList<>();
-    private final Set<String> builtInSymbols = new HashSet<>();
+    // Встроенные символы по номеру имени, просматриваются после всех областей;
+    // массив общий (BuiltInPrelude.symbolsById) и только читается
+    private final SymbolInfo[] builtInById;
 
     public SymbolTable() {
+        this(NO_BUILT_INS);
+    }
+
+    SymbolTable(SymbolInfo[] builtInById) {
+        this.builtInById = builtInById;
+        this.keys = new int[INITIAL_CAPACITY];
+        this.keyNames = new String[INITIAL_CAPACITY];
+        this.visible = new Binding[INITIAL_CAPACITY];
+        Arrays.fill(keys, -1);
+        enterScope();
+    }
+
+    private SymbolTable(SymbolTable parent) {
+        this.builtInById = parent.builtInById;
+        this.keys = parent.keys.clone();
+        this.keyNames = parent.keyNames.clone();
+        this.visible = parent.visible.clone();
+        this.used = parent.used;
+        // Уровень вложенности продолжается, чтобы символы родителя не считались текущей областью
+        for (int i = 0; i < parent.scopes.size(); i++) {
+            scopes.push(Collections.emptyList());
+        }
         enterScope();
     }
 
+    // Таблица для независимой проверки (например, тела функции в отдельном потоке):
+    // текущие области видимости разделяются только для чтения, новые символы
+    // попадают в собственную область поверх них
+    public SymbolTable fork() {
+        return new SymbolTable(this);
+    }
+
     public void enterScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new ArrayList<>());
     }
 
     public void exitScope() {
-        scopes.pop();
+        for (int id : scopes.pop()) {
+            int slot = slot(id);
+            visible[slot] = visible[slot].shadowed;
+        }
     }
 
     public void addSymbol(String name, SymbolInfo info) {
-        if (builtInSymbols.contains(name)) {
+        String canonical = names.intern(name);
+        int id = names.find(canonical);
+        if (builtInSymbol(id) != null) {
             return; // Игнорируем попытки переопределить встроенные символы
         }
 
-        if (scopes.peek().containsKey(name)) {
+        int slot = slotForInsert(id, canonical);
+        Binding current = visible[slot];
+        if (current != null && current.depth == scopes.size()) {
             errors.add("Duplicate symbol: " + name);
             return;
         }
-        scopes.peek().put(name, info);
+        visible[slot] = new Binding(info, scopes.size(), current);
+        scopes.peek().add(id);
     }
 
-    public void addBuiltInSymbol(String name, SymbolInfo info) {
-        builtInSymbols.add(name);
-        scopes.get(0).put(name, info); // Добавляем в глобальную область видимости
+    // Поиск по строке не регистрирует имя в пуле: незнакомое пулу имя нигде не объявлено
+    public SymbolInfo lookup(String name) {
+        int id = names.find(name);
+        return id >= 0 ? lookup(id) : null;
     }
 
-    public SymbolInfo lookup(String name) {
-        // Ищем от текущей области к глобальной
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name)) {
-                return scopes.get(i).get(name);
-            }
+    // Поиск по номеру имени: от текущей области к глобальной, затем встроенные символы
+    public SymbolInfo lookup(int nameId) {
+        int slot = slot(nameId);
+        if (slot >= 0 && visible[slot] != null) {
+            return visible[slot].info;
         }
-        return null;
+        return builtInSymbol(nameId);
     }
 
     public SymbolInfo lookupCurrentScope(String name) {
         if (scopes.isEmpty()) return null;
-        return scopes.peek().get(name);
+        int id = names.find(name);
+        if (id < 0) return null;
+        int slot = slot(id);
+        if (slot >= 0 && visible[slot] != null && visible[slot].depth == scopes.size()) {
+            return visible[slot].info;
+        }
+        return null;
+    }
+
+    private SymbolInfo builtInSymbol(int nameId) {
+        return nameId >= 0 && nameId < builtInById.length ? builtInById[nameId] : null;
+    }
+
+    // Ячейка номера имени (-1 - имя в этой таблице не объявлялось)
+    private int slot(int nameId) {
+        int mask = keys.length - 1;
+        for (int i = mix(nameId) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == nameId) {
+                return i;
+            }
+            if (keys[i] < 0) {
+                return -1;
+            }
+        }
+    }
+
+    private int slotForInsert(int nameId, String name) {
+        int slot = slot(nameId);
+        if (slot >= 0) {
+            return slot;
+        }
+        // Заполнение не больше половины: поиск свободной ячейки короткий
+        if (2 * (used + 1) > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = mix(nameId) & mask;
+        while (keys[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = nameId;
+        keyNames[i] = name;
+        used++;
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        String[] oldNames = keyNames;
+        Binding[] oldVisible = visible;
+        keys = new int[capacity];
+        keyNames = new String[capacity];
+        visible = new Binding[capacity];
+        Arrays.fill(keys, -1);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] >= 0) {
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] >= 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                keyNames[i] = oldNames[j];
+                visible[i] = oldVisible[j];
+            }
+        }
+    }
+
+    // Номера имён плотные и идут подряд; перемешивание разносит соседние номера
+    private static int mix(int nameId) {
+        return nameId * 0x9E3779B9 >>> 7;
     }
 
     public List<String> getErrors() {
@@ -75,6 +201,19 @@ public class SymbolTable {
         }
     }
 
+    // Символ, видимый под некоторым именем, и символ, который он затеняет
+    private static final class Binding {
+        final SymbolInfo info;
+        final int depth;
+        final Binding shadowed;
+
+        Binding(SymbolInfo info, int depth, Binding shadowed) {
+            this.info = info;
+            this.depth = depth;
+            this.shadowed = shadowed;
+        }
+    }
+
     // Вложенный enum для вида символа
     public enum SymbolKind {
         VARIABLE,
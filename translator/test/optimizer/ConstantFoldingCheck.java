@@ -0,0 +1,347 @@
+package optimizer;
+
+import lexer.GLSLLexer;
+import parser.GLSLParser;
+import semantics.SemanticAnalyzer;
+
+import java.util.*;
+
+// Сравнение свёртки констант (ConstantFolder + ConstantValue) с независимым эталонным
+// вычислителем. Выражение присваивается глобальной переменной (r = ...), чтобы
+// распространение констант не удалило его, после свёртки правая часть сравнивается
+// с эталоном. Проверяются:
+//  - округление до float32 после каждой операции;
+//  - целочисленное деление с отбрасыванием дробной части и 32-битное переполнение;
+//  - mod по формуле GLSL x - y * floor(x / y) (знак результата - как у y);
+//  - несвёртка нечисловых результатов (деление на ноль, sqrt(-1), переполнение float);
+//  - отрицательный результат - унарный минус над неотрицательным литералом;
+//  - случайные выражения float, int и vec3 (фиксированное зерно).
+// Запуск из каталога translator (без системы сборки):
+//   javac -encoding UTF-8 -d out $(find src test -name '*.java')
+//   java -cp out optimizer.ConstantFoldingCheck
+public class ConstantFoldingCheck {
+    private static final int RANDOM_EXPRESSIONS = 2000;
+
+    private final Random random = new Random(20261018L);
+    private int failures;
+    private int checked;
+
+    public static void main(String[] args) {
+        ConstantFoldingCheck check = new ConstantFoldingCheck();
+        check.fixedCases();
+        check.randomCases();
+        System.out.println(check.checked + " expressions checked, " + check.failures + " failures");
+        if (check.failures > 0) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private void fixedCases() {
+        // float32: в double (2^24 + 1) - 2^24 дало бы 1
+        expect("float", "(16777216.0 + 1.0) - 16777216.0", 0f);
+        expect("float", "0.1 + 0.2", 0.1f + 0.2f);
+        expect("float", "1.0 / 3.0 * 3.0", 1f / 3f * 3f);
+
+        // int: деление к нулю, переполнение по модулю 2^32
+        expect("int", "7 / 2", 3);
+        expect("int", "-7 / 2", -3);
+        expect("int", "7 / -2", -3);
+        expect("int", "2147483647 + 1", Integer.MIN_VALUE);
+        expect("int", "65536 * 65536", 0);
+
+        // mod по формуле GLSL, а не fmod из C
+        expect("float", "mod(-1.5, 1.0)", 0.5f);
+        expect("float", "mod(5.5, -2.0)", -0.5f);
+        expect("float", "mod(7.0, 2.5)", 2f);
+        expect("vec3", "mod(vec3(-1.0, 2.5, 4.0), vec3(2.0))", -1f + 2f, 0.5f, 0f);
+
+        // Нечисловые результаты не сворачиваются
+        expectUnfolded("float", "1.0 / 0.0");
+        expectUnfolded("float", "sqrt(-4.0)");
+        expectUnfolded("float", "mod(1.0, 0.0)");
+        expectUnfolded("float", "300000000000000000000000000000000000000.0 * 10.0");
+        expectUnfolded("int", "7 / 0");
+        expectUnfolded("vec3", "vec3(1.0, 2.0, 3.0) / vec3(1.0, 0.0, 1.0)");
+
+        // Отрицательный результат - унарный минус (проверяется в expect для каждого случая)
+        expect("float", "1.0 - 3.0", -2f);
+        expect("int", "2 - 5", -3);
+        expect("vec3", "vec3(1.0) - vec3(0.5, 2.0, 1.0)", 0.5f, -1f, 0f);
+    }
+
+    private void randomCases() {
+        for (int i = 0; i < RANDOM_EXPRESSIONS; i++) {
+            Expression expression;
+            switch (i % 3) {
+                case 0:
+                    expression = floatExpression(4);
+                    break;
+                case 1:
+                    expression = intExpression(4);
+                    break;
+                default:
+                    expression = vectorExpression(3);
+            }
+            if (expression.unfoldable) {
+                expectUnfolded(expression.type, expression.text);
+            } else {
+                expect(expression.type, expression.text, expression.value);
+            }
+        }
+    }
+
+    // Эталонное выражение: текст GLSL и значение (float-компоненты уже округлены
+    // до float32, int точен в double); unfoldable - где-то получилось не конечное
+    // число или целочисленное деление на ноль
+    private static final class Expression {
+        final String type;
+        final String text;
+        final double[] value;
+        final boolean unfoldable;
+
+        Expression(String type, String text, double[] value, boolean unfoldable) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+            boolean finite = true;
+            for (double c : value) {
+                finite &= Double.isFinite(c);
+            }
+            this.unfoldable = unfoldable || !finite;
+        }
+    }
+
+    private Expression floatExpression(int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(9);
+        switch (choice) {
+            case 0: {
+                float value = random.nextInt(4) == 0 ? random.nextInt(5) : (float) (random.nextDouble() * 20);
+                return new Expression("float", Float.toString(value), new double[] { value }, false);
+            }
+            case 1:
+            case 2:
+            case 3:
+            case 4: {
+                String op = "+-*/".substring(choice - 1, choice);
+                Expression a = floatExpression(depth - 1);
+                Expression b = floatExpression(depth - 1);
+                return new Expression("float", "(" + a.text + " " + op + " " + b.text + ")",
+                        new double[] { arithmetic(op, (float) a.value[0], (float) b.value[0]) },
+                        a.unfoldable || b.unfoldable);
+            }
+            case 5: {
+                Expression a = floatExpression(depth - 1);
+                return new Expression("float", "-(" + a.text + ")", new double[] { (float) -a.value[0] }, a.unfoldable);
+            }
+            case 6: {
+                Expression a = floatExpression(depth - 1);
+                Expression b = floatExpression(depth - 1);
+                return new Expression("float", "mod(" + a.text + ", " + b.text + ")",
+                        new double[] { mod((float) a.value[0], (float) b.value[0]) }, a.unfoldable || b.unfoldable);
+            }
+            case 7: {
+                String name = new String[] { "abs", "floor", "fract", "sqrt" }[random.nextInt(4)];
+                Expression a = floatExpression(depth - 1);
+                return new Expression("float", name + "(" + a.text + ")",
+                        new double[] { function(name, (float) a.value[0]) }, a.unfoldable);
+            }
+            default: {
+                String name = random.nextBoolean() ? "min" : "max";
+                Expression a = floatExpression(depth - 1);
+                Expression b = floatExpression(depth - 1);
+                double value = name.equals("min") ? Math.min(a.value[0], b.value[0]) : Math.max(a.value[0], b.value[0]);
+                return new Expression("float", name + "(" + a.text + ", " + b.text + ")",
+                        new double[] { value }, a.unfoldable || b.unfoldable);
+            }
+        }
+    }
+
+    private Expression intExpression(int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(6);
+        switch (choice) {
+            case 0: {
+                int value = random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(100000);
+                return new Expression("int", Integer.toString(value), new double[] { value }, false);
+            }
+            case 5: {
+                Expression a = intExpression(depth - 1);
+                return new Expression("int", "-(" + a.text + ")", new double[] { -(int) a.value[0] }, a.unfoldable);
+            }
+            default: {
+                String op = "+-*/".substring(choice - 1, choice);
+                Expression a = intExpression(depth - 1);
+                Expression b = intExpression(depth - 1);
+                int x = (int) a.value[0];
+                int y = (int) b.value[0];
+                boolean divisionByZero = op.equals("/") && y == 0;
+                int value;
+                switch (op) {
+                    case "+": value = x + y; break;
+                    case "-": value = x - y; break;
+                    case "*": value = x * y; break;
+                    default: value = divisionByZero ? 0 : x / y;
+                }
+                return new Expression("int", "(" + a.text + " " + op + " " + b.text + ")", new double[] { value },
+                        a.unfoldable || b.unfoldable || divisionByZero);
+            }
+        }
+    }
+
+    private Expression vectorExpression(int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(7);
+        switch (choice) {
+            case 0: {
+                Expression x = floatExpression(1);
+                Expression y = floatExpression(1);
+                Expression z = floatExpression(1);
+                return new Expression("vec3", "vec3(" + x.text + ", " + y.text + ", " + z.text + ")",
+                        new double[] { x.value[0], y.value[0], z.value[0] },
+                        x.unfoldable || y.unfoldable || z.unfoldable);
+            }
+            case 1:
+            case 2:
+            case 3:
+            case 4: {
+                String op = "+-*/".substring(choice - 1, choice);
+                Expression a = vectorExpression(depth - 1);
+                // Второй операнд - вектор или скаляр (размножается покомпонентно)
+                Expression b = random.nextBoolean() ? vectorExpression(depth - 1) : floatExpression(1);
+                double[] value = new double[3];
+                for (int i = 0; i < 3; i++) {
+                    value[i] = arithmetic(op, (float) a.value[i], (float) b.value[b.value.length == 1 ? 0 : i]);
+                }
+                return new Expression("vec3", "(" + a.text + " " + op + " " + b.text + ")", value,
+                        a.unfoldable || b.unfoldable);
+            }
+            case 5: {
+                Expression a = vectorExpression(depth - 1);
+                double[] value = new double[3];
+                for (int i = 0; i < 3; i++) {
+                    value[i] = (float) -a.value[i];
+                }
+                return new Expression("vec3", "-(" + a.text + ")", value, a.unfoldable);
+            }
+            default: {
+                Expression a = vectorExpression(depth - 1);
+                Expression b = vectorExpression(depth - 1);
+                double[] value = new double[3];
+                for (int i = 0; i < 3; i++) {
+                    value[i] = mod((float) a.value[i], (float) b.value[i]);
+                }
+                return new Expression("vec3", "mod(" + a.text + ", " + b.text + ")", value,
+                        a.unfoldable || b.unfoldable);
+            }
+        }
+    }
+
+    // Эталон: операция в float32, как на GPU
+    private static float arithmetic(String op, float x, float y) {
+        switch (op) {
+            case "+": return x + y;
+            case "-": return x - y;
+            case "*": return x * y;
+            default: return x / y;
+        }
+    }
+
+    // Эталон mod из спецификации GLSL: x - y * floor(x / y)
+    private static float mod(float x, float y) {
+        if (y == 0) {
+            return Float.NaN;
+        }
+        return (float) (x - y * Math.floor((double) x / y));
+    }
+
+    private static float function(String name, float x) {
+        switch (name) {
+            case "abs": return Math.abs(x);
+            case "floor": return (float) Math.floor(x);
+            case "fract": return (float) (x - Math.floor(x));
+            default: return (float) Math.sqrt(x);
+        }
+    }
+
+    private void expect(String type, String text, double... expected) {
+        checked++;
+        GLSLParser.ASTNode folded = fold(type, text);
+        if (folded == null) {
+            return;
+        }
+        ConstantValue value = ConstantValue.of(folded);
+        if (value == null) {
+            fail(text, "not folded");
+            return;
+        }
+        if (!value.type.equals(type) || value.size() != expected.length) {
+            fail(text, "folded to " + value.type + " with " + value.size() + " components");
+            return;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (value.components[i] != expected[i]) {
+                fail(text, "component " + i + " is " + value.components[i] + ", expected " + expected[i]);
+                return;
+            }
+        }
+        if (value.isScalar()) {
+            checkSign(text, folded, expected[0], type.equals("int"));
+        } else {
+            GLSLParser.CallExpression call = (GLSLParser.CallExpression) folded;
+            for (int i = 0; i < call.arguments.size(); i++) {
+                checkSign(text, call.arguments.get(i), expected[i], false);
+            }
+        }
+    }
+
+    private void expectUnfolded(String type, String text) {
+        checked++;
+        GLSLParser.ASTNode folded = fold(type, text);
+        if (folded != null && ConstantValue.of(folded) != null) {
+            fail(text, "non-finite or undefined result was folded to " + Arrays.toString(ConstantValue.of(folded).components));
+        }
+    }
+
+    // Отрицательный результат (и -0.0) - "-литерал", положительный - сам литерал;
+    // целый ноль может остаться "-0" (отрицание литерала свёртка не трогает)
+    private void checkSign(String text, GLSLParser.ASTNode node, double expected, boolean integer) {
+        boolean negative = expected < 0 || (!integer && expected == 0 && 1 / expected < 0);
+        boolean either = integer && expected == 0;
+        if (node instanceof GLSLParser.UnaryExpression) {
+            GLSLParser.UnaryExpression unary = (GLSLParser.UnaryExpression) node;
+            if ((negative || either) && unary.operator.equals("-") && unary.argument instanceof GLSLParser.Literal) {
+                return;
+            }
+        } else if (node instanceof GLSLParser.Literal && !negative) {
+            return;
+        }
+        fail(text, "result " + expected + " is not emitted as a (negated) literal: " + node.getClass().getSimpleName());
+    }
+
+    // Правая часть r = text после семантического анализа и свёртки (null - ошибка разбора/анализа)
+    private GLSLParser.ASTNode fold(String type, String text) {
+        String src = type + " r;\nvoid main() {\n    r = " + text + ";\n}\n";
+        GLSLParser parser = new GLSLParser(new GLSLLexer(src).tokenize());
+        GLSLParser.Program program = parser.parse();
+        List<String> errors = new ArrayList<>(parser.getErrors());
+        errors.addAll(new SemanticAnalyzer().analyze(program));
+        if (!errors.isEmpty()) {
+            fail(text, "does not analyse: " + errors);
+            return null;
+        }
+        new ConstantFolder().run(program);
+
+        GLSLParser.FunctionDeclaration main = (GLSLParser.FunctionDeclaration) program.declarations.get(1);
+        GLSLParser.ASTNode stmt = main.body.statements.get(0);
+        while (stmt instanceof GLSLParser.ExpressionStatement) {
+            stmt = ((GLSLParser.ExpressionStatement) stmt).expression;
+        }
+        return ((GLSLParser.BinaryExpression) stmt).right;
+    }
+
+    private void fail(String text, String message) {
+        failures++;
+        if (failures <= 20) {
+            System.out.println("FAILED: " + text + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package semantics;
+
+import lexer.GLSLLexer;
+import parser.ASTFingerprint;
+import parser.GLSLParser;
+
+import java.util.List;
+
+// Проверка линейности семантического анализа на длинной цепочке операторов
+// (float s = x + x + ... + x из 10k и 20k слагаемых):
+//  - каждый узел выражения типизируется не больше одного раза: число шагов
+//    типизации не превышает числа узлов функции;
+//  - удвоение цепочки добавляет ровно по шагу на новое слагаемое и новый оператор;
+//  - время анализа 20k слагаемых меньше чем втрое больше времени 10k
+//    (квадратичный анализ дал бы примерно вчетверо).
+// Запуск из каталога translator (без системы сборки):
+//   javac -encoding UTF-8 -d out $(find src test -name '*.java')
+//   java -cp out semantics.AnalysisScalingCheck
+public class AnalysisScalingCheck {
+    private static final int TERMS = 10_000;
+
+    public static void main(String[] args) {
+        long small = typedExpressions(TERMS);
+        long large = typedExpressions(2 * TERMS);
+        check(large - small == 2L * TERMS,
+                "doubling the chain must add one typing step per term and per operator: "
+                        + small + " -> " + large);
+
+        // Прогрев, затем лучшее из нескольких измерений
+        for (int i = 0; i < 5; i++) {
+            analysisNanos(TERMS);
+        }
+        long smallNanos = Long.MAX_VALUE;
+        long largeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 7; i++) {
+            smallNanos = Math.min(smallNanos, analysisNanos(TERMS));
+            largeNanos = Math.min(largeNanos, analysisNanos(2 * TERMS));
+        }
+        double ratio = (double) largeNanos / smallNanos;
+        System.out.printf("typing steps: %d for %d terms, %d for %d terms%n", small, TERMS, large, 2 * TERMS);
+        System.out.printf("analysis time: %.2f ms -> %.2f ms (x%.2f)%n",
+                smallNanos / 1e6, largeNanos / 1e6, ratio);
+        check(ratio < 3.0, "analysis time must grow linearly, got x" + ratio);
+        System.out.println("OK");
+    }
+
+    private static long typedExpressions(int terms) {
+        GLSLParser.Program program = parse(terms);
+        SemanticAnalyzer analyzer = new SemanticAnalyzer();
+        List<String> errors = analyzer.analyze(program);
+        check(errors.isEmpty(), "unexpected errors: " + errors);
+
+        long typed = analyzer.getTypedExpressions();
+        int nodes = ASTFingerprint.nodesOf(program).getNodes().size();
+        check(typed >= 2L * terms - 1, "every term and operator must be typed: " + typed);
+        check(typed <= nodes, "no node may be typed twice: " + typed + " steps for " + nodes + " nodes");
+        return typed;
+    }
+
+    private static long analysisNanos(int terms) {
+        GLSLParser.Program program = parse(terms);
+        long start = System.nanoTime();
+        new SemanticAnalyzer().analyze(program);
+        return System.nanoTime() - start;
+    }
+
+    private static GLSLParser.Program parse(int terms) {
+        StringBuilder src = new StringBuilder("uniform float x;\nvoid main() {\n    float s = x");
+        for (int i = 1; i < terms; i++) {
+            src.append(" + x");
+        }
+        src.append(";\n    gl_FragColor = vec4(s);\n}\n");
+        GLSLParser parser = new GLSLParser(new GLSLLexer(src.toString()).tokenize());
+        GLSLParser.Program program = parser.parse();
+        check(parser.getErrors().isEmpty(), "parse errors: " + parser.getErrors());
+        return program;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}